@@ -4,19 +4,9 @@ import java.math.BigDecimal;
 import java.util.Date;
 import java.util.Map;
 
-import org.kohera.metctools.delegate.AskDelegate;
-import org.kohera.metctools.delegate.BidDelegate;
-import org.kohera.metctools.delegate.BrokerStatusDelegate;
-import org.kohera.metctools.delegate.CallbackDelegate;
 import org.kohera.metctools.delegate.Delegator;
 import org.kohera.metctools.delegate.EventDelegate;
-import org.kohera.metctools.delegate.ExecutionReportDelegate;
-import org.kohera.metctools.delegate.OrderCancelRejectDelegate;
-import org.kohera.metctools.delegate.OtherDelegate;
-import org.kohera.metctools.delegate.ServerStatusDelegate;
-import org.kohera.metctools.delegate.StartDelegate;
-import org.kohera.metctools.delegate.StopDelegate;
-import org.kohera.metctools.delegate.TradeDelegate;
+import org.kohera.metctools.delegate.OverflowPolicy;
 import org.marketcetera.marketdata.MarketDataRequest;
 import org.marketcetera.strategy.RunningStrategy;
 import org.marketcetera.strategy.java.Strategy;
@@ -210,13 +200,13 @@ public class DelegatorStrategy extends Strategy
 		BROKER_STATUS_LISTENER = new BrokerStatusListener() {
 			@Override
 			public void receiveBrokerStatus(BrokerStatus status) {
-				delegator.delegate(BrokerStatusDelegate.class,status);
+				delegator.delegateBrokerStatus(status);
 			}
 		};
 		SERVER_STATUS_LISTENER = new ServerStatusListener() {
 			@Override
 			public void receiveServerStatus(boolean status) {
-				delegator.delegate(ServerStatusDelegate.class,status);
+				delegator.delegateServerStatus(status);
 			}
 		};	
 		client.addBrokerStatusListener( BROKER_STATUS_LISTENER );
@@ -235,6 +225,31 @@ public class DelegatorStrategy extends Strategy
 		delegator.addDelegate(delegate);
 	}
 	
+	/**
+	 * Add a delegate that handles its events on its own thread, through
+	 * a bounded queue of the given capacity, so that it cannot hold up
+	 * the other delegates.
+	 * 
+	 * @see setOverflowPolicy()
+	 * @param delegate
+	 * @param capacity
+	 */
+	public void addAsyncDelegate( EventDelegate delegate, int capacity ) {
+		delegator.addAsyncDelegate(delegate, capacity);
+	}
+	
+	/**
+	 * Set what asynchronous delegates added from now on do when their
+	 * queue is full, for the event type given by its delegate interface
+	 * (e.g. AskDelegate.class).
+	 * 
+	 * @param key
+	 * @param policy
+	 */
+	public void setOverflowPolicy( Class<?> key, OverflowPolicy policy ) {
+		delegator.setOverflowPolicy(key, policy);
+	}
+	
 	/**
 	 * Remove a a delegate from this strategy.
 	 * @param delegate
@@ -286,41 +301,50 @@ public class DelegatorStrategy extends Strategy
 	 */
 	
 	public final void onAsk( AskEvent event ) {
-		delegator.delegate(AskDelegate.class,event);
+		delegator.delegateAsk(event);
 	}
 
 	public final void onBid( BidEvent event ) {
-		delegator.delegate(BidDelegate.class,event);
+		delegator.delegateBid(event);
 	}
 	
 	public final void onTrade( TradeEvent event ) {
-		delegator.delegate(TradeDelegate.class,event);
+		delegator.delegateTrade(event);
 	}
 	
 	public final void onExecutionReport( ExecutionReport message ) {
-		delegator.delegate(ExecutionReportDelegate.class,message);
+		delegator.delegateExecutionReport(message);
 	}
 	
 	public final void onCancelReject( OrderCancelReject message ) {
-		delegator.delegate(OrderCancelRejectDelegate.class,message);
+		delegator.delegateCancelReject(message);
 	}
 
 	public final void onOther( Object message ) {
-		delegator.delegate(OtherDelegate.class, message);
+		delegator.delegateOther(message);
 	}
 	
 	public final void onCallback( Object message ) {
-		delegator.delegate(CallbackDelegate.class, message);		
+		delegator.delegateCallback(message);
 	}
 	
 	public final void onStart() {
-		delegator.delegate(StartDelegate.class, null);
+		delegator.delegateStart();
 	}
 	
 	public final void onStop() {
 		client.removeBrokerStatusListener(BROKER_STATUS_LISTENER);
 		client.removeServerStatusListener(SERVER_STATUS_LISTENER);
-		delegator.delegate(StopDelegate.class, null);
+		delegator.delegateStop();
+		delegator.stopAsyncDelegates();
+		onStopped();
+	}
+	
+	/**
+	 * Called when the strategy stops, after the StopDelegates have run.
+	 * Subclasses release their threads and files here.
+	 */
+	protected void onStopped() {
 	}
 
 }
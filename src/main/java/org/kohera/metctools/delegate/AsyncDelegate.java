@@ -0,0 +1,403 @@
+package org.kohera.metctools.delegate;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.DelegatorStrategy;
+import org.marketcetera.client.brokers.BrokerStatus;
+import org.marketcetera.event.AskEvent;
+import org.marketcetera.event.BidEvent;
+import org.marketcetera.event.TradeEvent;
+import org.marketcetera.trade.ExecutionReport;
+import org.marketcetera.trade.OrderCancelReject;
+
+/**
+ * Wraps an EventDelegate so that it receives its events on its own
+ * worker thread, through a bounded queue.
+ *
+ * The Delegator places the wrapper in the dispatch arrays of the
+ * interfaces implemented by the wrapped delegate only, so the wrapper
+ * implements every delegate interface and simply enqueues.  A slow
+ * delegate therefore only holds up its own queue.
+ *
+ * What happens when the queue is full is decided per event type by an
+ * OverflowPolicy.  Execution reports, cancel rejects, and start/stop
+ * events always use BLOCK, so they are delivered in order and never lost:
+ * DROP_OLDEST only ever evicts the oldest queued event of a DROP_OLDEST
+ * type, and waits like BLOCK if there is none.
+ *
+ * @author Jake Brukhman
+ *
+ */
+final class AsyncDelegate implements AskDelegate, BidDelegate, TradeDelegate,
+	ExecutionReportDelegate, BrokerStatusDelegate, ServerStatusDelegate,
+	OrderCancelRejectDelegate, OtherDelegate, CallbackDelegate,
+	StartDelegate, StopDelegate {
+
+	/**
+	 * A queued event.  Entries are mutable so that a conflated event can
+	 * be replaced in place, keeping its position in the queue.
+	 */
+	private static final class Entry {
+		int kind;
+		Object message;
+		Object symbol;
+		DelegatorStrategy sender;
+	}
+
+	/* fields */
+	private final EventDelegate target;
+	private final OverflowPolicy[] policies;
+	private final Thread worker;
+
+	/* queue */
+	private final Entry[] ring;
+	private int head;
+	private int count;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	/* conflation index: one map (symbol -> queued entry) per market data type */
+	private final Map<Object,Entry> queuedAsks = new HashMap<Object,Entry>();
+	private final Map<Object,Entry> queuedBids = new HashMap<Object,Entry>();
+	private final Map<Object,Entry> queuedTrades = new HashMap<Object,Entry>();
+
+	/* statistics */
+	private long dropped;
+	private long conflated;
+
+	private volatile boolean running;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(AsyncDelegate.class);
+
+	/**
+	 * Create a new AsyncDelegate.
+	 *
+	 * @param target	the delegate that will receive the events
+	 * @param capacity	maximum number of queued events
+	 * @param policies	overflow policy for each index of Delegator.EVENTS_ARRAY
+	 */
+	AsyncDelegate( EventDelegate target, int capacity, OverflowPolicy[] policies ) {
+		if ( capacity < 1 ) {
+			throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+		}
+		this.target = target;
+		this.policies = policies.clone();
+		this.ring = new Entry[capacity];
+		for ( int i = 0; i < capacity; i++ ) {
+			ring[i] = new Entry();
+		}
+
+		worker = new Thread("AsyncDelegate-" + target.getClass().getSimpleName()) {
+			@Override
+			public void run() {
+				work();
+			}
+		};
+		worker.setDaemon(true);
+	}
+
+	/**
+	 * Returns the wrapped delegate.
+	 *
+	 * @return
+	 */
+	EventDelegate getTarget() {
+		return target;
+	}
+
+	/**
+	 * Start the worker thread.
+	 */
+	void start() {
+		running = true;
+		worker.start();
+	}
+
+	/**
+	 * Stop the worker thread once the events already queued have been
+	 * delivered.
+	 */
+	void stop() {
+		lock.lock();
+		try {
+			running = false;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of events waiting to be delivered.
+	 *
+	 * @return
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of events discarded by DROP_OLDEST.
+	 *
+	 * @return
+	 */
+	long getDroppedCount() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of events replaced by CONFLATE.
+	 *
+	 * @return
+	 */
+	long getConflatedCount() {
+		lock.lock();
+		try {
+			return conflated;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	// DELEGATE INTERFACES //
+
+	@Override
+	public void onAsk(DelegatorStrategy sender, AskEvent askEvent) {
+		enqueue(Delegator.ASK, sender, askEvent, askEvent.getSymbol());
+	}
+
+	@Override
+	public void onBid(DelegatorStrategy sender, BidEvent bidEvent) {
+		enqueue(Delegator.BID, sender, bidEvent, bidEvent.getSymbol());
+	}
+
+	@Override
+	public void onTrade(DelegatorStrategy sender, TradeEvent tradeEvent) {
+		enqueue(Delegator.TRADE, sender, tradeEvent, tradeEvent.getSymbol());
+	}
+
+	@Override
+	public void onExecutionReport(DelegatorStrategy sender, ExecutionReport report) {
+		enqueue(Delegator.EXECUTION_REPORT, sender, report, null);
+	}
+
+	@Override
+	public void onBrokerStatus(DelegatorStrategy sender, BrokerStatus status) {
+		enqueue(Delegator.BROKER_STATUS, sender, status, null);
+	}
+
+	@Override
+	public void onServerStatus(DelegatorStrategy sender, boolean status) {
+		enqueue(Delegator.SERVER_STATUS, sender, Boolean.valueOf(status), null);
+	}
+
+	@Override
+	public void onCancelReject(DelegatorStrategy sender, OrderCancelReject reject) {
+		enqueue(Delegator.CANCEL_REJECT, sender, reject, null);
+	}
+
+	@Override
+	public void onOther(DelegatorStrategy sender, Object message) {
+		enqueue(Delegator.OTHER, sender, message, null);
+	}
+
+	@Override
+	public void onCallback(DelegatorStrategy sender, Object message) {
+		enqueue(Delegator.CALLBACK, sender, message, null);
+	}
+
+	@Override
+	public void onStart(DelegatorStrategy sender) {
+		enqueue(Delegator.START, sender, null, null);
+	}
+
+	@Override
+	public void onStop(DelegatorStrategy sender) {
+		enqueue(Delegator.STOP, sender, null, null);
+	}
+
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Queue an event, applying the overflow policy of its type.
+	 */
+	private void enqueue( int kind, DelegatorStrategy sender, Object message, Object symbol ) {
+		OverflowPolicy policy = policies[kind];
+		lock.lock();
+		try {
+			if ( policy == OverflowPolicy.CONFLATE ) {
+				Entry queued = conflationIndex(kind).get(symbol);
+				if ( queued != null ) {
+					queued.message = message;
+					queued.sender = sender;
+					conflated++;
+					return;
+				}
+			}
+
+			while ( count == ring.length && running ) {
+				if ( policy == OverflowPolicy.DROP_OLDEST && evictOldestDroppable() ) {
+					dropped++;
+				} else {
+					notFull.awaitUninterruptibly();
+				}
+			}
+			if ( !running ) return;
+
+			Entry entry = ring[(head + count) % ring.length];
+			entry.kind = kind;
+			entry.sender = sender;
+			entry.message = message;
+			entry.symbol = symbol;
+			if ( policy == OverflowPolicy.CONFLATE ) {
+				conflationIndex(kind).put(symbol, entry);
+			}
+			count++;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the entry at the head of the queue.  Must hold the lock.
+	 */
+	private Entry take() {
+		Entry entry = ring[head];
+		head = (head + 1) % ring.length;
+		count--;
+		Map<Object,Entry> index = conflationIndex(entry.kind);
+		if ( index != null && entry.symbol != null && index.get(entry.symbol) == entry ) {
+			index.remove(entry.symbol);
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes the oldest queued entry whose type uses DROP_OLDEST, moving
+	 * the entries ahead of it up by one slot.  Entries of the other types
+	 * (e.g. execution reports) are never evicted.  Must hold the lock.
+	 * 
+	 * @return false if no queued entry may be dropped
+	 */
+	private boolean evictOldestDroppable() {
+		for ( int i = 0; i < count; i++ ) {
+			int slot = (head + i) % ring.length;
+			Entry entry = ring[slot];
+			if ( policies[entry.kind] != OverflowPolicy.DROP_OLDEST ) continue;
+
+			/* unlink: shift the older entries toward the evicted slot */
+			for ( int j = i; j > 0; j-- ) {
+				ring[(head + j) % ring.length] = ring[(head + j - 1) % ring.length];
+			}
+			ring[head] = entry;
+			take();
+			release(entry);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Clears an entry that has left the queue so that it does not retain
+	 * the event.  Must hold the lock.
+	 */
+	private void release( Entry entry ) {
+		entry.message = null;
+		entry.symbol = null;
+		entry.sender = null;
+	}
+
+	private Map<Object,Entry> conflationIndex( int kind ) {
+		switch ( kind ) {
+		case Delegator.ASK: 	return queuedAsks;
+		case Delegator.BID: 	return queuedBids;
+		case Delegator.TRADE: 	return queuedTrades;
+		default: 				return null;
+		}
+	}
+
+	/**
+	 * Worker loop: delivers queued events to the target, in order.
+	 */
+	private void work() {
+		while ( true ) {
+			int kind;
+			Object message;
+			DelegatorStrategy sender;
+
+			lock.lock();
+			try {
+				while ( count == 0 ) {
+					if ( !running ) return;
+					notEmpty.awaitUninterruptibly();
+				}
+				Entry entry = take();
+				kind = entry.kind;
+				message = entry.message;
+				sender = entry.sender;
+				release(entry);
+				notFull.signal();
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				deliver(kind, sender, message);
+			} catch (Exception e) {
+				logger.error(">>> Delegate " + target + " failed to handle event.", e);
+			}
+		}
+	}
+
+	/**
+	 * Hands an event to the target through its typed interface.
+	 */
+	private void deliver( int kind, DelegatorStrategy sender, Object message ) {
+		switch ( kind ) {
+		case Delegator.ASK:
+			((AskDelegate)target).onAsk(sender, (AskEvent)message); break;
+		case Delegator.BID:
+			((BidDelegate)target).onBid(sender, (BidEvent)message); break;
+		case Delegator.TRADE:
+			((TradeDelegate)target).onTrade(sender, (TradeEvent)message); break;
+		case Delegator.EXECUTION_REPORT:
+			((ExecutionReportDelegate)target).onExecutionReport(sender, (ExecutionReport)message); break;
+		case Delegator.BROKER_STATUS:
+			((BrokerStatusDelegate)target).onBrokerStatus(sender, (BrokerStatus)message); break;
+		case Delegator.SERVER_STATUS:
+			((ServerStatusDelegate)target).onServerStatus(sender, ((Boolean)message).booleanValue()); break;
+		case Delegator.CANCEL_REJECT:
+			((OrderCancelRejectDelegate)target).onCancelReject(sender, (OrderCancelReject)message); break;
+		case Delegator.OTHER:
+			((OtherDelegate)target).onOther(sender, message); break;
+		case Delegator.CALLBACK:
+			((CallbackDelegate)target).onCallback(sender, message); break;
+		case Delegator.START:
+			((StartDelegate)target).onStart(sender); break;
+		case Delegator.STOP:
+			((StopDelegate)target).onStop(sender); break;
+		}
+	}
+
+}
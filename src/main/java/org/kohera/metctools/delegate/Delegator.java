@@ -1,33 +1,50 @@
 package org.kohera.metctools.delegate;
 
-import java.lang.reflect.Method;
-import java.util.AbstractList;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import org.kohera.metctools.util.Table;
+import org.apache.log4j.Logger;
 import org.kohera.metctools.DelegatorStrategy;
+import org.marketcetera.client.brokers.BrokerStatus;
+import org.marketcetera.event.AskEvent;
+import org.marketcetera.event.BidEvent;
+import org.marketcetera.event.TradeEvent;
+import org.marketcetera.trade.ExecutionReport;
+import org.marketcetera.trade.OrderCancelReject;
 
 /**
  * The delegator handles delegation of events to the appropriate objects.
- * 
+ *
  * Delegate objects must implement some subinterface of EventDelegate, one
  * of the interfaces mentioned in EVENTS_ARRAY.  Then, a delegate object is
  * added to the Delegator, after which the delegate() method will broadcast
  * objects to the appropriate destinations.
+ *
+ * The interfaces implemented by a delegate are resolved once, when the
+ * delegate is added.  Each event type keeps its own array of delegates,
+ * so that delivering an event is a plain loop of interface calls, with
+ * no reflection and no allocation.
  * 
+ * The arrays are never modified in place: adding or removing a delegate
+ * builds a new array and swaps it in atomically.  Dispatching threads
+ * therefore never block, and always iterate over a consistent snapshot.
  * 
+ * Delegates added with addAsyncDelegate() are wrapped so that they are
+ * fed through their own bounded queue and worker thread; a slow delegate
+ * then no longer holds up the others or the event thread.
+ *
  * @author Jake Brukhman
  *
  */
 
 public final class Delegator {
-	
+
 	/* fields */
-	public static final Class<?>[] EVENTS_ARRAY = { 
-		AskDelegate.class, 
+	public static final Class<?>[] EVENTS_ARRAY = {
+		AskDelegate.class,
 		BidDelegate.class,
 		TradeDelegate.class,
 		ExecutionReportDelegate.class,
@@ -41,82 +58,363 @@ public final class Delegator {
 	};
 	public static final Collection<Class<?>> EVENTS_COLLECTION =
 		Arrays.asList(EVENTS_ARRAY);
-	
+
+	/* indices into EVENTS_ARRAY */
+	static final int ASK 				= 0;
+	static final int BID 				= 1;
+	static final int TRADE 				= 2;
+	static final int EXECUTION_REPORT 	= 3;
+	static final int BROKER_STATUS 		= 4;
+	static final int SERVER_STATUS 		= 5;
+	static final int CANCEL_REJECT 		= 6;
+	static final int OTHER 				= 7;
+	static final int CALLBACK 			= 8;
+	static final int START 				= 9;
+	static final int STOP 				= 10;
+
+	private static final EventDelegate[] EMPTY = new EventDelegate[0];
+
 	/* members */
-	private Table<Class<?>,EventDelegate> delegates;
+	private final AtomicReferenceArray<EventDelegate[]> delegates;
+	private final ConcurrentMap<EventDelegate,AsyncDelegate> asyncDelegates;
+	private final OverflowPolicy[] overflowPolicies;
 	private DelegatorStrategy parent;
-	
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(Delegator.class);
+
 	/**
-	 * Create a new Delegator which can relay requests back to a 
+	 * Create a new Delegator which can relay requests back to a
 	 * particular AdvancedStrategy.
-	 * 
+	 *
 	 * @param sender
 	 */
 	public Delegator(DelegatorStrategy sender) {
-		delegates = new Table<Class<?>,EventDelegate>();
+		delegates = new AtomicReferenceArray<EventDelegate[]>(EVENTS_ARRAY.length);
+		for ( int i = 0; i < EVENTS_ARRAY.length; i++ ) {
+			delegates.set(i, EMPTY);
+		}
+		asyncDelegates = new ConcurrentHashMap<EventDelegate,AsyncDelegate>();
+		overflowPolicies = new OverflowPolicy[EVENTS_ARRAY.length];
+		Arrays.fill(overflowPolicies, OverflowPolicy.BLOCK);
 		this.parent = sender;
 	}
 
 	/**
 	 * Add a delegate.
+	 * 
+	 * Safe to call from any thread while events are being delivered; a
+	 * delivery already in progress will not see the new delegate.
+	 * 
 	 * @param delegate
 	 */
 	public void addDelegate( EventDelegate delegate ) {
-		for ( Class<?> interf : getInterfaces(delegate) ) {
-			delegates.add(interf, delegate);
+		for ( int i = 0; i < EVENTS_ARRAY.length; i++ ) {
+			if ( EVENTS_ARRAY[i].isInstance(delegate) ) {
+				insert(i, delegate);
+			}
+		}
+	}
+
+	/**
+	 * Add a delegate that receives its events asynchronously, on its own
+	 * worker thread, through a bounded queue of the given capacity.
+	 * 
+	 * When the queue is full, the overflow policy of the event type (see
+	 * setOverflowPolicy()) decides what happens.  The policies in effect
+	 * when the delegate is added are the ones it keeps.
+	 * 
+	 * @param delegate
+	 * @param capacity
+	 */
+	public void addAsyncDelegate( EventDelegate delegate, int capacity ) {
+		AsyncDelegate async = new AsyncDelegate(delegate, capacity, overflowPolicies);
+		if ( asyncDelegates.putIfAbsent(delegate, async) != null ) {
+			throw new IllegalArgumentException("Delegate is already registered asynchronously: " + delegate);
+		}
+		async.start();
+		for ( int i = 0; i < EVENTS_ARRAY.length; i++ ) {
+			if ( EVENTS_ARRAY[i].isInstance(delegate) ) {
+				insert(i, async);
+			}
+		}
+	}
+
+	/**
+	 * Set the overflow policy for an event type, given by its delegate
+	 * interface, for asynchronous delegates added from now on.
+	 * 
+	 * CONFLATE only applies to AskDelegate, BidDelegate and TradeDelegate.
+	 * ExecutionReportDelegate, OrderCancelRejectDelegate, StartDelegate and
+	 * StopDelegate events are always delivered in order and without loss,
+	 * and only accept BLOCK.
+	 * 
+	 * @param key
+	 * @param policy
+	 */
+	public void setOverflowPolicy( Class<?> key, OverflowPolicy policy ) {
+		int i = indexOfEvent(key);
+		switch ( i ) {
+		case ASK: case BID: case TRADE:
+			break;
+		case EXECUTION_REPORT: case CANCEL_REJECT: case START: case STOP:
+			if ( policy != OverflowPolicy.BLOCK ) {
+				throw new IllegalArgumentException(key.getSimpleName() + " events must use BLOCK.");
+			}
+			break;
+		case -1:
+			throw new IllegalArgumentException("Not a delegate interface: " + key);
+		default:
+			if ( policy == OverflowPolicy.CONFLATE ) {
+				throw new IllegalArgumentException(key.getSimpleName() + " events cannot be conflated.");
+			}
 		}
+		overflowPolicies[i] = policy;
 	}
-	
+
 	/**
 	 * Remove a delegate.
+	 * 
+	 * Safe to call from any thread while events are being delivered; a
+	 * delivery already in progress may still reach the removed delegate.
+	 * An asynchronous delegate still receives the events already in its
+	 * queue.
+	 * 
 	 * @param delegate
 	 */
 	public void removeDelegate(EventDelegate delegate) {
-		for ( Class<?> interf : getInterfaces(delegate) ) {
-			delegates.remove(interf, delegate);
+		AsyncDelegate async = asyncDelegates.remove(delegate);
+		EventDelegate registered = (async != null) ? async : delegate;
+		for ( int i = 0; i < EVENTS_ARRAY.length; i++ ) {
+			remove(i, registered);
+		}
+		if ( async != null ) {
+			async.stop();
+		}
+	}
+
+	/**
+	 * Stop the worker threads of all the asynchronous delegates, once they
+	 * have delivered the events already in their queues.  The delegates
+	 * stay registered, but the events sent to them from now on are dropped.
+	 * 
+	 * Called when the strategy stops, after delegateStop().
+	 */
+	public void stopAsyncDelegates() {
+		for ( AsyncDelegate async : asyncDelegates.values() ) {
+			async.stop();
 		}
 	}
 
 	/**
 	 * Delegate a message to all delegates of a certain interface type
 	 * given by key.
-	 * 
+	 *
+	 * The typed methods (delegateAsk(), delegateBid(), etc.) should be
+	 * preferred on hot paths, as they avoid resolving the key.  A key that
+	 * is not one of EVENTS_ARRAY has no delegates; the message is dropped
+	 * with a warning.
+	 *
 	 * @param key
 	 * @param message
 	 */
 	public void delegate(Class<?> key, Object message) {
-		if ( delegates.containsKey(key) ) {
-			List<EventDelegate> list = delegates.get(key);
-			for ( EventDelegate delegate : list ) {
-				Method m = key.getMethods()[0];
-				try {
-					int length = m.getParameterTypes().length;
-					if ( length == 2 ) {
-						m.invoke(delegate,parent,message);
-					} else if ( length == 1 ) {
-						m.invoke(delegate,parent);
-					} else throw new RuntimeException("Delegate wrong number of parameters: " + m.toString());
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+		switch ( indexOfEvent(key) ) {
+		case ASK: 				delegateAsk((AskEvent)message); break;
+		case BID: 				delegateBid((BidEvent)message); break;
+		case TRADE: 			delegateTrade((TradeEvent)message); break;
+		case EXECUTION_REPORT: 	delegateExecutionReport((ExecutionReport)message); break;
+		case BROKER_STATUS: 	delegateBrokerStatus((BrokerStatus)message); break;
+		case SERVER_STATUS: 	delegateServerStatus((Boolean)message); break;
+		case CANCEL_REJECT: 	delegateCancelReject((OrderCancelReject)message); break;
+		case OTHER: 			delegateOther(message); break;
+		case CALLBACK: 			delegateCallback(message); break;
+		case START: 			delegateStart(); break;
+		case STOP: 				delegateStop(); break;
+		default:
+			logger.warn(">>> Not a delegate interface: " + key + " (message ignored).");
+		}
+	}
+
+	public void delegateAsk(AskEvent event) {
+		EventDelegate[] list = delegates.get(ASK);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((AskDelegate)list[i]).onAsk(parent, event);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void delegateBid(BidEvent event) {
+		EventDelegate[] list = delegates.get(BID);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((BidDelegate)list[i]).onBid(parent, event);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void delegateTrade(TradeEvent event) {
+		EventDelegate[] list = delegates.get(TRADE);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((TradeDelegate)list[i]).onTrade(parent, event);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void delegateExecutionReport(ExecutionReport report) {
+		EventDelegate[] list = delegates.get(EXECUTION_REPORT);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((ExecutionReportDelegate)list[i]).onExecutionReport(parent, report);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void delegateBrokerStatus(BrokerStatus status) {
+		EventDelegate[] list = delegates.get(BROKER_STATUS);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((BrokerStatusDelegate)list[i]).onBrokerStatus(parent, status);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void delegateServerStatus(boolean status) {
+		EventDelegate[] list = delegates.get(SERVER_STATUS);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((ServerStatusDelegate)list[i]).onServerStatus(parent, status);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void delegateCancelReject(OrderCancelReject reject) {
+		EventDelegate[] list = delegates.get(CANCEL_REJECT);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((OrderCancelRejectDelegate)list[i]).onCancelReject(parent, reject);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void delegateOther(Object message) {
+		EventDelegate[] list = delegates.get(OTHER);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((OtherDelegate)list[i]).onOther(parent, message);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void delegateCallback(Object message) {
+		EventDelegate[] list = delegates.get(CALLBACK);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((CallbackDelegate)list[i]).onCallback(parent, message);
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
 		}
 	}
-	
+
+	public void delegateStart() {
+		EventDelegate[] list = delegates.get(START);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((StartDelegate)list[i]).onStart(parent);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void delegateStop() {
+		EventDelegate[] list = delegates.get(STOP);
+		for ( int i = 0; i < list.length; i++ ) {
+			try {
+				((StopDelegate)list[i]).onStop(parent);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/**
-	 * Utility method to extract only the correct implemented interfaces
-	 * from a given EventDelegate object.
-	 * 
+	 * Atomically appends a delegate to the array of event type i.
+	 */
+	private void insert( int i, EventDelegate delegate ) {
+		EventDelegate[] current, next;
+		do {
+			current = delegates.get(i);
+			next = Arrays.copyOf(current, current.length+1);
+			next[current.length] = delegate;
+		} while ( !delegates.compareAndSet(i, current, next) );
+	}
+
+	/**
+	 * Atomically removes a delegate, if present, from the array of
+	 * event type i.
+	 */
+	private void remove( int i, EventDelegate delegate ) {
+		EventDelegate[] current, next;
+		do {
+			current = delegates.get(i);
+			int index = indexOf(current, delegate);
+			if ( index < 0 ) return;
+
+			next = new EventDelegate[current.length-1];
+			System.arraycopy(current, 0, next, 0, index);
+			System.arraycopy(current, index+1, next, index, next.length-index);
+			if ( next.length == 0 ) next = EMPTY;
+		} while ( !delegates.compareAndSet(i, current, next) );
+	}
+
+	/**
+	 * Utility method that returns the index of a delegate interface
+	 * in EVENTS_ARRAY, or -1.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private static int indexOfEvent( Class<?> key ) {
+		for ( int i = 0; i < EVENTS_ARRAY.length; i++ ) {
+			if ( EVENTS_ARRAY[i] == key ) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Utility method that returns the index of a delegate in an
+	 * array, or -1.
+	 *
+	 * @param list
 	 * @param delegate
 	 * @return
 	 */
-	private List<Class<?>> getInterfaces( EventDelegate delegate ) {
-		ArrayList<Class<?>> interfaces = new ArrayList<Class<?>>();
-		for ( Class<?> clazz : delegate.getClass().getInterfaces() ) {
-			interfaces.add(clazz);
+	private static int indexOf( EventDelegate[] list, EventDelegate delegate ) {
+		for ( int i = 0; i < list.length; i++ ) {
+			if ( list[i].equals(delegate) ) return i;
 		}
-		interfaces.retainAll(EVENTS_COLLECTION);
-		return interfaces;
+		return -1;
 	}
-	
+
 }
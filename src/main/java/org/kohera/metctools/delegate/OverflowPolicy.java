@@ -0,0 +1,34 @@
+package org.kohera.metctools.delegate;
+
+/**
+ * Describes what an asynchronous delegate queue does with a new event
+ * when the queue is full.
+ *
+ * @see Delegator#addAsyncDelegate(EventDelegate, int)
+ * @author Jake Brukhman
+ *
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * The dispatching thread waits until there is room in the queue.
+	 * Nothing is lost.
+	 */
+	BLOCK,
+
+	/**
+	 * The oldest queued event of a DROP_OLDEST type is discarded to make
+	 * room for the new one; events of other types are never discarded.
+	 * If none is queued, the dispatching thread waits as with BLOCK.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * If an event of the same type for the same symbol is already queued,
+	 * it is replaced in place by the new event; otherwise, the dispatching
+	 * thread waits as with BLOCK.  Only applies to Ask, Bid and Trade
+	 * events.
+	 */
+	CONFLATE
+
+}
@@ -0,0 +1,96 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of a parallel Portfolio.forEach().
+ *
+ * Every Trade of the portfolio ends up in exactly one of three groups:
+ * the action completed, the action threw (see getFailures()), or the
+ * deadline passed before the action ran or returned (see getIncomplete()).
+ *
+ * @see Portfolio#forEach(Action, java.util.concurrent.Executor, int, long)
+ * @author Jake Brukhman
+ *
+ */
+public final class ActionReport {
+
+	/* fields */
+	private final int size;
+	private final int completed;
+	private final Map<String,Throwable> failures;
+	private final List<Trade> incomplete;
+
+	ActionReport( int size, int completed, Map<String,Throwable> failures, List<Trade> incomplete ) {
+		this.size = size;
+		this.completed = completed;
+		this.failures = Collections.unmodifiableMap(new LinkedHashMap<String,Throwable>(failures));
+		this.incomplete = Collections.unmodifiableList(new ArrayList<Trade>(incomplete));
+	}
+
+	/**
+	 * Returns true if and only if the action completed for every Trade.
+	 *
+	 * @return
+	 */
+	public boolean isSuccess() {
+		return completed == size;
+	}
+
+	/**
+	 * Returns true if and only if the action ran to the end, successfully
+	 * or not, for every Trade before the deadline.
+	 *
+	 * @return
+	 */
+	public boolean isComplete() {
+		return incomplete.isEmpty();
+	}
+
+	/**
+	 * Returns the number of Trades the action was performed on.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of Trades for which the action completed.
+	 *
+	 * @return
+	 */
+	public int getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Returns the exception thrown by the action, by symbol.
+	 *
+	 * @return
+	 */
+	public Map<String,Throwable> getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Returns the Trades for which the action had not returned by the
+	 * deadline.
+	 *
+	 * @return
+	 */
+	public List<Trade> getIncomplete() {
+		return incomplete;
+	}
+
+	@Override
+	public String toString() {
+		return "ActionReport{" + completed + "/" + size + " completed, " +
+			failures.size() + " failed, " + incomplete.size() + " incomplete}";
+	}
+}
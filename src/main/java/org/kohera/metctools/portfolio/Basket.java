@@ -0,0 +1,217 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.marketcetera.trade.OrderSingle;
+
+/**
+ * A batch of market orders on the Trades of a Portfolio.
+ *
+ * Legs are added with add(), close() or closeAll(), then submit() builds
+ * every OrderSingle in one pass and sends them back to back, without
+ * waiting on any of them and without a timer per order.  The returned
+ * BasketFuture tracks the whole basket with a single timeout, and reports
+ * the outcome of each leg.
+ *
+ * A Trade has at most one leg, since it can only have one order pending.
+ * Closing legs for Trades with a pending order first cancel that order,
+ * then close the position once the cancel completes.  Other legs on a
+ * Trade with a pending order are not sent.
+ *
+ * @see Portfolio#basket()
+ * @author Jake Brukhman
+ *
+ */
+public final class Basket {
+
+	/**
+	 * One order of the basket.  A null side closes the position.
+	 */
+	private static final class Leg {
+		final Trade trade;
+		final BigDecimal qty;
+		final Side side;
+
+		Leg( Trade trade, BigDecimal qty, Side side ) {
+			this.trade = trade;
+			this.qty = qty;
+			this.side = side;
+		}
+	}
+
+	/* fields */
+	private final Portfolio portfolio;
+	private final List<Leg> legs;
+	private final Set<Trade> traded;			// Trades that already have a leg
+	private boolean submitted;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(Basket.class);
+
+	/**
+	 * Create a new, empty Basket on the given portfolio.
+	 *
+	 * @param portfolio
+	 */
+	Basket( Portfolio portfolio ) {
+		this.portfolio = portfolio;
+		this.legs = new ArrayList<Leg>();
+		this.traded = Collections.newSetFromMap(new IdentityHashMap<Trade,Boolean>());
+	}
+
+	/**
+	 * Adds a market order for the given Trade.
+	 *
+	 * @param trade
+	 * @param qty
+	 * @param side
+	 * @return this basket
+	 * @throws IllegalArgumentException if the Trade already has a leg
+	 */
+	public Basket add( Trade trade, BigDecimal qty, Side side ) {
+		checkNotSubmitted();
+		if ( side == null || side == Side.NONE ) {
+			throw new IllegalArgumentException("Basket order needs a side: " + trade);
+		}
+		checkNoLeg(trade);
+		addLeg(new Leg(trade, qty, side));
+		return this;
+	}
+
+	/**
+	 * Adds an order closing the position of the given Trade.
+	 *
+	 * @param trade
+	 * @return this basket
+	 * @throws IllegalArgumentException if the Trade already has a leg
+	 */
+	public Basket close( Trade trade ) {
+		checkNotSubmitted();
+		checkNoLeg(trade);
+		addLeg(new Leg(trade, null, null));
+		return this;
+	}
+
+	/**
+	 * Adds an order closing the position of each open or pending Trade of
+	 * the portfolio that does not have a leg yet.
+	 *
+	 * @return this basket
+	 */
+	public Basket closeAll() {
+		checkNotSubmitted();
+		for ( Trade trade : portfolio.getTrades() ) {
+			if ( (trade.isOpen() || trade.isPending()) && !traded.contains(trade) ) {
+				addLeg(new Leg(trade, null, null));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the number of legs.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return legs.size();
+	}
+
+	/**
+	 * Builds and sends all the orders.  A basket can be submitted once.
+	 *
+	 * @param timeout	milliseconds for the whole basket, or 0 for none
+	 * @param cancelOnTimeout	if true, the orders still pending when the
+	 * 							timeout expires are canceled
+	 * @return the handle of the basket
+	 */
+	public BasketFuture submit( long timeout, boolean cancelOnTimeout ) {
+		checkNotSubmitted();
+		submitted = true;
+
+		int n = legs.size();
+		OrderSingle[] orders = new OrderSingle[n];
+		OrderFuture[] futures = new OrderFuture[n];
+
+		/* first pass: build the orders */
+		for ( int i = 0; i < n; i++ ) {
+			Leg leg = legs.get(i);
+			Trade trade = leg.trade;
+			try {
+				if ( leg.side == null && trade.isPending() ) {
+					/* sent in the second pass: cancel, then close */
+					continue;
+				} else if ( trade.isPending() ) {
+					logger.warn(">>> " + trade + ": Order pending; basket order not sent.");
+				} else if ( leg.side == null ) {
+					if ( trade.isOpen() ) {
+						orders[i] = trade.getOrderProcessor()
+							.buildMarket(trade.getQty(), trade.getSide().opposite());
+					}
+				} else {
+					orders[i] = trade.getOrderProcessor().buildMarket(leg.qty, leg.side);
+				}
+			} catch (RuntimeException e) {
+				logger.error(">>> " + trade + ": Could not build basket order.", e);
+			}
+		}
+
+		/* second pass: send them back to back */
+		for ( int i = 0; i < n; i++ ) {
+			Leg leg = legs.get(i);
+			Trade trade = leg.trade;
+			try {
+				if ( orders[i] != null ) {
+					futures[i] = trade.getOrderProcessor().submit(orders[i]);
+				} else if ( leg.side == null && trade.isPending() ) {
+					futures[i] = trade.order().closeMarketAsync(0, null);
+				}
+			} catch (RuntimeException e) {
+				logger.error(">>> " + trade + ": Could not send basket order.", e);
+			}
+			if ( futures[i] == null ) {
+				futures[i] = OrderFuture.completed(OrderOutcome.NOT_SENT);
+			}
+		}
+
+		Trade[] trades = new Trade[n];
+		for ( int i = 0; i < n; i++ ) {
+			trades[i] = legs.get(i).trade;
+		}
+		logger.debug(">>> Submitted basket of " + n + " orders.");
+		return new BasketFuture(trades, futures, timeout, cancelOnTimeout);
+	}
+
+	/**
+	 * Builds and sends all the orders, without a timeout.
+	 *
+	 * @return the handle of the basket
+	 */
+	public BasketFuture submit() {
+		return submit(0, false);
+	}
+
+	private void addLeg( Leg leg ) {
+		legs.add(leg);
+		traded.add(leg.trade);
+	}
+
+	private void checkNoLeg( Trade trade ) {
+		if ( traded.contains(trade) ) {
+			throw new IllegalArgumentException("Basket already has a leg for " + trade + ".");
+		}
+	}
+
+	private void checkNotSubmitted() {
+		if ( submitted ) {
+			throw new IllegalStateException("Basket has already been submitted.");
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.Timer;
+
+/**
+ * Completion handle of a submitted Basket.
+ *
+ * The handle is done when every leg has completed, and settled when it is
+ * done or its timeout has expired, whichever comes first.  In both cases,
+ * getOutcomes() reports how each leg ended; legs that were still working
+ * at the timeout have a null outcome.
+ *
+ * @author Jake Brukhman
+ *
+ */
+public final class BasketFuture {
+
+	/**
+	 * Receives the handle once it settles.
+	 */
+	public interface Listener {
+		public void onSettled( BasketFuture basket );
+	}
+
+	/* fields */
+	private final Trade[] trades;
+	private final OrderFuture[] futures;
+	private final AtomicInteger remaining;
+	private final CountDownLatch settled;
+	private final boolean cancelOnTimeout;
+	private volatile boolean timedOut;
+	private Timer.Timeout timeoutTask;
+	private List<Listener> listeners;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(BasketFuture.class);
+
+	BasketFuture( Trade[] trades, OrderFuture[] futures, long timeout,
+			boolean cancelOnTimeout ) {
+		this.trades = trades;
+		this.futures = futures;
+		this.cancelOnTimeout = cancelOnTimeout;
+		this.remaining = new AtomicInteger(futures.length + 1);
+		this.settled = new CountDownLatch(1);
+
+		if ( timeout > 0 ) {
+			Timer.Timeout task = OrderScheduler.schedule(timeout, new Runnable() {
+				@Override
+				public void run() {
+					expire();
+				}
+			});
+			synchronized(this) {
+				timeoutTask = task;
+			}
+		}
+
+		OrderListener onLeg = new OrderListener() {
+			@Override
+			public void onComplete(OrderFuture future) {
+				legCompleted();
+			}
+		};
+		for ( OrderFuture future : futures ) {
+			future.addListener(onLeg);
+		}
+		/* the extra count keeps an empty basket from settling before now */
+		legCompleted();
+	}
+
+	/**
+	 * Returns the number of legs.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return futures.length;
+	}
+
+	/**
+	 * Returns true if and only if every leg has completed.
+	 *
+	 * @return
+	 */
+	public boolean isDone() {
+		return remaining.get() == 0;
+	}
+
+	/**
+	 * Returns true if and only if the basket is done or timed out.
+	 *
+	 * @return
+	 */
+	public boolean isSettled() {
+		return settled.getCount() == 0;
+	}
+
+	/**
+	 * Returns true if and only if the timeout expired before every leg
+	 * completed.
+	 *
+	 * @return
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Waits until the basket settles.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException {
+		settled.await();
+	}
+
+	/**
+	 * Waits until the basket settles, or the given number of milliseconds
+	 * has elapsed.
+	 *
+	 * @param timeout
+	 * @return true if the basket has settled
+	 * @throws InterruptedException
+	 */
+	public boolean await( long timeout ) throws InterruptedException {
+		return settled.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the completion handle of each leg, in the order of the legs.
+	 *
+	 * @return
+	 */
+	public List<OrderFuture> getOrders() {
+		List<OrderFuture> list = new ArrayList<OrderFuture>(futures.length);
+		Collections.addAll(list, futures);
+		return list;
+	}
+
+	/**
+	 * Returns the outcome of each leg by symbol (null if still working).
+	 *
+	 * @return
+	 */
+	public Map<String,OrderOutcome> getOutcomes() {
+		Map<String,OrderOutcome> outcomes = new LinkedHashMap<String,OrderOutcome>();
+		for ( int i = 0; i < futures.length; i++ ) {
+			outcomes.put(trades[i].getSymbol(), futures[i].getOutcome());
+		}
+		return outcomes;
+	}
+
+	/**
+	 * Returns the number of legs that ended with the given outcome.
+	 *
+	 * @param outcome
+	 * @return
+	 */
+	public int count( OrderOutcome outcome ) {
+		int n = 0;
+		for ( OrderFuture future : futures ) {
+			if ( future.getOutcome() == outcome ) n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the Trades whose leg has not completed.
+	 *
+	 * @return
+	 */
+	public List<Trade> getIncomplete() {
+		List<Trade> list = new ArrayList<Trade>();
+		for ( int i = 0; i < futures.length; i++ ) {
+			if ( !futures[i].isDone() ) list.add(trades[i]);
+		}
+		return list;
+	}
+
+	/**
+	 * Adds a listener to be run on a worker thread once the basket
+	 * settles, or right away if it has.
+	 *
+	 * @param listener
+	 * @return this handle
+	 */
+	public BasketFuture addListener( Listener listener ) {
+		synchronized(this) {
+			if ( !isSettled() ) {
+				if ( listeners == null ) {
+					listeners = new ArrayList<Listener>(2);
+				}
+				listeners.add(listener);
+				return this;
+			}
+		}
+		notifyListener(listener);
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder("Basket{");
+		str.append(futures.length).append(" legs");
+		for ( OrderOutcome outcome : OrderOutcome.values() ) {
+			int n = count(outcome);
+			if ( n > 0 ) str.append(", ").append(n).append(' ').append(outcome);
+		}
+		int working = futures.length - countDone();
+		if ( working > 0 ) {
+			str.append(", ").append(working).append(timedOut ? " TIMED_OUT" : " WORKING");
+		}
+		return str.append('}').toString();
+	}
+
+
+	// PRIVATE METHODS //
+
+	private int countDone() {
+		int n = 0;
+		for ( OrderFuture future : futures ) {
+			if ( future.isDone() ) n++;
+		}
+		return n;
+	}
+
+	private void legCompleted() {
+		if ( remaining.decrementAndGet() == 0 ) {
+			synchronized(this) {
+				if ( timeoutTask != null ) {
+					timeoutTask.cancel();
+					timeoutTask = null;
+				}
+			}
+			settle();
+		}
+	}
+
+	private void expire() {
+		if ( isDone() ) return;
+		timedOut = true;
+		if ( cancelOnTimeout ) {
+			for ( int i = 0; i < futures.length; i++ ) {
+				if ( !futures[i].isDone() && trades[i].isPending() ) {
+					try {
+						trades[i].order().cancel(false);
+					} catch (Exception e) {
+						logger.error(">>> " + trades[i] + ": Could not cancel basket order.", e);
+					}
+				}
+			}
+		}
+		logger.warn(">>> Basket timed out: " + this + " Incomplete: " + getIncomplete());
+		settle();
+	}
+
+	private void settle() {
+		List<Listener> toNotify;
+		synchronized(this) {
+			if ( isSettled() ) return;
+			settled.countDown();
+			toNotify = listeners;
+			listeners = null;
+		}
+		logger.debug(">>> " + this);
+		if ( toNotify != null ) {
+			for ( Listener listener : toNotify ) {
+				notifyListener(listener);
+			}
+		}
+	}
+
+	private void notifyListener( final Listener listener ) {
+		OrderScheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					listener.onSettled(BasketFuture.this);
+				} catch (Exception e) {
+					logger.error(">>> Basket listener failed for " + BasketFuture.this + ".", e);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,363 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.DelegatorStrategy.Framework;
+import org.marketcetera.trade.BrokerID;
+import org.marketcetera.trade.OrderID;
+
+/**
+ * Message-rate limit of a broker, shared by every Trade that sends to it.
+ *
+ * Orders, cancels and replaces are released through a token bucket: up
+ * to burst messages may go out at once, after which messages go out at
+ * the configured rate.  A message that finds a token and an empty queue
+ * is sent on the calling thread; the others are queued and released by
+ * the shared timing wheel as tokens come in.  Queued cancels and replaces
+ * go out before queued new orders, except that a cancel or replace never
+ * overtakes the order it targets; canceling an order that is still queued
+ * simply takes it off the queue.
+ *
+ * Brokers without a configured limit are not throttled.  Messages of one
+ * broker are sent in the order they are released.
+ *
+ * @see #setLimit(BrokerID, double, int)
+ * @author Jake Brukhman
+ *
+ */
+public final class BrokerThrottle {
+
+	/* registry of the configured brokers */
+	private static final ConcurrentMap<BrokerID,BrokerThrottle> throttles =
+		new ConcurrentHashMap<BrokerID,BrokerThrottle>();
+
+	/**
+	 * A message waiting for a token.
+	 */
+	private static final class Message {
+		final Framework framework;
+		final Object message;
+		final OrderID orderId;
+		final OrderID target;			// order canceled or replaced, or null
+		final OrderTimestamps stamps;	// timestamps of a new order, or null
+		final long queued = System.nanoTime();
+
+		Message( Framework framework, Object message, OrderID orderId, OrderID target,
+				OrderTimestamps stamps ) {
+			this.framework = framework;
+			this.message = message;
+			this.orderId = orderId;
+			this.target = target;
+			this.stamps = stamps;
+		}
+	}
+
+	/* fields */
+	private final BrokerID brokerId;
+	private volatile double rate;				// tokens per second
+	private volatile int burst;					// bucket capacity
+	private double tokens;
+	private long lastRefill;
+	private final ArrayDeque<Message> cancels = new ArrayDeque<Message>();
+	private final ArrayDeque<Message> orders = new ArrayDeque<Message>();
+	private boolean drainScheduled;
+
+	/* metrics */
+	private long sentCount;
+	private long queuedCount;
+	private int maxQueueDepth;
+	private long totalWaitNanos;
+	private long maxWaitNanos;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(BrokerThrottle.class);
+
+	private BrokerThrottle( BrokerID brokerId, double rate, int burst ) {
+		this.brokerId = brokerId;
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Limits the messages sent to a broker to the given rate, allowing
+	 * bursts of up to burst messages.  Changing the limit of a broker keeps
+	 * its queue and metrics.
+	 *
+	 * @param brokerId
+	 * @param rate		messages per second
+	 * @param burst		messages that may be sent at once
+	 */
+	public static void setLimit( BrokerID brokerId, double rate, int burst ) {
+		if ( rate <= 0 || burst < 1 ) {
+			throw new IllegalArgumentException("Invalid rate limit: " + rate +
+					"/s, burst " + burst + ".");
+		}
+		BrokerThrottle throttle = throttles.putIfAbsent(brokerId,
+				new BrokerThrottle(brokerId, rate, burst));
+		if ( throttle != null ) {
+			throttle.rate = rate;
+			throttle.burst = burst;
+		}
+	}
+
+	/**
+	 * Removes the limit of a broker.  Queued messages are still released
+	 * at the last rate.
+	 *
+	 * @param brokerId
+	 */
+	public static void clearLimit( BrokerID brokerId ) {
+		throttles.remove(brokerId);
+	}
+
+	/**
+	 * Returns the throttle of a broker, or null if it is not limited.
+	 *
+	 * @param brokerId
+	 * @return
+	 */
+	public static BrokerThrottle get( BrokerID brokerId ) {
+		return (brokerId == null) ? null : throttles.get(brokerId);
+	}
+
+	public BrokerID getBrokerId() { return brokerId; }
+	public double getRate() { return rate; }
+	public int getBurst() { return burst; }
+
+	/**
+	 * Returns the number of messages waiting for a token.
+	 *
+	 * @return
+	 */
+	public synchronized int getQueueDepth() {
+		return cancels.size() + orders.size();
+	}
+
+	public synchronized int getMaxQueueDepth() { return maxQueueDepth; }
+
+	/**
+	 * Returns the number of messages sent, queued or not.
+	 */
+	public synchronized long getSentCount() { return sentCount; }
+
+	/**
+	 * Returns the number of messages that had to wait for a token.
+	 */
+	public synchronized long getQueuedCount() { return queuedCount; }
+
+	/**
+	 * Returns the average wait of the queued messages, in milliseconds.
+	 *
+	 * @return
+	 */
+	public synchronized double getAverageWait() {
+		if ( queuedCount == 0 ) return 0;
+		return totalWaitNanos / 1e6 / queuedCount;
+	}
+
+	/**
+	 * Returns the longest wait of a queued message, in milliseconds.
+	 *
+	 * @return
+	 */
+	public synchronized double getMaxWait() {
+		return maxWaitNanos / 1e6;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BrokerThrottle{" + brokerId + ": " + rate + "/s, burst " + burst +
+			", queued " + getQueueDepth() + "}";
+	}
+
+
+	// PACKAGE METHODS //
+
+	/**
+	 * Sends a new order, now or once a token is available.
+	 *
+	 * @param framework
+	 * @param brokerId
+	 * @param order
+	 * @param orderId
+	 * @param stamps	timestamps of the order, or null
+	 */
+	static void send( Framework framework, BrokerID brokerId, Object order, OrderID orderId,
+			OrderTimestamps stamps ) {
+		BrokerThrottle throttle = get(brokerId);
+		if ( throttle == null ) {
+			if ( stamps != null ) stamps.markSent();
+			framework.send(order);
+		} else {
+			throttle.submit(new Message(framework, order, orderId, null, stamps), false);
+		}
+	}
+
+	/**
+	 * Sends a cancel or a replace of the target order, now or once a
+	 * token is available, ahead of the queued new orders.
+	 *
+	 * @param framework
+	 * @param brokerId
+	 * @param cancel
+	 * @param cancelId
+	 * @param target
+	 */
+	static void sendCancel( Framework framework, BrokerID brokerId, Object cancel,
+			OrderID cancelId, OrderID target ) {
+		BrokerThrottle throttle = get(brokerId);
+		if ( throttle == null ) {
+			framework.send(cancel);
+		} else {
+			throttle.submit(new Message(framework, cancel, cancelId, target, null), true);
+		}
+	}
+
+	/**
+	 * Takes a new order off the queue, if it has not been sent yet, along
+	 * with the queued cancels and replaces of it.
+	 *
+	 * @param brokerId
+	 * @param orderId
+	 * @return true if the order was queued and will not be sent
+	 */
+	static boolean withdraw( BrokerID brokerId, OrderID orderId ) {
+		BrokerThrottle throttle = get(brokerId);
+		return throttle != null && throttle.remove(orderId);
+	}
+
+
+	// PRIVATE METHODS //
+
+	private synchronized boolean remove( OrderID orderId ) {
+		Iterator<Message> it = orders.iterator();
+		while ( it.hasNext() ) {
+			Message queued = it.next();
+			if ( queued.target == null && orderId.equals(queued.orderId) ) {
+				it.remove();
+				logger.debug(">>> " + this + ": Withdrew " + orderId + " before sending it.");
+				/* a cancel or replace of an order never sent has nothing to act on */
+				removeTargeting(cancels, orderId);
+				removeTargeting(orders, orderId);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void removeTargeting( ArrayDeque<Message> queue, OrderID target ) {
+		Iterator<Message> it = queue.iterator();
+		while ( it.hasNext() ) {
+			Message queued = it.next();
+			if ( target.equals(queued.target) ) {
+				it.remove();
+				logger.debug(">>> " + this + ": Dropped " + queued.orderId + 
+						" with the withdrawn " + target + ".");
+			}
+		}
+	}
+
+	private synchronized void submit( Message message, boolean cancel ) {
+		refill();
+		if ( cancels.isEmpty() && orders.isEmpty() && tokens >= 1 ) {
+			tokens -= 1;
+			release(message, false);
+			return;
+		}
+
+		/* a cancel waits behind its target, if that is still queued */
+		if ( cancel && !targetsQueued(message.target) ) {
+			cancels.add(message);
+		} else {
+			orders.add(message);
+		}
+		int depth = cancels.size() + orders.size();
+		if ( depth > maxQueueDepth ) {
+			maxQueueDepth = depth;
+		}
+		logger.trace("--- " + this + ": Queued " + message.orderId + ".");
+		scheduleDrain();
+	}
+
+	private boolean targetsQueued( OrderID target ) {
+		if ( target == null ) return false;
+		Iterator<Message> it = orders.iterator();
+		while ( it.hasNext() ) {
+			Message queued = it.next();
+			if ( target.equals(queued.orderId) || target.equals(queued.target) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized void drain() {
+		drainScheduled = false;
+		refill();
+		while ( tokens >= 1 ) {
+			Message message = cancels.poll();
+			if ( message == null ) {
+				message = orders.poll();
+			}
+			if ( message == null ) break;
+			tokens -= 1;
+			release(message, true);
+		}
+		if ( !cancels.isEmpty() || !orders.isEmpty() ) {
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Sends a message; must hold the lock, so that the messages of the
+	 * broker go out in order.
+	 */
+	private void release( Message message, boolean queued ) {
+		sentCount++;
+		if ( queued ) {
+			long wait = System.nanoTime() - message.queued;
+			queuedCount++;
+			totalWaitNanos += wait;
+			if ( wait > maxWaitNanos ) {
+				maxWaitNanos = wait;
+			}
+		}
+		if ( message.stamps != null ) {
+			message.stamps.markSent();
+		}
+		try {
+			message.framework.send(message.message);
+		} catch ( RuntimeException e ) {
+			logger.error(">>> " + this + ": Could not send " + message.orderId + ".", e);
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+		lastRefill = now;
+	}
+
+	/**
+	 * Schedules a drain for when the next token comes in; must hold the
+	 * lock.
+	 */
+	private void scheduleDrain() {
+		if ( drainScheduled ) return;
+		drainScheduled = true;
+		long delay = (long)Math.ceil((1 - tokens) * 1000 / rate);
+		OrderScheduler.schedule(Math.max(delay, 1), new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		});
+	}
+}
@@ -0,0 +1,22 @@
+package org.kohera.metctools.portfolio;
+
+/**
+ * Describes how the cost of the shares closed by a fill is determined.
+ *
+ * @see Trade#setCostBasisMethod(CostBasisMethod)
+ * @author Jake Brukhman
+ *
+ */
+public enum CostBasisMethod {
+
+	/**
+	 * Fills close the oldest open lots first.
+	 */
+	FIFO,
+
+	/**
+	 * All open shares share a single average cost.
+	 */
+	AVERAGE
+
+}
@@ -0,0 +1,142 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Scaled long arithmetic used by the fixed-point accounting mode of Trade.
+ *
+ * Quantities are held as a number of millionths of a share and converted
+ * exactly: a quantity with more than QTY_SCALE decimals cannot be held.
+ * Prices are held as a number of 1e-8 units, rounded half up, which is the
+ * precision the profit-loss computation works at anyway.  Profit-loss is a
+ * percentage with PNL_SCALE decimals.
+ *
+ * @see Trade#setFixedPointAccounting(boolean)
+ * @author Jake Brukhman
+ *
+ */
+public final class FixedPoint {
+
+	/* scales */
+	public static final int QTY_SCALE = 6;
+	public static final long QTY_ONE = 1000000L;
+	public static final int PRICE_SCALE = 8;
+	public static final long PRICE_ONE = 100000000L;
+	public static final int PNL_SCALE = 4;
+
+	/* returned by profitLoss() when the result cannot be computed in a long */
+	static final long OVERFLOW = Long.MIN_VALUE;
+
+	/* largest price for which profitLoss() does not overflow */
+	private static final long MAX_PRICE = Long.MAX_VALUE / 10000L;
+
+	private FixedPoint() {}
+
+	/**
+	 * Converts a quantity to its scaled value.
+	 *
+	 * @param qty
+	 * @return
+	 * @throws ArithmeticException if the quantity has too many decimals, or is too large
+	 */
+	public static long toQty( BigDecimal qty ) {
+		if ( qty == null ) return 0;
+		return qty.movePointRight(QTY_SCALE).longValueExact();
+	}
+
+	/**
+	 * Converts a scaled quantity back to a BigDecimal.  Whole quantities
+	 * are returned with a scale of 0, like the quantities of execution
+	 * reports.
+	 *
+	 * @param qty
+	 * @return
+	 */
+	public static BigDecimal fromQty( long qty ) {
+		if ( qty % QTY_ONE == 0 ) {
+			return BigDecimal.valueOf(qty / QTY_ONE);
+		}
+		return BigDecimal.valueOf(qty, QTY_SCALE);
+	}
+
+	/**
+	 * Converts a price to its scaled value.
+	 *
+	 * @param price
+	 * @return
+	 * @throws ArithmeticException if the price is too large
+	 */
+	public static long toPrice( BigDecimal price ) {
+		if ( price == null ) return 0;
+		return price.movePointRight(PRICE_SCALE)
+			.setScale(0, RoundingMode.HALF_UP).longValueExact();
+	}
+
+	/**
+	 * Converts a scaled price back to a BigDecimal.
+	 *
+	 * @param price
+	 * @return
+	 */
+	public static BigDecimal fromPrice( long price ) {
+		return BigDecimal.valueOf(price, PRICE_SCALE);
+	}
+
+	/**
+	 * Converts a scaled profit-loss back to a BigDecimal.
+	 *
+	 * @param pnl
+	 * @return
+	 */
+	public static BigDecimal fromProfitLoss( long pnl ) {
+		return BigDecimal.valueOf(pnl, PNL_SCALE);
+	}
+
+	/**
+	 * Returns the percent change from entry to last, with PNL_SCALE
+	 * decimals, rounded the same way as Trade.getProfitLoss(): the ratio is
+	 * rounded half up to 8 decimals, then the percentage to 4 decimals.
+	 *
+	 * @param last		scaled last price
+	 * @param entry		scaled entry price (positive)
+	 * @return the scaled percentage, or OVERFLOW
+	 */
+	static long profitLoss( long last, long entry ) {
+		if ( entry <= 0 || last < 0 || entry > MAX_PRICE ) {
+			return OVERFLOW;
+		}
+
+		/* ratio = last/entry with 8 decimals, by long division in two
+		 * steps of 4 decimals so that the remainders fit in a long */
+		long whole = last / entry;
+		long r = (last % entry) * 10000L;
+		long d1 = r / entry;
+		r = (r % entry) * 10000L;
+		long d2 = r / entry;
+		r = r % entry;
+
+		if ( whole > (Long.MAX_VALUE - PRICE_ONE) / PRICE_ONE ) {
+			return OVERFLOW;
+		}
+		long ratio = whole * PRICE_ONE + d1 * 10000L + d2;
+		if ( r >= entry - r ) {
+			ratio++;
+		}
+
+		/* (ratio - 1) * 100, from 8 decimals down to 4, half up */
+		return divideHalfUp(ratio - PRICE_ONE, 100L);
+	}
+
+	/**
+	 * Divides by a positive divisor, rounding half away from zero.
+	 */
+	private static long divideHalfUp( long value, long divisor ) {
+		long q = value / divisor;
+		long r = value % divisor;
+		if ( Math.abs(r) * 2 >= divisor ) {
+			q += (value < 0) ? -1 : 1;
+		}
+		return q;
+	}
+}
@@ -0,0 +1,141 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe distribution of latencies, in nanoseconds.
+ *
+ * Values are counted in log-linear buckets, as in HdrHistogram: each
+ * power of two is split into SUB_BUCKETS equal buckets, so a percentile
+ * is accurate to within 1/SUB_BUCKETS (about 3%) at any scale, with a
+ * fixed footprint.  Values above MAX_TRACKABLE (about 68 seconds) are
+ * counted in the last bucket; the maximum is kept exactly.
+ *
+ * Recording a value is a few atomic increments and never allocates.
+ *
+ * @see OrderLatency
+ * @author Jake Brukhman
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	public static final long MAX_TRACKABLE = (1L << 36) - 1;
+
+	/* fields */
+	private final AtomicLongArray counts = new AtomicLongArray(index(MAX_TRACKABLE) + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency.  Negative values are ignored.
+	 *
+	 * @param nanos
+	 */
+	public void record( long nanos ) {
+		if ( nanos < 0 ) return;
+		counts.incrementAndGet(index(Math.min(nanos, MAX_TRACKABLE)));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long m;
+		while ( nanos > (m = max.get()) ) {
+			if ( max.compareAndSet(m, nanos) ) break;
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the largest recorded latency, in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean latency, in nanoseconds.
+	 */
+	public double getMean() {
+		long n = count.get();
+		return (n == 0) ? 0 : (double)sum.get() / n;
+	}
+
+	/**
+	 * Returns the latency (in nanoseconds) below which the given
+	 * percentage of the recorded values fall, rounded up to the top of
+	 * its bucket.
+	 *
+	 * @param percentile	between 0 and 100
+	 * @return
+	 */
+	public long getValueAtPercentile( double percentile ) {
+		long n = count.get();
+		if ( n == 0 ) return 0;
+		long rank = (long)Math.ceil(Math.min(percentile, 100.0) / 100.0 * n);
+		if ( rank < 1 ) rank = 1;
+		long seen = 0;
+		for ( int i = 0; i < counts.length(); i++ ) {
+			seen += counts.get(i);
+			if ( seen >= rank ) {
+				/* the last bucket also holds the values beyond MAX_TRACKABLE */
+				return (i == counts.length() - 1) ? getMax() : Math.min(highestEquivalent(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clears the recorded values.  Values recorded concurrently may or may
+	 * not be kept.
+	 */
+	public void reset() {
+		for ( int i = 0; i < counts.length(); i++ ) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + getCount() +
+			" mean=" + micros((long)getMean()) +
+			" p50=" + micros(getValueAtPercentile(50)) +
+			" p99=" + micros(getValueAtPercentile(99)) +
+			" p99.9=" + micros(getValueAtPercentile(99.9)) +
+			" max=" + micros(getMax()) + "us";
+	}
+
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Bucket of a value: values below SUB_BUCKETS have their own bucket,
+	 * larger ones share one with the values that agree on their top
+	 * SUB_BITS bits.
+	 */
+	private static int index( long value ) {
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		if ( msb < SUB_BITS ) return (int)value;
+		int shift = msb - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+	}
+
+	private static long highestEquivalent( int index ) {
+		if ( index < SUB_BUCKETS ) return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	private static String micros( long nanos ) {
+		return String.valueOf(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+}
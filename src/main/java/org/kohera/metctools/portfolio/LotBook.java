@@ -0,0 +1,260 @@
+package org.kohera.metctools.portfolio;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayDeque;
+
+/**
+ * Open lots and realized profit-loss of a Trade.
+ *
+ * Each fill either adds a lot on the side of the position, or closes
+ * open shares (FIFO or at the average cost) and realizes the difference
+ * between the fill price and their cost; a fill larger than the position
+ * closes it and opens the remainder on the other side.  The cost of the
+ * open shares is kept as a running sum, so the realized and unrealized
+ * profit-loss are available in O(1).
+ *
+ * Lots at the same price are merged, and past MAX_LOTS the newest lot
+ * absorbs new fills at their weighted average price, so the book stays
+ * bounded however many fills a symbol gets.
+ *
+ * @author Jake Brukhman
+ *
+ */
+final class LotBook implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -2385437619843290316L;
+
+	/* maximum number of open lots kept for FIFO */
+	static final int MAX_LOTS = 256;
+
+	/**
+	 * Open shares bought or sold at one price.
+	 */
+	private static final class Lot implements Serializable {
+		private static final long serialVersionUID = 6049163818522853311L;
+		BigDecimal qty;
+		BigDecimal price;
+
+		Lot( BigDecimal qty, BigDecimal price ) {
+			this.qty = qty;
+			this.price = price;
+		}
+	}
+
+	/* fields */
+	private CostBasisMethod method;
+	private final ArrayDeque<Lot> lots;
+	private Side side;					// side of the open position
+	private BigDecimal size;			// unsigned open quantity
+	private BigDecimal cost;			// unsigned cost of the open quantity
+	private BigDecimal realized;		// realized profit-loss
+
+	LotBook( CostBasisMethod method ) {
+		this.method = method;
+		lots = new ArrayDeque<Lot>();
+		side = Side.NONE;
+		size = cost = realized = BigDecimal.ZERO;
+	}
+
+	synchronized CostBasisMethod getMethod() {
+		return method;
+	}
+
+	/**
+	 * Changes the cost basis method.  Switching to AVERAGE merges the open
+	 * lots; switching to FIFO starts from a single lot at the average cost.
+	 *
+	 * @param method
+	 */
+	synchronized void setMethod( CostBasisMethod method ) {
+		if ( method == this.method ) return;
+		this.method = method;
+		lots.clear();
+		if ( size.signum() != 0 ) {
+			lots.add(new Lot(size, cost.divide(size, MathContext.DECIMAL64)));
+		}
+	}
+
+	/**
+	 * Applies a fill.
+	 *
+	 * @param fillSide
+	 * @param qty		unsigned quantity filled
+	 * @param price		fill price
+	 */
+	synchronized void fill( Side fillSide, BigDecimal qty, BigDecimal price ) {
+		if ( fillSide == Side.NONE || qty == null || qty.signum() <= 0 || price == null ) {
+			return;
+		}
+
+		if ( side == Side.NONE || fillSide == side ) {
+			open(fillSide, qty, price);
+			return;
+		}
+
+		/* the fill closes open shares */
+		BigDecimal closing = qty.min(size);
+		BigDecimal closedCost = relieve(closing);
+		realized = realized.add(side.polarize(closing.multiply(price).subtract(closedCost)));
+		size = size.subtract(closing);
+		if ( size.signum() == 0 ) {
+			side = Side.NONE;
+			cost = BigDecimal.ZERO;
+			lots.clear();
+		}
+
+		/* and the rest, if any, opens a position on the other side */
+		BigDecimal remainder = qty.subtract(closing);
+		if ( remainder.signum() > 0 ) {
+			open(fillSide, remainder, price);
+		}
+	}
+
+	/**
+	 * Replaces the open lots with a single lot of the given position,
+	 * keeping the realized profit-loss.  Used when the position is set
+	 * from outside rather than by fills.
+	 *
+	 * @param newSide
+	 * @param qty		unsigned quantity
+	 * @param price		cost of the open shares, or null if unknown
+	 */
+	synchronized void reset( Side newSide, BigDecimal qty, BigDecimal price ) {
+		lots.clear();
+		side = Side.NONE;
+		size = cost = BigDecimal.ZERO;
+		if ( newSide != Side.NONE && qty != null && qty.signum() > 0 ) {
+			open(newSide, qty, (price == null) ? BigDecimal.ZERO : price);
+		}
+	}
+
+	/**
+	 * Returns the signed open quantity.
+	 *
+	 * @return
+	 */
+	synchronized BigDecimal getPosition() {
+		return side.polarize(size);
+	}
+
+	/**
+	 * Returns the average cost of the open shares, or zero if flat.
+	 *
+	 * @return
+	 */
+	synchronized BigDecimal getAverageCost() {
+		if ( size.signum() == 0 ) return BigDecimal.ZERO;
+		return cost.divide(size, MathContext.DECIMAL64);
+	}
+
+	synchronized BigDecimal getRealizedProfitLoss() {
+		return realized;
+	}
+
+	/**
+	 * Returns the profit-loss of the open shares marked to the given price.
+	 *
+	 * @param last
+	 * @return
+	 */
+	synchronized BigDecimal getUnrealizedProfitLoss( BigDecimal last ) {
+		if ( size.signum() == 0 || last == null || last.signum() == 0 ) {
+			return BigDecimal.ZERO;
+		}
+		return side.polarize(size.multiply(last).subtract(cost));
+	}
+
+	/**
+	 * Returns the number of open lots.
+	 *
+	 * @return
+	 */
+	synchronized int getLotCount() {
+		return (method == CostBasisMethod.FIFO) ? lots.size() : (size.signum() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Writes the book as part of a Trade record (see PortfolioSnapshot).
+	 */
+	synchronized void writeSnapshot( PortfolioSnapshot.Output out ) {
+		out.writeEnum(method);
+		out.writeEnum(side);
+		out.writeDecimal(size);
+		out.writeDecimal(cost);
+		out.writeDecimal(realized);
+		out.writeVarint(lots.size());
+		for ( Lot lot : lots ) {
+			out.writeDecimal(lot.qty);
+			out.writeDecimal(lot.price);
+		}
+	}
+	
+	static LotBook readSnapshot( PortfolioSnapshot.Input in ) throws IOException {
+		LotBook book = new LotBook(in.readEnum(CostBasisMethod.class));
+		book.side = in.readEnum(Side.class);
+		book.size = in.readDecimal();
+		book.cost = in.readDecimal();
+		book.realized = in.readDecimal();
+		int count = in.readInt();
+		for ( int i = 0; i < count; i++ ) {
+			book.lots.addLast(new Lot(in.readDecimal(), in.readDecimal()));
+		}
+		return book;
+	}
+
+
+	// PRIVATE METHODS //
+
+	private void open( Side fillSide, BigDecimal qty, BigDecimal price ) {
+		side = fillSide;
+		size = size.add(qty);
+		cost = cost.add(qty.multiply(price));
+
+		if ( method != CostBasisMethod.FIFO ) return;
+
+		Lot last = lots.peekLast();
+		if ( last != null && last.price.compareTo(price) == 0 ) {
+			last.qty = last.qty.add(qty);
+		} else if ( last != null && lots.size() >= MAX_LOTS ) {
+			BigDecimal merged = last.qty.add(qty);
+			last.price = last.qty.multiply(last.price).add(qty.multiply(price))
+				.divide(merged, MathContext.DECIMAL64);
+			last.qty = merged;
+		} else {
+			lots.addLast(new Lot(qty, price));
+		}
+	}
+
+	/**
+	 * Removes the given quantity from the open shares and returns its cost.
+	 */
+	private BigDecimal relieve( BigDecimal qty ) {
+		BigDecimal relieved;
+		if ( qty.compareTo(size) == 0 ) {
+			relieved = cost;
+		} else if ( method == CostBasisMethod.FIFO ) {
+			relieved = BigDecimal.ZERO;
+			BigDecimal left = qty;
+			while ( left.signum() > 0 ) {
+				Lot lot = lots.peekFirst();
+				BigDecimal taken = left.min(lot.qty);
+				relieved = relieved.add(taken.multiply(lot.price));
+				lot.qty = lot.qty.subtract(taken);
+				if ( lot.qty.signum() == 0 ) {
+					lots.pollFirst();
+				}
+				left = left.subtract(taken);
+			}
+		} else {
+			relieved = cost.multiply(qty).divide(size, MathContext.DECIMAL64);
+		}
+		cost = cost.subtract(relieved);
+		return relieved;
+	}
+}
@@ -0,0 +1,286 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.Timer;
+import org.marketcetera.trade.ExecutionReport;
+import org.marketcetera.trade.OrderID;
+
+/**
+ * Completion handle of an order sent through the OrderInterface.
+ *
+ * The handle completes when the order is filled, canceled or rejected,
+ * and then gives the OrderOutcome and the final ExecutionReport.  It is
+ * settled when it completes, or when the order's timeout expires and the
+ * timeout policy has run, whichever comes first; the blocking order
+ * methods simply wait for the handle to settle.
+ *
+ * Continuations can be attached with addListener(), so that many orders
+ * can be composed without parking a thread on each.
+ *
+ * @author Jake Brukhman
+ *
+ */
+public class OrderFuture {
+
+	/* fields */
+	private volatile OrderID orderId;
+	private final CountDownLatch settled;
+	private volatile boolean done;
+	private volatile OrderOutcome outcome;
+	private volatile ExecutionReport report;
+	private Timer.Timeout timeoutTask;
+	private List<OrderListener> listeners;
+	private volatile OrderTimestamps timestamps;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(OrderFuture.class);
+
+	/**
+	 * Create a new handle for the given order.
+	 *
+	 * @param orderId
+	 */
+	OrderFuture( OrderID orderId ) {
+		this.orderId = orderId;
+		this.settled = new CountDownLatch(1);
+	}
+
+	/**
+	 * Create a new handle whose order is not known yet (i.e. it will be
+	 * sent once another order completes).
+	 */
+	OrderFuture() {
+		this(null);
+	}
+
+	/**
+	 * Returns a handle that is already complete, with the given outcome.
+	 *
+	 * @param outcome
+	 * @return
+	 */
+	static OrderFuture completed( OrderOutcome outcome ) {
+		OrderFuture future = new OrderFuture();
+		future.complete(outcome, null);
+		return future;
+	}
+
+	/**
+	 * Returns the OrderID of the order, or null if it has not been sent yet.
+	 *
+	 * @return
+	 */
+	public final OrderID getOrderId() {
+		return orderId;
+	}
+
+	/**
+	 * Returns true if and only if the order has completed.
+	 *
+	 * @return
+	 */
+	public final boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns true if and only if the order has completed, or its timeout
+	 * has expired.
+	 *
+	 * @return
+	 */
+	public final boolean isSettled() {
+		return settled.getCount() == 0;
+	}
+
+	/**
+	 * Returns how the order ended, or null if it has not completed.
+	 *
+	 * @return
+	 */
+	public final OrderOutcome getOutcome() {
+		return outcome;
+	}
+
+	/**
+	 * Returns the ExecutionReport that completed the order, or null if
+	 * there is none (yet).
+	 *
+	 * @return
+	 */
+	public final ExecutionReport getReport() {
+		return report;
+	}
+
+	/**
+	 * Waits until the handle is settled.
+	 *
+	 * @throws InterruptedException
+	 */
+	public final void await() throws InterruptedException {
+		settled.await();
+	}
+
+	/**
+	 * Waits until the handle is settled, or the given number of
+	 * milliseconds has elapsed.
+	 *
+	 * @param timeout
+	 * @return true if the handle has settled
+	 * @throws InterruptedException
+	 */
+	public final boolean await( long timeout ) throws InterruptedException {
+		return settled.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a continuation to be run when the order completes.  If it has
+	 * already completed, the continuation is scheduled right away.
+	 *
+	 * Continuations run on a shared worker thread.
+	 *
+	 * @param listener
+	 * @return this handle
+	 */
+	public final OrderFuture addListener( OrderListener listener ) {
+		synchronized(this) {
+			if ( !done ) {
+				if ( listeners == null ) {
+					listeners = new ArrayList<OrderListener>(2);
+				}
+				listeners.add(listener);
+				return this;
+			}
+		}
+		notifyListener(listener);
+		return this;
+	}
+
+	/**
+	 * Returns the lifecycle timestamps of the order, or null if it was
+	 * sent while OrderLatency was disabled.
+	 * 
+	 * @return
+	 */
+	public final OrderTimestamps getTimestamps() {
+		return timestamps;
+	}
+
+	@Override
+	public String toString() {
+		return "OrderFuture{" + orderId + ":" +
+			(done ? outcome : (isSettled() ? "TIMED_OUT" : "WORKING")) + "}";
+	}
+
+
+	// PACKAGE METHODS //
+
+	/**
+	 * Sets the task that will fire when the order times out.
+	 */
+	synchronized final void setTimeoutTask( Timer.Timeout task ) {
+		if ( done ) {
+			task.cancel();
+		} else {
+			timeoutTask = task;
+		}
+	}
+
+	/**
+	 * Marks the order as completed and runs the continuations.
+	 */
+	void complete( OrderOutcome outcome, ExecutionReport report ) {
+		List<OrderListener> toNotify;
+		synchronized(this) {
+			if ( done ) return;
+			this.outcome = outcome;
+			this.report = report;
+			done = true;
+			if ( timeoutTask != null ) {
+				timeoutTask.cancel();
+				timeoutTask = null;
+			}
+			toNotify = listeners;
+			listeners = null;
+		}
+		if ( timestamps != null ) {
+			OrderLatency.complete(timestamps, outcome);
+		}
+		settled.countDown();
+
+		if ( toNotify != null ) {
+			for ( OrderListener listener : toNotify ) {
+				notifyListener(listener);
+			}
+		}
+	}
+
+	void setTimestamps( OrderTimestamps timestamps ) {
+		this.timestamps = timestamps;
+	}
+
+	/**
+	 * Points the handle to the order that replaced its order.
+	 */
+	void setOrderId( OrderID orderId ) {
+		this.orderId = orderId;
+	}
+
+	/**
+	 * Makes this handle complete like another one, once the other one
+	 * completes.
+	 */
+	void follow( final OrderFuture other ) {
+		orderId = other.getOrderId();
+		other.addListener(new OrderListener() {
+			@Override
+			public void onComplete(OrderFuture future) {
+				complete(future.getOutcome(), future.getReport());
+			}
+		});
+	}
+
+	/**
+	 * Releases the threads waiting on the handle without completing it
+	 * (i.e. the order timed out).
+	 */
+	void settle() {
+		settled.countDown();
+	}
+
+	/**
+	 * Drops the timeout and releases the threads waiting on the handle,
+	 * without completing it.
+	 */
+	void disrupt() {
+		synchronized(this) {
+			if ( timeoutTask != null ) {
+				timeoutTask.cancel();
+				timeoutTask = null;
+			}
+		}
+		settled.countDown();
+	}
+
+
+	// PRIVATE METHODS //
+
+	private void notifyListener( final OrderListener listener ) {
+		OrderScheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					listener.onComplete(OrderFuture.this);
+				} catch (Exception e) {
+					logger.error(">>> Order listener failed for " + OrderFuture.this + ".", e);
+				}
+			}
+		});
+	}
+}
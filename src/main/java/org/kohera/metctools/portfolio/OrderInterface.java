@@ -2,6 +2,8 @@ package org.kohera.metctools.portfolio;
 
 import java.math.BigDecimal;
 
+import org.marketcetera.trade.OrderID;
+
 /**
  * The order interface.
  * 
@@ -63,6 +65,114 @@ public interface OrderInterface {
 	void marketOrder( BigDecimal qty, Side side, boolean block);
 	
 	
+	// PASSIVE ORDERS //
+	
+	/*
+	 * Limit, stop, stop-limit and midpoint-pegged orders go through the
+	 * same pending/cancel cycle as market orders: at most one is pending
+	 * per Trade, it can be canceled with cancel(), and its timeout policy
+	 * runs if it is still working when the timeout expires.
+	 */
+	
+	/**
+	 * Place a limit order.
+	 * @param qty
+	 * @param side
+	 * @param limitPrice
+	 * @param timeout	timeout milliseconds (0 = never)
+	 * @param policy
+	 * @param fillPolicy
+	 * @param block	whether to block until order completes
+	 */
+	void limitOrder( BigDecimal qty, Side side, BigDecimal limitPrice, long timeout,
+			OrderTimeoutPolicy policy, FillPolicy fillPolicy, boolean block );
+	
+	/**
+	 * Place a limit order using the Trade's default timeout time and
+	 * OrderTimeoutPolicy.
+	 * @param qty
+	 * @param side
+	 * @param limitPrice
+	 * @param block
+	 */
+	void limitOrder( BigDecimal qty, Side side, BigDecimal limitPrice, boolean block );
+	
+	/**
+	 * Place a stop order, which becomes a market order when the stop
+	 * price trades.
+	 * @param qty
+	 * @param side
+	 * @param stopPrice
+	 * @param timeout	timeout milliseconds (0 = never)
+	 * @param policy
+	 * @param fillPolicy
+	 * @param block	whether to block until order completes
+	 */
+	void stopOrder( BigDecimal qty, Side side, BigDecimal stopPrice, long timeout,
+			OrderTimeoutPolicy policy, FillPolicy fillPolicy, boolean block );
+	
+	/**
+	 * Place a stop order using the Trade's default timeout time and
+	 * OrderTimeoutPolicy.
+	 * @param qty
+	 * @param side
+	 * @param stopPrice
+	 * @param block
+	 */
+	void stopOrder( BigDecimal qty, Side side, BigDecimal stopPrice, boolean block );
+	
+	/**
+	 * Place a stop-limit order, which becomes a limit order when the stop
+	 * price trades.
+	 * @param qty
+	 * @param side
+	 * @param stopPrice
+	 * @param limitPrice
+	 * @param timeout	timeout milliseconds (0 = never)
+	 * @param policy
+	 * @param fillPolicy
+	 * @param block	whether to block until order completes
+	 */
+	void stopLimitOrder( BigDecimal qty, Side side, BigDecimal stopPrice, 
+			BigDecimal limitPrice, long timeout, OrderTimeoutPolicy policy, 
+			FillPolicy fillPolicy, boolean block );
+	
+	/**
+	 * Place a stop-limit order using the Trade's default timeout time and
+	 * OrderTimeoutPolicy.
+	 * @param qty
+	 * @param side
+	 * @param stopPrice
+	 * @param limitPrice
+	 * @param block
+	 */
+	void stopLimitOrder( BigDecimal qty, Side side, BigDecimal stopPrice, 
+			BigDecimal limitPrice, boolean block );
+	
+	/**
+	 * Place an order pegged to the midpoint of the bid and offer.
+	 * @param qty
+	 * @param side
+	 * @param offset	signed offset from the midpoint, or null for none
+	 * @param timeout	timeout milliseconds (0 = never)
+	 * @param policy
+	 * @param fillPolicy
+	 * @param block	whether to block until order completes
+	 */
+	void midPegOrder( BigDecimal qty, Side side, BigDecimal offset, long timeout,
+			OrderTimeoutPolicy policy, FillPolicy fillPolicy, boolean block );
+	
+	/**
+	 * Place a midpoint-pegged order using the Trade's default timeout time
+	 * and OrderTimeoutPolicy.
+	 * @param qty
+	 * @param side
+	 * @param offset
+	 * @param block
+	 */
+	void midPegOrder( BigDecimal qty, Side side, BigDecimal offset, boolean block );
+	
+	
 	// CANCELATION //
 	
 	/**
@@ -87,6 +197,30 @@ public interface OrderInterface {
 	OrderInterface cancelAnd();
 	
 	
+	// AMENDMENT //
+	
+	/**
+	 * Amend the pending order in place with a cancel/replace, keeping its
+	 * queue priority where the venue allows it.  The order's completion
+	 * handle, timeout and fill policy carry over to the replacing order.
+	 * @param qty	new total quantity (filled shares included), or null to keep it
+	 * @param price	new limit price (stop price for a stop order), or null to keep it;
+	 * 				market and pegged orders have no price to amend
+	 * @param block	whether to block until the replace is acknowledged or rejected
+	 * @return true if the replace was sent (and, if block, accepted)
+	 */
+	boolean replace( BigDecimal qty, BigDecimal price, boolean block );
+	
+	/**
+	 * Amend the pending order, and block until the replace is
+	 * acknowledged or rejected.
+	 * @param qty
+	 * @param price
+	 * @return true if the replace was accepted
+	 */
+	boolean replace( BigDecimal qty, BigDecimal price );
+	
+	
 	// CLOSING //
 	
 	/**
@@ -310,31 +444,298 @@ public interface OrderInterface {
 	 * @param block
 	 */
 	void augmentMarket( BigDecimal qty, boolean block);
-
-}
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
 
 
+	// ASYNCHRONOUS ORDERS //
+	
+	/*
+	 * The following methods never block.  Each returns the completion
+	 * handle of the order, which resolves to the outcome (filled, canceled,
+	 * rejected) and the final ExecutionReport, and to which continuations
+	 * can be attached with OrderFuture.addListener().
+	 */
+	
+	/**
+	 * Place a market order without blocking.
+	 * 
+	 * @param qty
+	 * @param side
+	 * @param timeout	timeout milliseconds (0 = never)
+	 * @param policy
+	 * @return
+	 */
+	OrderFuture marketOrderAsync( BigDecimal qty, Side side, long timeout,
+			OrderTimeoutPolicy policy );
+	
+	/**
+	 * Place a market order without blocking, using the Trade's default
+	 * timeout time and OrderTimeoutPolicy.
+	 * 
+	 * @param qty
+	 * @param side
+	 * @return
+	 */
+	OrderFuture marketOrderAsync( BigDecimal qty, Side side );
+	
+	/**
+	 * Cancel the current pending order without blocking.  Returns the
+	 * handle of the pending order, or a handle with outcome NOT_SENT if
+	 * there is no pending order.
+	 * 
+	 * @return
+	 */
+	OrderFuture cancelAsync();
+	
+	/**
+	 * Close the position using a market order, without blocking.  If an
+	 * order is pending, it is canceled first, and the closing order is
+	 * sent once the cancelation completes.
+	 * 
+	 * @param timeout
+	 * @param policy
+	 * @return
+	 */
+	OrderFuture closeMarketAsync( long timeout, OrderTimeoutPolicy policy );
+	
+	/**
+	 * Close the position using a market order, without blocking, using
+	 * the Trade's default timeout time and OrderTimeoutPolicy.
+	 * 
+	 * @return
+	 */
+	OrderFuture closeMarketAsync();
+	
+	/**
+	 * Go long (buy) using a market order, without blocking.
+	 * 
+	 * @param qty
+	 * @param timeout
+	 * @param policy
+	 * @return
+	 */
+	OrderFuture longMarketAsync( BigDecimal qty, long timeout, OrderTimeoutPolicy policy );
+	
+	/**
+	 * @see longMarketAsync()
+	 */
+	OrderFuture longMarketAsync( BigDecimal qty );
+	
+	/**
+	 * Go short (sell) using a market order, without blocking.
+	 * 
+	 * @param qty
+	 * @param timeout
+	 * @param policy
+	 * @return
+	 */
+	OrderFuture shortMarketAsync( BigDecimal qty, long timeout, OrderTimeoutPolicy policy );
+	
+	/**
+	 * @see shortMarketAsync()
+	 */
+	OrderFuture shortMarketAsync( BigDecimal qty );
+	
+	/**
+	 * Reduce the position using a market order, without blocking.
+	 * 
+	 * @param qty
+	 * @param timeout
+	 * @param policy
+	 * @return
+	 */
+	OrderFuture reduceMarketAsync( BigDecimal qty, long timeout, OrderTimeoutPolicy policy );
+	
+	/**
+	 * @see reduceMarketAsync()
+	 */
+	OrderFuture reduceMarketAsync( BigDecimal qty );
+	
+	/**
+	 * Augment the position using a market order, without blocking.
+	 * 
+	 * @param qty
+	 * @param timeout
+	 * @param policy
+	 * @return
+	 */
+	OrderFuture augmentMarketAsync( BigDecimal qty, long timeout, OrderTimeoutPolicy policy );
+	
+	/**
+	 * @see augmentMarketAsync()
+	 */
+	OrderFuture augmentMarketAsync( BigDecimal qty );
+	
+	/**
+	 * Place a limit order without blocking.
+	 * @param qty
+	 * @param side
+	 * @param limitPrice
+	 * @param timeout
+	 * @param policy
+	 * @return
+	 */
+	OrderFuture limitOrderAsync( BigDecimal qty, Side side, BigDecimal limitPrice, 
+			long timeout, OrderTimeoutPolicy policy );
+	
+	/**
+	 * @see limitOrderAsync()
+	 */
+	OrderFuture limitOrderAsync( BigDecimal qty, Side side, BigDecimal limitPrice );
+	
+	/**
+	 * Place a stop order without blocking.
+	 * @param qty
+	 * @param side
+	 * @param stopPrice
+	 * @param timeout
+	 * @param policy
+	 * @return
+	 */
+	OrderFuture stopOrderAsync( BigDecimal qty, Side side, BigDecimal stopPrice, 
+			long timeout, OrderTimeoutPolicy policy );
+	
+	/**
+	 * @see stopOrderAsync()
+	 */
+	OrderFuture stopOrderAsync( BigDecimal qty, Side side, BigDecimal stopPrice );
+	
+	/**
+	 * Place a stop-limit order without blocking.
+	 * @param qty
+	 * @param side
+	 * @param stopPrice
+	 * @param limitPrice
+	 * @param timeout
+	 * @param policy
+	 * @return
+	 */
+	OrderFuture stopLimitOrderAsync( BigDecimal qty, Side side, BigDecimal stopPrice, 
+			BigDecimal limitPrice, long timeout, OrderTimeoutPolicy policy );
+	
+	/**
+	 * @see stopLimitOrderAsync()
+	 */
+	OrderFuture stopLimitOrderAsync( BigDecimal qty, Side side, BigDecimal stopPrice, 
+			BigDecimal limitPrice );
+	
+	/**
+	 * Place a midpoint-pegged order without blocking.
+	 * @param qty
+	 * @param side
+	 * @param offset
+	 * @param timeout
+	 * @param policy
+	 * @return
+	 */
+	OrderFuture midPegOrderAsync( BigDecimal qty, Side side, BigDecimal offset, 
+			long timeout, OrderTimeoutPolicy policy );
+	
+	/**
+	 * @see midPegOrderAsync()
+	 */
+	OrderFuture midPegOrderAsync( BigDecimal qty, Side side, BigDecimal offset );
+	
+	/**
+	 * Amend the pending order without blocking.  Returns the handle of the
+	 * pending order, or a handle with outcome NOT_SENT if there is no
+	 * pending order or the replace could not be sent.
+	 * @param qty
+	 * @param price
+	 * @return
+	 */
+	OrderFuture replaceAsync( BigDecimal qty, BigDecimal price );
+	
+	
+	// CHILD ORDERS //
+	
+	/*
+	 * Child orders work alongside the pending order and each other, so
+	 * that a Trade can have any number of live orders (e.g. the slices of
+	 * a large order).  Their fills are added to the position as they
+	 * arrive; the live ones are listed by Trade.getWorkingOrders().
+	 */
+	
+	/**
+	 * Send a child order without blocking.
+	 * @param qty
+	 * @param side
+	 * @param limitPrice	limit price, or null for a market order
+	 * @param timeout	milliseconds after which the order is canceled (0 = never)
+	 * @return
+	 */
+	OrderFuture childOrderAsync( BigDecimal qty, Side side, BigDecimal limitPrice, long timeout );
+	
+	/**
+	 * Send a child order without blocking, canceled after the Trade's
+	 * default timeout time.
+	 * @see childOrderAsync()
+	 */
+	OrderFuture childOrderAsync( BigDecimal qty, Side side, BigDecimal limitPrice );
+	
+	/**
+	 * Cancel a child order without blocking.
+	 * @param orderId
+	 * @return true if the cancel was sent
+	 */
+	boolean cancelChild( OrderID orderId );
+	
+	/**
+	 * Cancel all the child orders without blocking.
+	 * @return the number of cancels sent
+	 */
+	int cancelChildren();
+	
 
+	// SLICED ORDERS //
+	
+	/*
+	 * A sliced order works a large quantity as a series of child orders
+	 * over time, to limit its market impact.  A Trade works at most one
+	 * sliced order at a time; its progress is reported by 
+	 * Trade.getSlicedOrder().
+	 */
+	
+	/**
+	 * Work an order as equal slices at equal intervals (TWAP).
+	 * @param qty
+	 * @param side
+	 * @param duration	milliseconds over which to work the order
+	 * @param slices	number of slices
+	 * @param limitPrice	limit price of the slices, or null for market slices
+	 * @param maxParticipation	largest fraction of the traded volume to take 
+	 * 							per slice (0 = no cap); a capped order 
+	 * 							sends its first slice after one interval
+	 * @return
+	 */
+	SlicedOrder twap( BigDecimal qty, Side side, long duration, int slices, 
+			BigDecimal limitPrice, double maxParticipation );
+	
+	/**
+	 * Work an order as equal market slices at equal intervals (TWAP).
+	 * @see twap()
+	 */
+	SlicedOrder twap( BigDecimal qty, Side side, long duration, int slices );
+	
+	/**
+	 * Work an order in proportion to the traded volume (VWAP).  At each
+	 * interval, a slice of the given fraction of the volume traded since
+	 * the previous one is sent.
+	 * @param qty
+	 * @param side
+	 * @param duration	milliseconds over which to work the order
+	 * @param interval	milliseconds between slices
+	 * @param participation	fraction of the traded volume, in (0,1]
+	 * @param limitPrice	limit price of the slices, or null for market slices
+	 * @return
+	 */
+	SlicedOrder vwap( BigDecimal qty, Side side, long duration, long interval, 
+			double participation, BigDecimal limitPrice );
+	
+	/**
+	 * Work an order as market slices in proportion to the traded volume
+	 * (VWAP), sent every 30 seconds.
+	 * @see vwap()
+	 */
+	SlicedOrder vwap( BigDecimal qty, Side side, long duration, double participation );
+	
+}
@@ -0,0 +1,192 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.marketcetera.trade.BrokerID;
+import org.marketcetera.trade.OrderStatus;
+
+/**
+ * Order lifecycle latencies, per symbol and per broker.
+ *
+ * While enabled, every order sent through the OrderInterface carries
+ * OrderTimestamps, and when it completes the time spent in each Stage is
+ * recorded in the LatencyHistograms of its symbol and of its broker.
+ * While disabled (the default), the only cost to an order is a volatile
+ * read at each stage.
+ *
+ * Orders refused by the RiskGate are not timed.
+ *
+ * @author Jake Brukhman
+ *
+ */
+public final class OrderLatency {
+
+	/**
+	 * Stages of the order lifecycle.
+	 */
+	public enum Stage {
+		/** From submission to the OrderProcessor to sending (includes throttling). */
+		SEND,
+		/** From sending to the first report. */
+		ACK,
+		/** From sending to the first partial or full fill. */
+		FIRST_FILL,
+		/** From sending to the complete fill. */
+		FILL,
+		/** From submission to completion, whatever the outcome. */
+		LIFETIME
+	}
+
+	private static final int STAGES = Stage.values().length;
+
+	/* fields */
+	private static volatile boolean enabled;
+	private static final ConcurrentMap<String,LatencyHistogram[]> bySymbol =
+		new ConcurrentHashMap<String,LatencyHistogram[]>();
+	private static final ConcurrentMap<BrokerID,LatencyHistogram[]> byBroker =
+		new ConcurrentHashMap<BrokerID,LatencyHistogram[]>();
+
+	private OrderLatency() { }
+
+	/**
+	 * Starts timing the orders sent from now on.
+	 */
+	public static void enable() {
+		enabled = true;
+	}
+
+	/**
+	 * Stops timing new orders.  Orders already timed are still recorded
+	 * when they complete.
+	 */
+	public static void disable() {
+		enabled = false;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns the latencies of a stage for a symbol, or null if no order
+	 * of the symbol has completed.
+	 *
+	 * @param symbol
+	 * @param stage
+	 * @return
+	 */
+	public static LatencyHistogram getSymbolHistogram( String symbol, Stage stage ) {
+		LatencyHistogram[] histograms = bySymbol.get(symbol);
+		return (histograms == null) ? null : histograms[stage.ordinal()];
+	}
+
+	/**
+	 * Returns the latencies of a stage for a broker, or null if no order
+	 * to the broker has completed.
+	 *
+	 * @param brokerId
+	 * @param stage
+	 * @return
+	 */
+	public static LatencyHistogram getBrokerHistogram( BrokerID brokerId, Stage stage ) {
+		LatencyHistogram[] histograms = byBroker.get(brokerId);
+		return (histograms == null) ? null : histograms[stage.ordinal()];
+	}
+
+	public static Set<String> getSymbols() {
+		return Collections.unmodifiableSet(bySymbol.keySet());
+	}
+
+	public static Set<BrokerID> getBrokers() {
+		return Collections.unmodifiableSet(byBroker.keySet());
+	}
+
+	/**
+	 * Drops all the recorded latencies.
+	 */
+	public static void reset() {
+		bySymbol.clear();
+		byBroker.clear();
+	}
+
+
+	// PACKAGE METHODS //
+
+	/**
+	 * Returns new timestamps for an order, or null if timing is disabled.
+	 *
+	 * @param symbol
+	 * @param brokerId
+	 * @return
+	 */
+	static OrderTimestamps start( String symbol, BrokerID brokerId ) {
+		return enabled ? new OrderTimestamps(symbol, brokerId) : null;
+	}
+
+	/**
+	 * Notes a report of the order of the given handle, if it is timed.
+	 *
+	 * @param future
+	 * @param status
+	 */
+	static void onReport( OrderFuture future, OrderStatus status ) {
+		OrderTimestamps stamps = (future != null) ? future.getTimestamps() : null;
+		if ( stamps != null && status != null ) {
+			stamps.markReport(status);
+		}
+	}
+
+	/**
+	 * Records the stages of a completed order.
+	 *
+	 * @param stamps
+	 * @param outcome
+	 */
+	static void complete( OrderTimestamps stamps, OrderOutcome outcome ) {
+		if ( !stamps.markCompleted() ) return;
+		LatencyHistogram[] symbol = histograms(bySymbol, stamps.getSymbol());
+		LatencyHistogram[] broker = (stamps.getBrokerId() != null) ?
+				histograms(byBroker, stamps.getBrokerId()) : null;
+
+		long sent = stamps.getSent();
+		record(symbol, broker, Stage.LIFETIME, stamps.getCompleted() - stamps.getSubmitted());
+		if ( sent == 0 ) return;
+		record(symbol, broker, Stage.SEND, sent - stamps.getSubmitted());
+		if ( stamps.getAcknowledged() != 0 ) {
+			record(symbol, broker, Stage.ACK, stamps.getAcknowledged() - sent);
+		}
+		if ( stamps.getFirstFill() != 0 ) {
+			record(symbol, broker, Stage.FIRST_FILL, stamps.getFirstFill() - sent);
+		}
+		if ( outcome == OrderOutcome.FILLED ) {
+			record(symbol, broker, Stage.FILL, stamps.getCompleted() - sent);
+		}
+	}
+
+
+	// PRIVATE METHODS //
+
+	private static void record( LatencyHistogram[] symbol, LatencyHistogram[] broker,
+			Stage stage, long nanos ) {
+		symbol[stage.ordinal()].record(nanos);
+		if ( broker != null ) {
+			broker[stage.ordinal()].record(nanos);
+		}
+	}
+
+	private static <K> LatencyHistogram[] histograms( ConcurrentMap<K,LatencyHistogram[]> map, K key ) {
+		LatencyHistogram[] histograms = map.get(key);
+		if ( histograms == null ) {
+			LatencyHistogram[] created = new LatencyHistogram[STAGES];
+			for ( int i = 0; i < STAGES; i++ ) {
+				created[i] = new LatencyHistogram();
+			}
+			histograms = map.putIfAbsent(key, created);
+			if ( histograms == null ) histograms = created;
+		}
+		return histograms;
+	}
+}
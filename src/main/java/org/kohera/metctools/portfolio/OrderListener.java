@@ -0,0 +1,20 @@
+package org.kohera.metctools.portfolio;
+
+/**
+ * Interface for continuations to be run when an order completes.
+ * 
+ * @see OrderFuture#addListener(OrderListener)
+ * @author Jake Brukhman
+ *
+ */
+public interface OrderListener {
+
+	/**
+	 * Implement this method to react to the completion of an order.  It
+	 * is called on a shared worker thread, never on the event thread.
+	 * 
+	 * @param future	the completed handle, with its outcome and final report
+	 */
+	public void onComplete( OrderFuture future );
+	
+}
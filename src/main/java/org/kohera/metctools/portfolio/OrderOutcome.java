@@ -0,0 +1,30 @@
+package org.kohera.metctools.portfolio;
+
+/**
+ * Describes how an order sent through the OrderInterface ended.
+ * 
+ * @see OrderFuture
+ * @author Jake Brukhman
+ *
+ */
+public enum OrderOutcome {
+
+	/** The order was filled. */
+	FILLED,
+	
+	/** The order was canceled. */
+	CANCELED,
+	
+	/** The order was rejected. */
+	REJECTED,
+	
+	/** 
+	 * The framework stopped tracking the order (e.g. a cancel request
+	 * for it was rejected). 
+	 */
+	UNTRACKED,
+	
+	/** There was nothing to do, so no order was sent. */
+	NOT_SENT
+	
+}
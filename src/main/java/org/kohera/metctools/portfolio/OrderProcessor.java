@@ -3,6 +3,7 @@ package org.kohera.metctools.portfolio;
 import java.math.BigDecimal;
 
 import org.apache.log4j.Logger;
+import org.marketcetera.trade.OrderID;
 import org.marketcetera.trade.OrderSingle;
 
 /**
@@ -16,6 +17,9 @@ import org.marketcetera.trade.OrderSingle;
 public class OrderProcessor extends OrderProcessorBase
 	implements OrderInterface {
 
+	/* default interval between VWAP slices, in milliseconds */
+	private static final long DEFAULT_SLICE_INTERVAL = 30*1000;
+	
 	/* logging */
 	private final static Logger logger =
 		Logger.getLogger(OrderProcessor.class);
@@ -30,12 +34,7 @@ public class OrderProcessor extends OrderProcessorBase
 	@Override
 	public final void marketOrder( BigDecimal qty, Side side, long timeout, 
 			OrderTimeoutPolicy policy, FillPolicy fillPolicy, boolean block ) {
-		/* round to integer */
-		qty = qty.setScale(0);
-		OrderSingle order = getOrderBuilder()
-		.makeMarket(parentTrade.getSymbol(), qty, side.toMetcSide())
-		.getOrder();
-		sendOrder(order, timeout, policy, fillPolicy, block);
+		submitMarket(qty, side, timeout, policy, fillPolicy, block);
 	}
 	
 	@Override
@@ -63,6 +62,63 @@ public class OrderProcessor extends OrderProcessorBase
 	}
 
 
+	// PASSIVE ORDERS //
+	
+	@Override
+	public final void limitOrder( BigDecimal qty, Side side, BigDecimal limitPrice, long timeout,
+			OrderTimeoutPolicy policy, FillPolicy fillPolicy, boolean block ) {
+		if ( !checkPrice(limitPrice, "limit") ) return;
+		submitOrder(buildLimit(qty, side, limitPrice), timeout, policy, fillPolicy, block);
+	}
+	
+	@Override
+	public final void limitOrder( BigDecimal qty, Side side, BigDecimal limitPrice, boolean block ) {
+		limitOrder(qty, side, limitPrice, parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy(), null, block);
+	}
+	
+	@Override
+	public final void stopOrder( BigDecimal qty, Side side, BigDecimal stopPrice, long timeout,
+			OrderTimeoutPolicy policy, FillPolicy fillPolicy, boolean block ) {
+		if ( !checkPrice(stopPrice, "stop") ) return;
+		submitOrder(buildStop(qty, side, stopPrice), timeout, policy, fillPolicy, block);
+	}
+	
+	@Override
+	public final void stopOrder( BigDecimal qty, Side side, BigDecimal stopPrice, boolean block ) {
+		stopOrder(qty, side, stopPrice, parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy(), null, block);
+	}
+	
+	@Override
+	public final void stopLimitOrder( BigDecimal qty, Side side, BigDecimal stopPrice, 
+			BigDecimal limitPrice, long timeout, OrderTimeoutPolicy policy, 
+			FillPolicy fillPolicy, boolean block ) {
+		if ( !checkPrice(stopPrice, "stop") || !checkPrice(limitPrice, "limit") ) return;
+		submitOrder(buildStopLimit(qty, side, stopPrice, limitPrice), 
+				timeout, policy, fillPolicy, block);
+	}
+	
+	@Override
+	public final void stopLimitOrder( BigDecimal qty, Side side, BigDecimal stopPrice, 
+			BigDecimal limitPrice, boolean block ) {
+		stopLimitOrder(qty, side, stopPrice, limitPrice, parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy(), null, block);
+	}
+	
+	@Override
+	public final void midPegOrder( BigDecimal qty, Side side, BigDecimal offset, long timeout,
+			OrderTimeoutPolicy policy, FillPolicy fillPolicy, boolean block ) {
+		submitOrder(buildMidPeg(qty, side, offset), timeout, policy, fillPolicy, block);
+	}
+	
+	@Override
+	public final void midPegOrder( BigDecimal qty, Side side, BigDecimal offset, boolean block ) {
+		midPegOrder(qty, side, offset, parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy(), null, block);
+	}
+	
+
 	// CANCELATION //
 
 	@Override
@@ -82,6 +138,22 @@ public class OrderProcessor extends OrderProcessorBase
 	}
 
 
+	// AMENDMENT //
+	
+	@Override
+	public final boolean replace( BigDecimal qty, BigDecimal price, boolean block ) {
+		if ( qty != null ) {
+			qty = qty.setScale(0);
+		}
+		return replaceOrder(qty, price, block);
+	}
+	
+	@Override
+	public final boolean replace( BigDecimal qty, BigDecimal price ) {
+		return replace(qty, price, true);
+	}
+
+
 	// CLOSE THE TRADE //
 
 	@Override
@@ -243,4 +315,398 @@ public class OrderProcessor extends OrderProcessorBase
 	}
 	
 	
+	// ASYNCHRONOUS ORDERS //
+	
+	@Override
+	public final OrderFuture marketOrderAsync( BigDecimal qty, Side side, long timeout,
+			OrderTimeoutPolicy policy ) {
+		return submitMarket(qty, side, timeout, policy, null, false);
+	}
+	
+	@Override
+	public final OrderFuture marketOrderAsync( BigDecimal qty, Side side ) {
+		return marketOrderAsync(qty, side, parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy());
+	}
+	
+	@Override
+	public final OrderFuture cancelAsync() {
+		OrderFuture pending = getPendingFuture();
+		if ( pending == null ) {
+			return OrderFuture.completed(OrderOutcome.NOT_SENT);
+		}
+		cancelOrder(false);
+		return pending;
+	}
+	
+	@Override
+	public final OrderFuture replaceAsync( BigDecimal qty, BigDecimal price ) {
+		OrderFuture pending = getPendingFuture();
+		if ( pending == null || !replace(qty, price, false) ) {
+			return OrderFuture.completed(OrderOutcome.NOT_SENT);
+		}
+		return pending;
+	}
+	
+	@Override
+	public final OrderFuture closeMarketAsync( final long timeout, 
+			final OrderTimeoutPolicy policy ) {
+		
+		/* if there is pending position, then cancel it first */
+		OrderFuture pending = getPendingFuture();
+		if ( pending != null ) {
+			final OrderFuture close = new OrderFuture();
+			cancelOrder(false);
+			pending.addListener(new OrderListener() {
+				@Override
+				public void onComplete(OrderFuture future) {
+					close.follow(closeMarketAsync(timeout, policy));
+				}
+			});
+			return close;
+		}
+		
+		/* do nothing for non-open trades */
+		if ( !parentTrade.isOpen()) {
+			return OrderFuture.completed(OrderOutcome.NOT_SENT);
+		}
+		
+		return marketOrderAsync(parentTrade.getQty(), 
+				parentTrade.getSide().opposite(), timeout, policy);
+	}
+	
+	@Override
+	public final OrderFuture closeMarketAsync() {
+		return closeMarketAsync(parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy());
+	}
+	
+	@Override
+	public final OrderFuture longMarketAsync( BigDecimal qty, long timeout, 
+			OrderTimeoutPolicy policy ) {
+		return marketOrderAsync(qty, Side.BUY, timeout, policy);
+	}
+	
+	@Override
+	public final OrderFuture longMarketAsync( BigDecimal qty ) {
+		return marketOrderAsync(qty, Side.BUY);
+	}
+	
+	@Override
+	public final OrderFuture shortMarketAsync( BigDecimal qty, long timeout, 
+			OrderTimeoutPolicy policy ) {
+		return marketOrderAsync(qty, Side.SELL, timeout, policy);
+	}
+	
+	@Override
+	public final OrderFuture shortMarketAsync( BigDecimal qty ) {
+		return marketOrderAsync(qty, Side.SELL);
+	}
+	
+	@Override
+	public final OrderFuture reduceMarketAsync( BigDecimal qty, long timeout, 
+			OrderTimeoutPolicy policy ) {
+		if ( qty.compareTo(parentTrade.getQty()) > 0) {
+			logger.warn(">>> " + parentTrade + ": Cannot reduce more than you have.");
+			return OrderFuture.completed(OrderOutcome.NOT_SENT);
+		}
+		return marketOrderAsync(qty, parentTrade.getSide().opposite(), timeout, policy);
+	}
+	
+	@Override
+	public final OrderFuture reduceMarketAsync( BigDecimal qty ) {
+		return reduceMarketAsync(qty, parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy());
+	}
+	
+	@Override
+	public final OrderFuture augmentMarketAsync( BigDecimal qty, long timeout, 
+			OrderTimeoutPolicy policy ) {
+		return marketOrderAsync(qty, parentTrade.getSide(), timeout, policy);
+	}
+	
+	@Override
+	public final OrderFuture augmentMarketAsync( BigDecimal qty ) {
+		return augmentMarketAsync(qty, parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy());
+	}
+	
+	
+	@Override
+	public final OrderFuture limitOrderAsync( BigDecimal qty, Side side, BigDecimal limitPrice, 
+			long timeout, OrderTimeoutPolicy policy ) {
+		if ( !checkPrice(limitPrice, "limit") ) {
+			return OrderFuture.completed(OrderOutcome.NOT_SENT);
+		}
+		return submitOrder(buildLimit(qty, side, limitPrice), timeout, policy, null, false);
+	}
+	
+	@Override
+	public final OrderFuture limitOrderAsync( BigDecimal qty, Side side, BigDecimal limitPrice ) {
+		return limitOrderAsync(qty, side, limitPrice, parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy());
+	}
+	
+	@Override
+	public final OrderFuture stopOrderAsync( BigDecimal qty, Side side, BigDecimal stopPrice, 
+			long timeout, OrderTimeoutPolicy policy ) {
+		if ( !checkPrice(stopPrice, "stop") ) {
+			return OrderFuture.completed(OrderOutcome.NOT_SENT);
+		}
+		return submitOrder(buildStop(qty, side, stopPrice), timeout, policy, null, false);
+	}
+	
+	@Override
+	public final OrderFuture stopOrderAsync( BigDecimal qty, Side side, BigDecimal stopPrice ) {
+		return stopOrderAsync(qty, side, stopPrice, parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy());
+	}
+	
+	@Override
+	public final OrderFuture stopLimitOrderAsync( BigDecimal qty, Side side, BigDecimal stopPrice, 
+			BigDecimal limitPrice, long timeout, OrderTimeoutPolicy policy ) {
+		if ( !checkPrice(stopPrice, "stop") || !checkPrice(limitPrice, "limit") ) {
+			return OrderFuture.completed(OrderOutcome.NOT_SENT);
+		}
+		return submitOrder(buildStopLimit(qty, side, stopPrice, limitPrice), 
+				timeout, policy, null, false);
+	}
+	
+	@Override
+	public final OrderFuture stopLimitOrderAsync( BigDecimal qty, Side side, BigDecimal stopPrice, 
+			BigDecimal limitPrice ) {
+		return stopLimitOrderAsync(qty, side, stopPrice, limitPrice, 
+				parentTrade.getOrderTimeout(), parentTrade.getOrderTimeoutPolicy());
+	}
+	
+	@Override
+	public final OrderFuture midPegOrderAsync( BigDecimal qty, Side side, BigDecimal offset, 
+			long timeout, OrderTimeoutPolicy policy ) {
+		return submitOrder(buildMidPeg(qty, side, offset), timeout, policy, null, false);
+	}
+	
+	@Override
+	public final OrderFuture midPegOrderAsync( BigDecimal qty, Side side, BigDecimal offset ) {
+		return midPegOrderAsync(qty, side, offset, parentTrade.getOrderTimeout(), 
+				parentTrade.getOrderTimeoutPolicy());
+	}
+	
+	
+	// CHILD ORDERS //
+	
+	@Override
+	public final OrderFuture childOrderAsync( BigDecimal qty, Side side, 
+			BigDecimal limitPrice, long timeout ) {
+		if ( limitPrice != null && !checkPrice(limitPrice, "limit") ) {
+			return OrderFuture.completed(OrderOutcome.NOT_SENT);
+		}
+		OrderSingle order = (limitPrice == null) ? buildMarket(qty, side) 
+				: buildLimit(qty, side, limitPrice);
+		return sendChildOrder(order, timeout).getFuture();
+	}
+	
+	@Override
+	public final OrderFuture childOrderAsync( BigDecimal qty, Side side, BigDecimal limitPrice ) {
+		return childOrderAsync(qty, side, limitPrice, parentTrade.getOrderTimeout());
+	}
+	
+	@Override
+	public final boolean cancelChild( OrderID orderId ) {
+		WorkingOrder child = getWorkingOrders().find(orderId);
+		if ( child == null ) {
+			logger.warn(">>> " + parentTrade + ": No child order " + orderId + " to cancel.");
+			return false;
+		}
+		return cancelChildOrder(child);
+	}
+	
+	@Override
+	public final int cancelChildren() {
+		int sent = 0;
+		for ( WorkingOrder child : getWorkingOrders().snapshot() ) {
+			if ( cancelChildOrder(child) ) sent++;
+		}
+		return sent;
+	}
+	
+	
+	// SLICED ORDERS //
+	
+	@Override
+	public final SlicedOrder twap( BigDecimal qty, Side side, long duration, int slices, 
+			BigDecimal limitPrice, double maxParticipation ) {
+		SlicedOrder order = new SlicedOrder(this, SlicedOrder.Style.TWAP, qty, side, 
+				limitPrice, (slices > 0) ? duration / slices : 0, slices, maxParticipation);
+		if ( slices <= 0 || duration < slices ) {
+			logger.warn(">>> " + parentTrade + ": Invalid TWAP schedule (" + slices + 
+					" slices over " + duration + " ms); order not sent.");
+			return refuseSliced(order);
+		}
+		return startSliced(order);
+	}
+	
+	@Override
+	public final SlicedOrder twap( BigDecimal qty, Side side, long duration, int slices ) {
+		return twap(qty, side, duration, slices, null, 0);
+	}
+	
+	@Override
+	public final SlicedOrder vwap( BigDecimal qty, Side side, long duration, long interval, 
+			double participation, BigDecimal limitPrice ) {
+		int slices = (interval > 0) ? (int)((duration + interval - 1) / interval) : 0;
+		SlicedOrder order = new SlicedOrder(this, SlicedOrder.Style.VWAP, qty, side, 
+				limitPrice, interval, slices, participation);
+		if ( slices <= 0 ) {
+			logger.warn(">>> " + parentTrade + ": Invalid VWAP schedule (every " + interval + 
+					" ms over " + duration + " ms); order not sent.");
+			return refuseSliced(order);
+		}
+		if ( participation <= 0 || participation > 1 ) {
+			logger.warn(">>> " + parentTrade + ": Invalid participation rate " + 
+					participation + "; order not sent.");
+			return refuseSliced(order);
+		}
+		return startSliced(order);
+	}
+	
+	@Override
+	public final SlicedOrder vwap( BigDecimal qty, Side side, long duration, double participation ) {
+		return vwap(qty, side, duration, Math.min(duration, DEFAULT_SLICE_INTERVAL), 
+				participation, null);
+	}
+	
+	
+	// PRIVATE METHODS //
+	
+	/**
+	 * Starts a sliced order, unless there is nothing to do or the Trade
+	 * is working another one.
+	 */
+	private SlicedOrder startSliced( SlicedOrder order ) {
+		if ( order.getOrderQty().signum() <= 0 ) {
+			return refuseSliced(order);
+		}
+		if ( order.getLimitPrice() != null && !checkPrice(order.getLimitPrice(), "limit") ) {
+			return refuseSliced(order);
+		}
+		if ( !parentTrade.beginSlicedOrder(order) ) {
+			logger.warn(">>> " + parentTrade + ": Already working " + 
+					parentTrade.getSlicedOrder() + "; order not sent.");
+			return refuseSliced(order);
+		}
+		logger.info(">>> " + parentTrade + ": Working " + order + ".");
+		order.start();
+		return order;
+	}
+	
+	private SlicedOrder refuseSliced( SlicedOrder order ) {
+		order.refuse();
+		return order;
+	}
+	
+	/**
+	 * Builds and sends a market order, returning its completion handle.
+	 */
+	private OrderFuture submitMarket( BigDecimal qty, Side side, long timeout, 
+			OrderTimeoutPolicy policy, FillPolicy fillPolicy, boolean block ) {
+		return sendOrder(buildMarket(qty, side), timeout, policy, fillPolicy, block);
+	}
+	
+	/**
+	 * Sends an order built by one of the build methods.
+	 */
+	private OrderFuture submitOrder( OrderSingle order, long timeout, 
+			OrderTimeoutPolicy policy, FillPolicy fillPolicy, boolean block ) {
+		return sendOrder(order, timeout, policy, fillPolicy, block);
+	}
+	
+	/**
+	 * Returns true if the price is usable, and warns otherwise.
+	 */
+	private boolean checkPrice( BigDecimal price, String what ) {
+		if ( price == null || price.signum() <= 0 ) {
+			logger.warn(">>> " + parentTrade + ": Invalid " + what + " price " + price + "; order not sent.");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Builds a market order for the parent trade's symbol.
+	 * 
+	 * @param qty
+	 * @param side
+	 * @return
+	 */
+	final OrderSingle buildMarket( BigDecimal qty, Side side ) {
+		/* round to integer */
+		qty = qty.setScale(0);
+		/* continuations may place orders from worker threads */
+		synchronized(orderBuilder) {
+			return getOrderBuilder()
+			.makeMarket(parentTrade.getSymbol(), qty, side.toMetcSide())
+			.getOrder();
+		}
+	}
+	
+	/**
+	 * Builds a limit order for the parent trade's symbol.
+	 */
+	final OrderSingle buildLimit( BigDecimal qty, Side side, BigDecimal limitPrice ) {
+		qty = qty.setScale(0);
+		synchronized(orderBuilder) {
+			return getOrderBuilder()
+			.makeLimit(parentTrade.getSymbol(), qty, side.toMetcSide(), limitPrice)
+			.getOrder();
+		}
+	}
+	
+	/**
+	 * Builds a stop order for the parent trade's symbol.
+	 */
+	final OrderSingle buildStop( BigDecimal qty, Side side, BigDecimal stopPrice ) {
+		qty = qty.setScale(0);
+		synchronized(orderBuilder) {
+			return getOrderBuilder()
+			.makeStop(parentTrade.getSymbol(), qty, side.toMetcSide(), stopPrice)
+			.getOrder();
+		}
+	}
+	
+	/**
+	 * Builds a stop-limit order for the parent trade's symbol.
+	 */
+	final OrderSingle buildStopLimit( BigDecimal qty, Side side, BigDecimal stopPrice,
+			BigDecimal limitPrice ) {
+		qty = qty.setScale(0);
+		synchronized(orderBuilder) {
+			return getOrderBuilder()
+			.makeStopLimit(parentTrade.getSymbol(), qty, side.toMetcSide(), stopPrice, limitPrice)
+			.getOrder();
+		}
+	}
+	
+	/**
+	 * Builds a midpoint-pegged order for the parent trade's symbol.
+	 */
+	final OrderSingle buildMidPeg( BigDecimal qty, Side side, BigDecimal offset ) {
+		qty = qty.setScale(0);
+		synchronized(orderBuilder) {
+			return getOrderBuilder()
+			.makeMidPeg(parentTrade.getSymbol(), qty, side.toMetcSide(), offset)
+			.getOrder();
+		}
+	}
+	
+	/**
+	 * Sends an order built by one of the build methods, without a timeout of its own
+	 * (i.e. as part of a Basket).
+	 * 
+	 * @param order
+	 * @return
+	 */
+	final OrderFuture submit( OrderSingle order ) {
+		return sendOrder(order, 0, null, null, false);
+	}
+	
 }
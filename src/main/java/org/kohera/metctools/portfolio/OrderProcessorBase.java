@@ -1,12 +1,17 @@
 package org.kohera.metctools.portfolio;
 
 import java.io.Serializable;
+import java.math.BigDecimal;
 
 import org.apache.log4j.Logger;
+import org.kohera.metctools.DelegatorStrategy.Framework;
 import org.kohera.metctools.util.OrderBuilder;
+import org.marketcetera.trade.ExecutionReport;
 import org.marketcetera.trade.OrderCancel;
 import org.marketcetera.trade.OrderID;
+import org.marketcetera.trade.OrderReplace;
 import org.marketcetera.trade.OrderSingle;
+import org.marketcetera.trade.OrderStatus;
 import org.marketcetera.trade.BrokerID;
 
 class OrderProcessorBase {
@@ -18,22 +23,30 @@ class OrderProcessorBase {
 	/* used for synchronization of the order-sending methods */
 	private final Object transactionLock 
 		= new Object();
-	private final Object cancelLock 
-		= new Object();
 
 
 	private BrokerID 	brokerId;				// broker id going to the OrderBuilder
 	private String 		account;				// account string going to the OrderBuilder
 	private OrderID		pendingOrderId;			// order to be filled
 	private OrderID		cancelOrderId;			// cancel order id, which is the subordinate of the pendingOrder
+	private OrderID		replaceOrderId;			// cancel/replace order id, while the replace is in flight
+	private boolean		cancelDeferred;			// true if a cancel waits for the replace in flight
+	private OrderSingle	pendingOrder;			// the pending order as last sent or replaced
+	private OrderSingle	replacement;			// the amended order, while the replace is in flight
+	private boolean		replaceAccepted;		// outcome of the last replace
 
 	protected final OrderBuilder orderBuilder;	// object for building metc OrderSingles
 	protected final Trade parentTrade;			// ref. to the parent trade
 
-	private Thread		outThr;					// outgoing thread that sends orders and may block
+	private OrderFuture	pendingFuture;			// completion handle of the pending order
 	private FillPolicy	fillPolicy;
 
 	private FIXPostProcessor postProcessor;
+
+	private final WorkingOrders workingOrders	// child orders working alongside the pending order
+		= new WorkingOrders();
+	private final RiskGate.RateCounter orderRate	// orders sent by this Trade, for the RiskGate
+		= new RiskGate.RateCounter();
 	
 	/* logging */
 	private final static Logger logger = 
@@ -124,6 +137,26 @@ class OrderProcessorBase {
 		return cancelOrderId;
 	}
 
+	/**
+	 * Returns the id of the cancel/replace in flight, or null.
+	 * 
+	 * @return
+	 */
+	public final OrderID getReplaceOrderId() {
+		synchronized(transactionLock) {
+			return replaceOrderId;
+		}
+	}
+
+	/**
+	 * Returns the book of child orders.
+	 * 
+	 * @return
+	 */
+	final WorkingOrders getWorkingOrders() {
+		return workingOrders;
+	}
+
 	/**
 	 * Returns true if and only if an order is pending fill.
 	 * 
@@ -133,109 +166,409 @@ class OrderProcessorBase {
 		return pendingOrderId!=null;
 	}
 
+	/**
+	 * Returns the completion handle of the pending order, or null.
+	 * 
+	 * @return
+	 */
+	public final OrderFuture getPendingFuture() {
+		synchronized(transactionLock) {
+			return pendingFuture;
+		}
+	}
+
 
 	// PRIVATE METHODS //
 
 	/**
 	 * Internal method for sending orders.
 	 * 
-	 * This method can only be accessed by a single thread at a time.  Once
-	 * it is invoked, the invoking thread will block until
+	 * The order is sent on the calling thread.  If a timeout is given, the
+	 * timeout policy is scheduled on the shared OrderScheduler and runs
+	 * only if the order is still pending when the timeout expires.  If
+	 * block is true, the calling thread waits until the order completes
+	 * or times out.
+	 * 
+	 * Only one order can be pending at a time: if one already is, the
+	 * order is not sent and its handle completes as NOT_SENT.
+	 * 
+	 * @return the completion handle of the order
 	 */
-	synchronized protected final void sendOrder(final OrderSingle order, 
+	protected final OrderFuture sendOrder(final OrderSingle order, 
 			final long timeout, final OrderTimeoutPolicy policy,
 			final FillPolicy fillPolicy, final boolean block) {
 
-		logger.trace("--- Starting the out thread...");
-
-		/* We create a new thread that will send the order and
-		 * wait for the result.
-		 */
-		outThr = new Thread() {
-			@Override
-			public void run() {
-				synchronized(transactionLock) {
-					/* make sure all fields are available */
-					checkGoodToSend();
-
-					/* post-process the message, if applicable */
-					if ( postProcessor != null ) {
-						postProcessor.postProcess(order);
-					}
-					
-					/* get the parent */
-					PortfolioStrategy parent = parentTrade.getParentStrategy();
-					pendingOrderId = order.getOrderID();
-					OrderProcessorBase.this.fillPolicy =
-						fillPolicy;
-
-					parent.getFramework().send(order);
-
-					/* logging */
-					logger.trace("--- Sent the order, waiting.");
-
-					/* wait until this transaction is completed */
-					try {
-						transactionLock.wait(timeout);
-
-						/* if it is still pending... */
-						if ( isPending() && policy != null ) {
-							policy.onOrderTimeout(
-									parentTrade.getParentStrategy(), 
-									pendingOrderId, 
-									timeout, 
-									parentTrade);
-						}
-
-					} catch (InterruptedException e) {
-						/* this thread has been descheduled due to something */
-						logger.trace("--- Transaction has been disrupted...");
-					}
-				}
+		final OrderFuture future;
+		final OrderTimestamps stamps = OrderLatency.start(parentTrade.getSymbol(), brokerId);
+		
+		synchronized(transactionLock) {
+			/* make sure all fields are available */
+			checkGoodToSend();
+			if ( isPending() ) {
+				logger.warn(">>> " + parentTrade + ": Order " + pendingOrderId + 
+						" is pending; order " + order.getOrderID() + " not sent.");
+				return OrderFuture.completed(OrderOutcome.NOT_SENT);
+			}
+			if ( !passesRiskGate(order) ) {
+				future = new OrderFuture(order.getOrderID());
+				future.complete(OrderOutcome.REJECTED, null);
+				return future;
+			}
 
-				/* everything went ok */
-				logger.trace("--- Transaction has completed.");
+			/* post-process the message, if applicable */
+			if ( postProcessor != null ) {
+				postProcessor.postProcess(order);
 			}
-		};
-		outThr.start();
+			
+			/* get the parent */
+			PortfolioStrategy parent = parentTrade.getParentStrategy();
+			pendingOrderId = order.getOrderID();
+			pendingOrder = order;
+			indexOrder(pendingOrderId);
+			OrderProcessorBase.this.fillPolicy =
+				fillPolicy;
+			future = pendingFuture = new OrderFuture(pendingOrderId);
+			future.setTimestamps(stamps);
+
+			BrokerThrottle.send(parent.getFramework(), brokerId, order, pendingOrderId, stamps);
+		}
+
+		/* logging */
+		logger.trace("--- Sent the order.");
+
+		/* schedule the timeout policy (0 = never) */
+		if ( timeout > 0 ) {
+			future.setTimeoutTask(OrderScheduler.schedule(timeout, new Runnable() {
+				@Override
+				public void run() {
+					orderTimeout(future, timeout, policy);
+				}
+			}));
+		}
 
 		if (block) {
-			logger.trace("--- Blocking until out thread completes...");
+			logger.trace("--- Blocking until the transaction completes...");
+			try {
+				future.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Runs when the timeout of an order expires.  The policy is only
+	 * applied if the order is still the pending one.
+	 */
+	private void orderTimeout( OrderFuture future, long timeout, 
+			OrderTimeoutPolicy policy ) {
+		try {
+			synchronized(transactionLock) {
+				if ( future.isDone() || future != pendingFuture ) {
+					return;
+				}
+			}
+			if ( policy != null ) {
+				policy.onOrderTimeout(
+						parentTrade.getParentStrategy(), 
+						future.getOrderId(), 
+						timeout, 
+						parentTrade);
+			}
+		} catch (Exception e) {
+			logger.error(">>> " + parentTrade + ": Order timeout policy failed.", e);
+		} finally {
+			future.settle();
+			logger.trace("--- Transaction has timed out.");
+		}
+	}
+
+	/**
+	 * Amends the quantity and/or the limit price of the pending order in
+	 * place, with a cancel/replace.  The order keeps its completion handle
+	 * (now pointing to the new OrderID), its timeout and its fill policy.
+	 * 
+	 * At most one cancel or replace can be in flight at a time.  If block
+	 * is true, waits until the replace is acknowledged or rejected, or
+	 * until the order completes.
+	 * 
+	 * @param qty		new total quantity (filled shares included), or null
+	 * @param price		new limit (or stop) price, or null
+	 * @param block
+	 * @return true if the replace was sent (and, if block, accepted)
+	 */
+	protected final boolean replaceOrder( BigDecimal qty, BigDecimal price, 
+			boolean block ) {
+		synchronized(transactionLock) {
+			if ( !isPending() ) {
+				logger.warn(">>> " + parentTrade + 
+						": There is no pending order to replace.");
+				return false;
+			}
+			if ( cancelOrderId != null || replaceOrderId != null ) {
+				logger.warn(">>> " + parentTrade + 
+						": A cancel or replace is already in flight; not replacing.");
+				return false;
+			}
+
+			OrderSingle amended;
+			try {
+				synchronized(orderBuilder) {
+					amended = orderBuilder.makeReplacement(pendingOrder, qty, price).getOrder();
+				}
+			} catch (IllegalArgumentException e) {
+				logger.warn(">>> " + parentTrade + ": " + e.getMessage() + " Not replacing.");
+				return false;
+			}
+			if ( postProcessor != null ) {
+				postProcessor.postProcess(amended);
+			}
+
+			/* only the added quantity counts towards the exposure limits */
+			BigDecimal added = amended.getQuantity().subtract(pendingOrder.getQuantity())
+				.max(BigDecimal.ZERO);
+			if ( !passesRiskGate(amended, added) ) {
+				return false;
+			}
+
+			Framework framework = parentTrade.getParentStrategy().getFramework();
+			OrderReplace orderReplace = framework.cancelReplace(pendingOrderId, amended, false);
+			if ( orderReplace == null ) {
+				logger.error(">>> " + parentTrade + ": Could not replace " + pendingOrderId + ".");
+				return false;
+			}
+			final OrderID id = replaceOrderId = orderReplace.getOrderID();
+			replacement = amended;
+			replaceAccepted = false;
+			indexOrder(replaceOrderId);
+			BrokerThrottle.sendCancel(framework, brokerId, orderReplace, id, pendingOrderId);
+
+			logger.debug(">>> Sending replace order " + replaceOrderId + " to replace " + pendingOrderId );
+
+			if ( !block ) {
+				return true;
+			}
 			try {
-				outThr.join();
+				while ( id.equals(replaceOrderId) ) {
+					transactionLock.wait();
+				}
 			} catch (InterruptedException e) {
-				//
+				Thread.currentThread().interrupt();
 			}
+			return replaceAccepted;
 		}
 	}
 
+	/**
+	 * Cancels the pending order.  At most one cancel or replace can be in
+	 * flight at a time: a cancel asked for while a replace is in flight is
+	 * sent once the replace is acknowledged or rejected, to whichever order
+	 * is then pending.  If block is true, waits until the pending order
+	 * completes.
+	 * 
+	 * @param block
+	 */
 	protected final void cancelOrder(final boolean block) {
-		synchronized(cancelLock) {
+		OrderFuture future;
+		synchronized(transactionLock) {
 			if ( !isPending() ) {
 				logger.warn(">>> " + parentTrade + 
 						": There is no pending order to cancel.");
 				return;
 			}
+			future = pendingFuture;
+
+			if ( cancelOrderId != null || cancelDeferred ) {
+				logger.debug(">>> " + parentTrade + ": A cancel of " + pendingOrderId + 
+						" is already in flight.");
+			} else if ( BrokerThrottle.withdraw(brokerId, pendingOrderId) ) {
+				/* an order that has not left the throttle is simply dropped,
+				 * along with any replace of it */
+				dropReplace();
+				cancelSuccess();
+				return;
+			} else if ( replaceOrderId != null ) {
+				cancelDeferred = true;
+				logger.debug(">>> " + parentTrade + ": Cancel of " + pendingOrderId + 
+						" waits for the replace " + replaceOrderId + ".");
+			} else {
+				sendCancel();
+			}
+		}
 
-			OrderCancel orderCancel = parentTrade.getParentStrategy().getFramework()
-					.cancelOrder(pendingOrderId, true);
-			cancelOrderId = orderCancel.getOrderID();
+		if ( block && future != null ) {
+			try {
+				future.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 
-			logger.debug(">>> Sending cancel order " + cancelOrderId + " to cancel " + pendingOrderId );
+	/**
+	 * Makes the replacing order the pending one, once the replace is
+	 * acknowledged by the given report.
+	 * 
+	 * @param report
+	 */
+	public final void replaceSuccess( ExecutionReport report ) {
+		synchronized(transactionLock) {
+			OrderID newId = report.getOrderID();
+			if ( newId == null || newId.equals(pendingOrderId) ) {
+				return;
+			}
+			if ( replaceOrderId == null || !replaceOrderId.equals(newId) ) {
+				logger.warn(">>> " + parentTrade + ": Order " + pendingOrderId + 
+						" was replaced by " + newId + " outside of this trade.");
+			} else {
+				pendingOrder = replacement;
+			}
+			unindexOrder(pendingOrderId);
+			pendingOrderId = newId;
+			indexOrder(pendingOrderId);
+			if ( pendingFuture != null ) {
+				pendingFuture.setOrderId(pendingOrderId);
+			}
+			endReplace(true);
+		}
+	}
 
+	/**
+	 * Drops the replace in flight, because it was rejected.  The original
+	 * order is still working.
+	 */
+	public final void replaceFailure() {
+		synchronized(transactionLock) {
+			unindexOrder(replaceOrderId);
+			endReplace(false);
+		}
+	}
+
+	/**
+	 * Sends a child order, which works alongside the pending order and
+	 * any other child orders.  Child orders are not subject to the single
+	 * pending order rule; their reports are applied by the Trade.  If a
+	 * timeout is given, the order is canceled if still working when it
+	 * expires.
+	 * 
+	 * @param order
+	 * @param timeout	milliseconds (0 = never)
+	 * @return the child order
+	 */
+	protected final WorkingOrder sendChildOrder( OrderSingle order, long timeout ) {
+		OrderTimestamps stamps = OrderLatency.start(parentTrade.getSymbol(), brokerId);
+		final WorkingOrder child;
+
+		/* the risk gate must see the working orders of concurrent sends */
+		synchronized(transactionLock) {
+			checkGoodToSend();
+			if ( !passesRiskGate(order) ) {
+				return riskRejected(order);
+			}
+			if ( postProcessor != null ) {
+				postProcessor.postProcess(order);
+			}
 
-			if (block) {
-					try {
-						cancelLock.wait();
-					} catch (InterruptedException e) { }
+			child = new WorkingOrder(order.getOrderID(), 
+					Side.fromMetcSide(order.getSide()), order.getQuantity(), order.getPrice());
+			child.getFuture().setTimestamps(stamps);
+			workingOrders.add(child);
+			indexOrder(child.getOrderId());
+			BrokerThrottle.send(parentTrade.getParentStrategy().getFramework(), brokerId, 
+					order, child.getOrderId(), stamps);
+		}
+		logger.trace("--- Sent child order " + child.getOrderId() + ".");
+
+		if ( timeout > 0 ) {
+			child.getFuture().setTimeoutTask(OrderScheduler.schedule(timeout, new Runnable() {
+				@Override
+				public void run() {
+					if ( child.isLive() ) {
+						logger.debug(">>> " + parentTrade + ": Child order " + 
+								child.getOrderId() + " timed out; canceling.");
+						cancelChildOrder(child);
+					}
 				}
+			}));
+		}
+		return child;
+	}
+
+	/**
+	 * Sends a cancel for a child order, unless one is in flight.
+	 * 
+	 * @param child
+	 * @return true if the cancel was sent
+	 */
+	protected final boolean cancelChildOrder( WorkingOrder child ) {
+		synchronized(child) {
+			if ( !child.isLive() || child.getCancelOrderId() != null ) {
+				return false;
+			}
+			if ( BrokerThrottle.withdraw(brokerId, child.getOrderId()) ) {
+				endChildOrder(child, OrderOutcome.CANCELED, null);
+				return true;
 			}
+			Framework framework = parentTrade.getParentStrategy().getFramework();
+			OrderCancel orderCancel = framework.cancelOrder(child.getOrderId(), false);
+			if ( orderCancel == null ) {
+				logger.error(">>> " + parentTrade + ": Could not cancel child order " + 
+						child.getOrderId() + ".");
+				return false;
+			}
+			workingOrders.addCancel(child, orderCancel.getOrderID());
+			indexOrder(orderCancel.getOrderID());
+			BrokerThrottle.sendCancel(framework, brokerId, orderCancel, 
+					orderCancel.getOrderID(), child.getOrderId());
+			logger.debug(">>> Sending cancel order " + orderCancel.getOrderID() + 
+					" to cancel child " + child.getOrderId() );
+			return true;
+		}
+	}
+
+	/**
+	 * Removes a child order that has reached a terminal state, and
+	 * completes its handle.
+	 * 
+	 * @param child
+	 * @param outcome
+	 * @param report
+	 */
+	final void endChildOrder( WorkingOrder child, OrderOutcome outcome, ExecutionReport report ) {
+		synchronized(child) {
+			workingOrders.remove(child);
+			unindexOrder(child.getOrderId());
+			unindexOrder(child.getCancelOrderId());
+		}
+		child.getFuture().complete(outcome, report);
+	}
+
+	/**
+	 * Drops the rejected cancel of a child order; the order is still working.
+	 * 
+	 * @param cancelId
+	 */
+	final void childCancelFailure( WorkingOrder child, OrderID cancelId ) {
+		synchronized(child) {
+			workingOrders.removeCancel(cancelId);
+			unindexOrder(cancelId);
+		}
 	}
 
 	/**
 	 * Will unlock the outgoing thread, which will complete.
 	 */
 	public final void orderSuccess() {
+		orderSuccess(null);
+	}
+
+	/**
+	 * Completes the pending order as filled by the given report.
+	 * 
+	 * @param report
+	 */
+	public final void orderSuccess( ExecutionReport report ) {
 		synchronized(transactionLock) {
 			if ( fillPolicy != null ) {
 				fillPolicy.onFill(parentTrade.getParentStrategy(), 
@@ -243,53 +576,240 @@ class OrderProcessorBase {
 				fillPolicy = null;
 			}
 
+			unindexOrder(pendingOrderId);
 			pendingOrderId = null;
 
 			if ( cancelOrderId!=null) {
+				unindexOrder(cancelOrderId);
 				logger.warn(">>> Failed to execute cancel order " + cancelOrderId );
 				cancelOrderId = null;
 			}
 
-
-			transactionLock.notify();
+			completePending(OrderOutcome.FILLED, report);
 		}
 	}
 
 	public final void cancelSuccess() {
-		synchronized(cancelLock) {
-			System.out.println("Cancel success");
-			cancelOrderId = pendingOrderId = null;
-			cancelLock.notify();
-			synchronized(transactionLock) {
-				transactionLock.notify();
-			}
-		}
+		cancelSuccess(null);
+	}
+
+	/**
+	 * Completes the pending order as canceled by the given report.
+	 * 
+	 * @param report
+	 */
+	public final void cancelSuccess( ExecutionReport report ) {
+		endCancel(OrderOutcome.CANCELED, report);
 	}
 	
+	/**
+	 * Stops tracking the pending order because its cancel was rejected.
+	 */
 	public final void cancelFailure() {
-		cancelSuccess(); // do the same thing
+		endCancel(OrderOutcome.UNTRACKED, null);
+	}
+
+	private void endCancel( OrderOutcome outcome, ExecutionReport report ) {
+		synchronized(transactionLock) {
+			logger.debug(">>> " + parentTrade + ": Cancel of " + pendingOrderId + 
+					" ended as " + outcome + ".");
+			unindexOrder(pendingOrderId);
+			unindexOrder(cancelOrderId);
+			cancelOrderId = pendingOrderId = null;
+			completePending(outcome, report);
+		}
 	}
 
 	public final void orderFailure() {
+		orderFailure(null);
+	}
+
+	/**
+	 * Completes the pending order as rejected by the given report.
+	 * 
+	 * @param report
+	 */
+	public final void orderFailure( ExecutionReport report ) {
 		synchronized(transactionLock) {
 			logger.trace(" --- Order transaction seems to have failed...");
 
+			unindexOrder(pendingOrderId);
 			pendingOrderId = null;
 
 			if ( cancelOrderId!=null) {
+				unindexOrder(cancelOrderId);
 				logger.warn(">>> Failed to execute cancel order " + cancelOrderId );
 				cancelOrderId = null;
 			}
 
-			transactionLock.notify();
+			completePending(OrderOutcome.REJECTED, report);
 		}
 	}
 
+	/**
+	 * Releases any thread blocked on the pending order, and drops its
+	 * timeout.  The order itself is left alone.
+	 */
 	public final void disrupt() {
-		outThr.interrupt();
+		OrderFuture future;
+		synchronized(transactionLock) {
+			future = pendingFuture;
+		}
+		if ( future != null ) {
+			future.disrupt();
+			logger.trace("--- Transaction has been disrupted...");
+		}
 	}
 
+	/**
+	 * Completes the handle of the pending order.  Must hold the
+	 * transactionLock.
+	 */
+	private void completePending( OrderOutcome outcome, ExecutionReport report ) {
+		dropReplace();
+		cancelDeferred = false;
+		pendingOrder = null;
+		if ( pendingFuture != null ) {
+			pendingFuture.complete(outcome, report);
+			pendingFuture = null;
+			logger.trace("--- Transaction has completed.");
+		}
+	}
+
+
+	/**
+	 * Abandons the replace in flight, if any.  Must hold the
+	 * transactionLock.
+	 */
+	private void dropReplace() {
+		if ( replaceOrderId != null ) {
+			unindexOrder(replaceOrderId);
+			endReplace(false);
+		}
+	}
+
+	/**
+	 * Clears the replace in flight and wakes up the thread waiting on it.
+	 * Must hold the transactionLock.
+	 */
+	private void endReplace( boolean accepted ) {
+		replaceOrderId = null;
+		replacement = null;
+		replaceAccepted = accepted;
+		transactionLock.notifyAll();
+		if ( cancelDeferred ) {
+			cancelDeferred = false;
+			if ( isPending() ) {
+				sendCancel();
+			}
+		}
+	}
+
+	/**
+	 * Sends a cancel of the pending order.  Must hold the transactionLock.
+	 */
+	private void sendCancel() {
+		Framework framework = parentTrade.getParentStrategy().getFramework();
+		OrderCancel orderCancel = framework.cancelOrder(pendingOrderId, false);
+		if ( orderCancel == null ) {
+			logger.error(">>> " + parentTrade + ": Could not cancel " + pendingOrderId + ".");
+			return;
+		}
+		cancelOrderId = orderCancel.getOrderID();
+		indexOrder(cancelOrderId);
+		BrokerThrottle.sendCancel(framework, brokerId, orderCancel, 
+				cancelOrderId, pendingOrderId);
+
+		logger.debug(">>> Sending cancel order " + cancelOrderId + " to cancel " + pendingOrderId );
+	}
+
+	/**
+	 * Registers a working order of the parent trade in the strategy's
+	 * order index, so that reports for it are routed by OrderID.
+	 * 
+	 * @param orderId
+	 */
+	private void indexOrder( OrderID orderId ) {
+		PortfolioStrategy parent = parentTrade.getParentStrategy();
+		if ( parent != null && orderId != null ) {
+			parent.getOrderIndex().put(orderId, parentTrade);
+		}
+	}
+
+	/**
+	 * Removes an order that has reached a terminal state from the
+	 * strategy's order index.
+	 * 
+	 * @param orderId
+	 */
+	private void unindexOrder( OrderID orderId ) {
+		PortfolioStrategy parent = parentTrade.getParentStrategy();
+		if ( parent != null && orderId != null ) {
+			parent.getOrderIndex().remove(orderId);
+		}
+	}
 
+	/**
+	 * Runs the pre-trade checks of the portfolio's RiskGate, if any.
+	 * Refusals go to the gate's listener, and to the reject policy if the
+	 * gate notifies it.
+	 * 
+	 * @param order
+	 * @return true if the order may be sent
+	 */
+	private boolean passesRiskGate( OrderSingle order ) {
+		return passesRiskGate(order, order.getQuantity());
+	}
+	
+	/**
+	 * Runs the pre-trade checks on an order that adds the given quantity
+	 * to the exposure of the Trade.
+	 * 
+	 * @param order
+	 * @param added
+	 * @return true if the order may be sent
+	 */
+	private boolean passesRiskGate( OrderSingle order, BigDecimal added ) {
+		RiskGate gate = parentTrade.getRiskGate();
+		if ( gate == null ) return true;
+		String reason = gate.check(parentTrade, order.getOrderID(), 
+				Side.fromMetcSide(order.getSide()), order.getQuantity(), added, 
+				order.getPrice(), orderRate);
+		if ( reason == null ) return true;
+		logger.warn(">>> " + parentTrade + ": Order " + order.getOrderID() + 
+				" refused by the risk gate: " + reason + ".");
+		if ( gate.isRejectPolicyNotified() ) {
+			notifyRefused(order.getOrderID(), reason);
+		}
+		return false;
+	}
+	
+	/**
+	 * Reports an order refused by the risk gate to the reject policy.
+	 */
+	private void notifyRefused( OrderID orderId, String reason ) {
+		RejectPolicy policy = parentTrade.getRejectPolicy();
+		if ( policy == null ) return;
+		PortfolioStrategy parent = parentTrade.getParentStrategy();
+		if ( policy instanceof RiskRejectPolicy ) {
+			((RiskRejectPolicy)policy).onRefused(parent, orderId, parentTrade, reason);
+		} else {
+			policy.onReject(parent, orderId, parentTrade, null);
+		}
+	}
+	
+	/**
+	 * Returns a completed, rejected child order for an order that was 
+	 * not sent.
+	 */
+	private WorkingOrder riskRejected( OrderSingle order ) {
+		WorkingOrder rejected = new WorkingOrder(order.getOrderID(), 
+				Side.fromMetcSide(order.getSide()), order.getQuantity(), order.getPrice());
+		rejected.update(OrderStatus.Rejected, null, BigDecimal.ZERO, null);
+		rejected.getFuture().complete(OrderOutcome.REJECTED, null);
+		return rejected;
+	}
+	
 	/**
 	 * Checks that account info is in place and that there
 	 * is a parent strategy available to send the order.
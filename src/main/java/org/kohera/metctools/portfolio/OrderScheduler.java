@@ -0,0 +1,124 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kohera.metctools.util.Timer;
+
+/**
+ * Shared scheduling resources for the OrderProcessors.
+ * 
+ * A single timing wheel keeps track of all order timeouts; when one
+ * expires, its task is handed to a small, fixed pool of worker threads.
+ * Sending an order therefore never creates a thread, and neither does a
+ * burst of timeouts.  Tasks run on the pool should not block: the
+ * pre-programmed timeout policies cancel without waiting and continue
+ * with an OrderListener.
+ * 
+ * @author Jake Brukhman
+ *
+ */
+final class OrderScheduler {
+
+	/* number of worker threads */
+	static final int WORKERS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	
+	/* fields */
+	private static final ExecutorService workers = newWorkerPool();
+	private static final Timer timer = new Timer(workers);
+	
+	/**
+	 * Thread factory for daemon threads, so that the scheduler does not
+	 * keep the strategy agent alive.
+	 */
+	private static final class NamedThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		NamedThreadFactory( String name ) {
+			this.name = name;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thr = new Thread(r, name + "-" + count.incrementAndGet());
+			thr.setDaemon(true);
+			return thr;
+		}
+	}
+	
+	/* lazily created pool for Portfolio.forEach() actions */
+	private static final class ActionPool {
+		static final int ACTIONS = 32;
+		static final ExecutorService actions = newPool(ACTIONS, "PortfolioAction");
+	}
+	
+	private OrderScheduler() { }
+	
+	/**
+	 * Fixed pool of WORKERS threads over an unbounded queue, so that a
+	 * burst of timeouts queues up instead of spawning a thread each.
+	 */
+	private static ExecutorService newWorkerPool() {
+		return newPool(WORKERS, "OrderWorker");
+	}
+	
+	/**
+	 * Pool of daemon threads over an unbounded queue; idle threads exit
+	 * after a minute.
+	 * 
+	 * @param threads
+	 * @param name		prefix of the thread names
+	 * @return
+	 */
+	static ExecutorService newPool( int threads, String name ) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new NamedThreadFactory(name));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	/**
+	 * Run a task on a worker thread after a delay (in milliseconds).
+	 * 
+	 * @param delay
+	 * @param task
+	 * @return
+	 */
+	static Timer.Timeout schedule( long delay, final Runnable task ) {
+		return timer.fireIn(delay, new Timer.Task() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void performTask() {
+				task.run();
+			}
+		});
+	}
+	
+	/**
+	 * Run a task on a worker thread as soon as possible.
+	 * 
+	 * @param task
+	 */
+	static void execute( Runnable task ) {
+		workers.execute(task);
+	}
+	
+	/**
+	 * Returns the pool that runs the actions of Portfolio.forEach().
+	 * Actions may block (e.g. on a blocking order, whose timeout is run
+	 * by the workers), so they get a pool of their own.
+	 * 
+	 * @return
+	 */
+	static Executor actionExecutor() {
+		return ActionPool.actions;
+	}
+}
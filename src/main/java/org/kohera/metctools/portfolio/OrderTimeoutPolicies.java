@@ -50,8 +50,19 @@ public final class OrderTimeoutPolicies {
 					Messages.MSG_ON_TIMEOUT_CANCEL(timeout)
 					);
 			
-			/* ...and cancel the order */
-			trade.order().cancel(true);
+			/* ...and cancel the order, without parking the timeout worker */
+			OrderFuture pending = trade.getOrderProcessor().getPendingFuture();
+			trade.order().cancel(false);
+			if ( pending != null ) {
+				pending.addListener(new OrderListener() {
+					@Override
+					public void onComplete(OrderFuture future) {
+						Logger.getLogger(PortfolioStrategy.class).info(
+								">>> Timed-out order " + future.getOrderId() + 
+								" ended as " + future.getOutcome() + ".");
+					}
+				});
+			}
 		}		
 	
 	};
@@ -72,8 +83,8 @@ public final class OrderTimeoutPolicies {
 					Messages.MSG_ON_TIMEOUT_CANCEL(timeout)
 					);
 			
-			/* ...and cancel the order */
-			trade.order().closeMarket(60000, null);
+			/* ...and cancel the order, then close once it is canceled */
+			trade.order().closeMarketAsync(60000, null);
 		}		
 	
 	};
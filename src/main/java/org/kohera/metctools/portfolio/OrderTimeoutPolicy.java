@@ -16,6 +16,10 @@ public interface OrderTimeoutPolicy extends Serializable {
 	/**
 	 * Override this method to implement an order timeout policy.
 	 * 
+	 * It runs on one of a few shared worker threads, so it should not
+	 * block (e.g. cancel with cancel(false) and react to the outcome with
+	 * an OrderListener on the order's handle).
+	 * 
 	 * @param sender
 	 * @param orderId
 	 * @param timeout
@@ -0,0 +1,111 @@
+package org.kohera.metctools.portfolio;
+
+import org.marketcetera.trade.BrokerID;
+import org.marketcetera.trade.OrderStatus;
+
+/**
+ * Lifecycle timestamps of an order, from System.nanoTime().
+ *
+ * A timestamp is zero until the order reaches the corresponding stage.
+ * Timestamps are only taken while OrderLatency is enabled.
+ *
+ * @see OrderFuture#getTimestamps()
+ * @author Jake Brukhman
+ *
+ */
+public final class OrderTimestamps {
+
+	/* fields */
+	private final String symbol;
+	private final BrokerID brokerId;
+	private final long submitted = System.nanoTime();
+	private volatile long sent;
+	private volatile long acknowledged;
+	private volatile long firstFill;
+	private volatile long completed;
+
+	OrderTimestamps( String symbol, BrokerID brokerId ) {
+		this.symbol = symbol;
+		this.brokerId = brokerId;
+	}
+
+	public String getSymbol() { return symbol; }
+	public BrokerID getBrokerId() { return brokerId; }
+
+	/**
+	 * Returns when the order was handed to the OrderProcessor.
+	 */
+	public long getSubmitted() { return submitted; }
+
+	/**
+	 * Returns when the order was sent to the broker (after any wait in
+	 * the BrokerThrottle).
+	 */
+	public long getSent() { return sent; }
+
+	/**
+	 * Returns when the first report of the order (PendingNew, New, a
+	 * fill or a rejection) was received.
+	 */
+	public long getAcknowledged() { return acknowledged; }
+
+	/**
+	 * Returns when the first partial or full fill was received.
+	 */
+	public long getFirstFill() { return firstFill; }
+
+	/**
+	 * Returns when the order completed, whatever the outcome.
+	 */
+	public long getCompleted() { return completed; }
+
+	@Override
+	public String toString() {
+		return "OrderTimestamps{" + symbol + ": sent +" + since(sent) + ", ack +" +
+			since(acknowledged) + ", first fill +" + since(firstFill) + ", done +" +
+			since(completed) + " ns}";
+	}
+
+
+	// PACKAGE METHODS //
+
+	void markSent() {
+		sent = System.nanoTime();
+	}
+
+	/**
+	 * Notes the arrival of a report with the given status.
+	 */
+	void markReport( OrderStatus status ) {
+		switch ( status ) {
+		case PartiallyFilled:
+		case Filled:
+			if ( firstFill == 0 ) firstFill = System.nanoTime();
+			/* fall through */
+		case PendingNew:
+		case New:
+		case Rejected:
+			if ( acknowledged == 0 ) acknowledged = (firstFill != 0) ? firstFill : System.nanoTime();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Notes the completion of the order; returns false if it was already
+	 * noted.
+	 */
+	synchronized boolean markCompleted() {
+		if ( completed != 0 ) return false;
+		completed = System.nanoTime();
+		return true;
+	}
+
+
+	// PRIVATE METHODS //
+
+	private String since( long stamp ) {
+		return (stamp == 0) ? "-" : String.valueOf(stamp - submitted);
+	}
+}
@@ -3,6 +3,7 @@ package org.kohera.metctools.portfolio;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.util.Collection;
+import java.util.concurrent.Executor;
 
 import org.marketcetera.trade.BrokerID;
 
@@ -57,6 +58,16 @@ public interface Portfolio extends Serializable {
 	 */
 	public Trade getTrade( String symbol );
 	
+	/**
+	 * Returns the Trade object for this symbol, or null if the portfolio
+	 * has none.  Unlike getTrade(), this never creates a Trade, and
+	 * takes a single lookup.
+	 * 
+	 * @param symbol
+	 * @return
+	 */
+	public Trade findTrade( String symbol );
+	
 	/**
 	 * Returns a Collection of all the trades in this Portfolio.
 	 * 
@@ -78,6 +89,38 @@ public interface Portfolio extends Serializable {
 	 * @param action
 	 */
 	public void forEach( Action action );
+
+	/**
+	 * Performs an Action for each trade in the portfolio, in parallel on
+	 * a shared pool of action threads (separate from the order workers, so
+	 * actions may place blocking orders).
+	 * 
+	 * @see #forEach(Action, Executor, int, long)
+	 * @param action
+	 * @param timeout	milliseconds to wait, or 0 to wait for all trades
+	 * @return
+	 */
+	public ActionReport forEach( Action action, long timeout );
+	
+	/**
+	 * Performs an Action for each trade in the portfolio, in parallel.
+	 * 
+	 * The trades are dealt into the given number of partitions, each run
+	 * as one task on the executor (a thread pool, a ForkJoinPool, or a
+	 * virtual-thread executor).  Returns once every partition is done or
+	 * the timeout has elapsed; the trades not reached by then are skipped.
+	 * An exception thrown for one trade does not stop the others, and is
+	 * reported instead.
+	 * 
+	 * Actions run concurrently, so they must not depend on each other.
+	 * 
+	 * @param action
+	 * @param executor
+	 * @param partitions	maximum number of trades processed at once
+	 * @param timeout		milliseconds to wait, or 0 to wait for all trades
+	 * @return a report of the completed, failed and incomplete trades
+	 */
+	public ActionReport forEach( Action action, Executor executor, int partitions, long timeout );
 	
 	/**
 	 * Set the order timeout policy for the entire portfolio.
@@ -128,6 +171,18 @@ public interface Portfolio extends Serializable {
 	 * @return
 	 */
 	public BigDecimal getTotalPosition();
+	
+	/**
+	 * Returns a snapshot of the aggregate positions, notional and 
+	 * profit-loss of the portfolio.  The positions and realized profit-loss
+	 * are maintained incrementally as fills arrive; the notional and
+	 * unrealized profit-loss are marked to the last prices by this call,
+	 * with one pass over the trades if a price has changed since the last
+	 * call.
+	 * 
+	 * @return
+	 */
+	public PortfolioTotals getTotals();
 
 	/**
 	 * Set the fill policy for the entire Portfolio.
@@ -219,6 +274,36 @@ public interface Portfolio extends Serializable {
 	 */
 	public boolean isAccountInfoSet();
 
+	/**
+	 * Returns a new, empty Basket of orders on this portfolio's Trades.
+	 * 
+	 * @return
+	 */
+	public Basket basket();
+
+	/**
+	 * Closes the position of every open or pending Trade in one basket.
+	 * 
+	 * @param timeout	milliseconds for the whole basket, or 0 for none
+	 * @return the handle of the basket
+	 */
+	public BasketFuture closeAll(long timeout);
+
+	/**
+	 * Sets the pre-trade risk limits checked before each order of this
+	 * portfolio's Trades is sent, or null for none.
+	 * 
+	 * @param gate
+	 */
+	public void setRiskGate(RiskGate gate);
+	
+	/**
+	 * Returns the pre-trade risk limits, or null.
+	 * 
+	 * @return
+	 */
+	public RiskGate getRiskGate();
+
 	void wipe();
 	
 
@@ -1,9 +1,21 @@
 package org.kohera.metctools.portfolio;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.log4j.Logger;
 import org.marketcetera.trade.BrokerID;
@@ -16,7 +28,7 @@ final class PortfolioImpl implements Portfolio {
 	 */
 	private static final long serialVersionUID = -7913728982753589441L;
 	
-	/* trades */
+	/* trades (a TradeMap; writers synchronize on it) */
 	transient private PortfolioStrategy	parentStrategy;
 	private Map<String,Trade>	trades;
 	private BrokerID			brokerId;
@@ -28,6 +40,26 @@ final class PortfolioImpl implements Portfolio {
 	private RejectPolicy 		rejectPolicy;
 	private Long 				orderTimeout;
 	
+	/* pre-trade risk limits, if any */
+	private volatile RiskGate	riskGate;
+	
+	/* running totals, maintained by the trades (see Trade.updateExposure()) */
+	transient private AtomicReference<PortfolioTotals> totals;
+	
+	/* running totals marked to the last prices (see getTotals()) */
+	transient private Object				markLock = new Object();
+	transient private PortfolioTotals		markedFrom;		// running totals that were marked
+	transient private PortfolioTotals		marked;
+	transient private volatile boolean		marksStale;		// a price changed since
+	
+	/* write-ahead journal, if any */
+	transient private volatile PortfolioJournal journal;
+
+	/* parallel forEach */
+	private static final int DEFAULT_PARTITIONS = 32;
+	private static final int ACTION_RUNNING = 1;
+	private static final int ACTION_DONE = 2;
+	private static final int ACTION_FAILED = 3;
 
 	/* logging */
 	private final static Logger logger = 
@@ -38,8 +70,9 @@ final class PortfolioImpl implements Portfolio {
 	 * 
 	 */
 	public PortfolioImpl(PortfolioStrategy parent) {
-		trades = new LinkedHashMap<String,Trade>();
+		trades = new TradeMap();
 		parentStrategy = parent;
+		totals = new AtomicReference<PortfolioTotals>(PortfolioTotals.ZERO);
 	}
 	
 	@Override
@@ -74,40 +107,47 @@ final class PortfolioImpl implements Portfolio {
 		if ( trade == null ) return;
 		String symbol = trade.getSymbol();
 		
-		/* if the trade exists, but is not open, you can
-		 * replace it.  Otherwise, there is an error.
-		 */
-		if ( trades.containsKey(symbol) ) {
-			if ( trades.get(symbol).isOpen() ) {
-				logger.error(">>> Trade for symbol " + 
-						symbol + " already exists and is open.");
-				return;
-			}
-			logger.warn(">>> Removing current zero-position trade for " + 
-					symbol + " and replacing...");
-		} 
+		synchronized(trades) {
+			/* if the trade exists, but is not open, you can
+			 * replace it.  Otherwise, there is an error.
+			 */
+			Trade existing = trades.get(symbol);
+			if ( existing != null ) {
+				if ( existing.isOpen() ) {
+					logger.error(">>> Trade for symbol " + 
+							symbol + " already exists and is open.");
+					return;
+				}
+				logger.warn(">>> Removing current zero-position trade for " + 
+						symbol + " and replacing...");
+				if ( existing != trade ) {
+					forcefullyRemoveTrade(existing);
+				}
+			} 
 
-		/* set the policies for the trades from the portfolio,
-		 * unless they are already customized
-		 */
-		if ( orderTimeoutPolicy!=null ) {
-			trade.setOrderTimeoutPolicy(orderTimeoutPolicy);
-		}
+			/* set the policies for the trades from the portfolio,
+			 * unless they are already customized
+			 */
+			if ( orderTimeoutPolicy!=null ) {
+				trade.setOrderTimeoutPolicy(orderTimeoutPolicy);
+			}
 		
-		if ( orderTimeout != null ) {
-			trade.setOrderTimeout( orderTimeout.longValue());
-		}
+			if ( orderTimeout != null ) {
+				trade.setOrderTimeout( orderTimeout.longValue());
+			}
 		
-		if ( fillPolicy != null ) {
-			trade.setFillPolicy(fillPolicy);
-		}
+			if ( fillPolicy != null ) {
+				trade.setFillPolicy(fillPolicy);
+			}
 		
-		if ( rejectPolicy != null ) {
-			trade.setRejectPolicy(rejectPolicy);
-		}
+			if ( rejectPolicy != null ) {
+				trade.setRejectPolicy(rejectPolicy);
+			}
 		
-		trade.setParentPortfolio(this);
-		trades.put(symbol,trade);
+			trade.setParentPortfolio(this);
+			trades.put(symbol,trade);
+			journalTrade(trade);
+		}
 		
 		/* logging */
 		logger.trace(">>> Added trade to portfolio: " + trade);
@@ -120,11 +160,98 @@ final class PortfolioImpl implements Portfolio {
 		}
 	}
 
+	@Override
+	public ActionReport forEach(Action action, long timeout) {
+		return forEach(action, OrderScheduler.actionExecutor(), DEFAULT_PARTITIONS, timeout);
+	}
+
+	@Override
+	public ActionReport forEach(final Action action, Executor executor, int partitions,
+			long timeout) {
+		final Trade[] list = trades.values().toArray(new Trade[0]);
+		final int n = list.length;
+		final AtomicIntegerArray state = new AtomicIntegerArray(n);
+		final AtomicReferenceArray<Throwable> errors = new AtomicReferenceArray<Throwable>(n);
+		final AtomicBoolean expired = new AtomicBoolean();
+
+		/* trades are dealt round-robin, so slow ones spread over the partitions */
+		final int parts = Math.max(1, Math.min(partitions, n));
+		final CountDownLatch done = new CountDownLatch(parts);
+		for ( int p = 0; p < parts; p++ ) {
+			final int first = p;
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for ( int i = first; i < n && !expired.get(); i += parts ) {
+							state.set(i, ACTION_RUNNING);
+							try {
+								action.performAction(list[i]);
+								state.set(i, ACTION_DONE);
+							} catch (Throwable e) {
+								errors.set(i, e);
+								state.set(i, ACTION_FAILED);
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				for ( int i = first; i < n; i += parts ) {
+					errors.set(i, e);
+					state.set(i, ACTION_FAILED);
+				}
+				done.countDown();
+			}
+		}
+
+		try {
+			if ( timeout > 0 ) {
+				done.await(timeout, TimeUnit.MILLISECONDS);
+			} else {
+				done.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		expired.set(true);
+
+		int completed = 0;
+		Map<String,Throwable> failures = new LinkedHashMap<String,Throwable>();
+		List<Trade> incomplete = new ArrayList<Trade>();
+		for ( int i = 0; i < n; i++ ) {
+			switch ( state.get(i) ) {
+			case ACTION_DONE:
+				completed++;
+				break;
+			case ACTION_FAILED:
+				failures.put(list[i].getSymbol(), errors.get(i));
+				break;
+			default:
+				incomplete.add(list[i]);
+			}
+		}
+		ActionReport report = new ActionReport(n, completed, failures, incomplete);
+		if ( !report.isSuccess() ) {
+			logger.warn(">>> Parallel action did not complete on every trade: " + report);
+		}
+		return report;
+	}
+
 	@Override
 	public Trade getTrade(String symbol) {
 		return createTrade(symbol);
 	}
 	
+	@Override
+	public Trade findTrade(String symbol) {
+		return trades.get(symbol);
+	}
+	
 	@Override
 	public Collection<Trade> getTrades() {
 		return trades.values();
@@ -147,8 +274,14 @@ final class PortfolioImpl implements Portfolio {
 	
 	@Override
 	public void forcefullyRemoveTrade(Trade trade) {
-		trade.unsetParentPortfolio();
-		trades.remove(trade.getSymbol());
+		synchronized(trades) {
+			trade.unsetParentPortfolio();
+			trades.remove(trade.getSymbol());
+			PortfolioJournal j = journal;
+			if ( j != null ) {
+				j.recordRemove(trade.getSymbol());
+			}
+		}
 		/* logging */
 		logger.trace(">>> Removed, if it existed, from portfolio the trade: " + trade);
 	}
@@ -229,11 +362,55 @@ final class PortfolioImpl implements Portfolio {
 
 	@Override
 	public BigDecimal getTotalPosition() {
-		BigDecimal sum = BigDecimal.ZERO;
-		for ( Trade t : trades.values() ) {
-			sum = sum.add(t.getSignedQty());
+		return totals.get().getPosition();
+	}
+	
+	@Override
+	public PortfolioTotals getTotals() {
+		synchronized(markLock) {
+			PortfolioTotals base = totals.get();
+			if ( base == markedFrom && !marksStale ) {
+				return marked;
+			}
+			marksStale = false;
+			BigDecimal netNotional = BigDecimal.ZERO;
+			BigDecimal grossNotional = BigDecimal.ZERO;
+			BigDecimal unrealized = BigDecimal.ZERO;
+			for ( Trade trade : trades.values() ) {
+				if ( !trade.isExposedTo(this) ) continue;
+				BigDecimal notional = trade.getSignedNetQty().multiply(trade.getLastPrice());
+				netNotional = netNotional.add(notional);
+				grossNotional = grossNotional.add(notional.abs());
+				unrealized = unrealized.add(trade.getUnrealizedProfitLoss());
+			}
+			markedFrom = base;
+			marked = base.marked(netNotional, grossNotional, unrealized);
+			return marked;
+		}
+	}
+	
+	/**
+	 * Called by the trades when their last price changes.
+	 */
+	void marksChanged() {
+		if ( !marksStale ) {
+			marksStale = true;
+		}
+	}
+	
+	/**
+	 * Replaces the contribution of a trade to the running totals.
+	 * 
+	 * @param old
+	 * @param now
+	 */
+	void applyExposure( PortfolioTotals old, PortfolioTotals now ) {
+		while ( true ) {
+			PortfolioTotals current = totals.get();
+			if ( totals.compareAndSet(current, current.replace(old, now)) ) {
+				return;
+			}
 		}
-		return sum;
 	}
 
 	@Override
@@ -248,12 +425,36 @@ final class PortfolioImpl implements Portfolio {
 
 	@Override
 	public Trade createTrade(String symbol) {
-		if (trades.containsKey(symbol) ) return trades.get(symbol);
+		Trade trade = trades.get(symbol);
+		if ( trade != null ) return trade;
 		
-		Trade trade =
-			new Trade(symbol,this);
-		addTrade(trade);
-		return trade;
+		synchronized(trades) {
+			trade = trades.get(symbol);
+			if ( trade != null ) return trade;
+			trade = new Trade(symbol,this);
+			addTrade(trade);
+			return trade;
+		}
+	}
+
+	@Override
+	public void setRiskGate(RiskGate gate) {
+		riskGate = gate;
+	}
+	
+	@Override
+	public RiskGate getRiskGate() {
+		return riskGate;
+	}
+	
+	@Override
+	public Basket basket() {
+		return new Basket(this);
+	}
+
+	@Override
+	public BasketFuture closeAll(long timeout) {
+		return basket().closeAll().submit(timeout, false);
 	}
 	
 	@Override
@@ -275,6 +476,132 @@ final class PortfolioImpl implements Portfolio {
 
 	@Override
 	public void wipe() {
-		trades.clear();
+		synchronized(trades) {
+			PortfolioJournal j = journal;
+			for ( Trade trade : trades.values() ) {
+				trade.detachExposure(this);
+				if ( j != null ) {
+					j.recordRemove(trade.getSymbol());
+				}
+			}
+			trades.clear();
+			totals.set(PortfolioTotals.ZERO);
+		}
+	}
+	
+	// JOURNAL //
+	
+	/**
+	 * Sets the journal that records the changes to this portfolio, or
+	 * null for none.
+	 * 
+	 * @param journal
+	 */
+	void setJournal( PortfolioJournal journal ) {
+		this.journal = journal;
+	}
+	
+	PortfolioJournal getJournal() {
+		return journal;
+	}
+	
+	/**
+	 * Records the current state of one of the trades in the journal.
+	 * 
+	 * @param trade
+	 */
+	void journalTrade( Trade trade ) {
+		PortfolioJournal j = journal;
+		if ( j != null ) {
+			j.recordTrade(trade);
+		}
+	}
+	
+	/**
+	 * Replaces the trade for a symbol during journal replay.
+	 * 
+	 * @param trade
+	 */
+	void replayTrade( Trade trade ) {
+		trades.put(trade.getSymbol(), trade);
+	}
+	
+	/**
+	 * Removes the trade for a symbol during journal replay.
+	 * 
+	 * @param symbol
+	 */
+	void replayRemove( String symbol ) {
+		trades.remove(symbol);
+	}
+	
+	
+	// SERIALIZATION //
+	
+	/**
+	 * Writes the portfolio and its trades (see PortfolioSnapshot).
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeSnapshot( PortfolioSnapshot.Output out ) throws IOException {
+		out.beginRecord();
+		out.writeString(brokerId == null ? null : brokerId.getValue());
+		out.writeString(account);
+		out.writePolicy(fillPolicy);
+		out.writePolicy(orderTimeoutPolicy);
+		out.writePolicy(rejectPolicy);
+		out.writeBoolean(orderTimeout != null);
+		if ( orderTimeout != null ) {
+			out.writeVarint(orderTimeout.longValue());
+		}
+		out.endRecord();
+		
+		List<Trade> list = ((TradeMap)trades).snapshot();
+		out.writeVarint(list.size());
+		for ( Trade trade : list ) {
+			trade.writeSnapshot(out);
+		}
+	}
+	
+	/**
+	 * Reads a portfolio written by writeSnapshot().  The parent strategy
+	 * is not set.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static PortfolioImpl readSnapshot( PortfolioSnapshot.Input in ) throws IOException {
+		PortfolioImpl portfolio = new PortfolioImpl(null);
+		
+		in.beginRecord();
+		String broker = in.readString();
+		portfolio.brokerId = (broker == null) ? null : new BrokerID(broker);
+		portfolio.account = in.readString();
+		portfolio.fillPolicy = in.readPolicy(FillPolicy.class);
+		portfolio.orderTimeoutPolicy = in.readPolicy(OrderTimeoutPolicy.class);
+		portfolio.rejectPolicy = in.readPolicy(RejectPolicy.class);
+		if ( in.readBoolean() ) {
+			portfolio.orderTimeout = Long.valueOf(in.readVarint());
+		}
+		in.endRecord();
+		
+		int count = in.readInt();
+		for ( int i = 0; i < count; i++ ) {
+			Trade trade = Trade.readSnapshot(in);
+			portfolio.trades.put(trade.getSymbol(), trade);
+		}
+		return portfolio;
+	}
+	
+	private void readObject(ObjectInputStream in)
+		throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		/* trades are written as a LinkedHashMap (see TradeMap) */
+		trades = new TradeMap(trades);
+		/* the trades publish their contributions when they are rewired */
+		totals = new AtomicReference<PortfolioTotals>(PortfolioTotals.ZERO);
+		markLock = new Object();
 	}
 }
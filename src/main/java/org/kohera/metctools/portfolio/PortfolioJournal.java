@@ -0,0 +1,325 @@
+package org.kohera.metctools.portfolio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Write-ahead journal of the changes to a Portfolio, for crash recovery.
+ *
+ * The journal lives in a directory holding snapshots ("snapshot-N.bin",
+ * see PortfolioSnapshot) and journal segments ("journal-N.log").  Each
+ * segment is a memory-mapped file of fixed size to which records are
+ * appended:
+ *
+ * <pre>
+ *   int     length of the type and payload (0 marks the end)
+ *   int     CRC32 of the type and payload
+ *   byte    type (TRADE or REMOVE)
+ *   ...     payload: an encoded Trade, or a symbol
+ * </pre>
+ *
+ * A TRADE record holds the whole accounting state of the Trade after an
+ * execution report or an override was applied, so replaying a segment is
+ * just keeping the last record of each symbol, and replaying a record
+ * twice does no harm.
+ *
+ * Compaction starts segment N+1 and writes snapshot N+1; recovery loads
+ * the newest snapshot and replays the segments from its generation on,
+ * stopping at the first torn record.  Since the segments are mapped, a
+ * record is safe from a crash of the process as soon as it is appended;
+ * segments are forced to disk when compacted or closed.
+ *
+ * @see PortfolioStrategy#openJournal(String)
+ * @author Jake Brukhman
+ *
+ */
+final class PortfolioJournal {
+
+	/* record types */
+	private static final byte TRADE = 1;
+	private static final byte REMOVE = 2;
+
+	/* defaults */
+	static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final int RECORD_HEADER = 8;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* fields */
+	private final File directory;
+	private final int segmentSize;
+	private final PortfolioImpl portfolio;
+	private long generation;
+	private RandomAccessFile file;
+	private MappedByteBuffer segment;
+	private volatile boolean compactionRequested;
+	private final CRC32 crc = new CRC32();
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(PortfolioJournal.class);
+
+	/**
+	 * Open a journal for the portfolio in the given directory.  The
+	 * portfolio state is written to a new snapshot right away, so the
+	 * directory must have been recovered first (see recover()).
+	 *
+	 * @param directory
+	 * @param segmentSize
+	 * @param portfolio
+	 * @throws IOException
+	 */
+	PortfolioJournal( File directory, int segmentSize, PortfolioImpl portfolio ) throws IOException {
+		if ( !directory.isDirectory() && !directory.mkdirs() ) {
+			throw new IOException("Cannot create journal directory " + directory + ".");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.portfolio = portfolio;
+		this.generation = latestGeneration(directory);
+		compact();
+	}
+
+	/**
+	 * Rebuilds a portfolio from the newest snapshot in the directory and
+	 * the journal segments written after it.
+	 *
+	 * @param directory
+	 * @return the portfolio, or null if the directory holds no snapshot
+	 * @throws IOException
+	 */
+	static PortfolioImpl recover( File directory ) throws IOException {
+		long gen = latestSnapshot(directory);
+		if ( gen < 0 ) return null;
+
+		PortfolioImpl portfolio = PortfolioSnapshot.load(snapshotFile(directory, gen).getPath());
+		int records = 0;
+		for ( long g : generations(directory, "journal-", ".log") ) {
+			if ( g >= gen ) {
+				records += replay(journalFile(directory, g), portfolio);
+			}
+		}
+		logger.info(">>> Recovered portfolio from snapshot " + gen +
+				" and " + records + " journal records.");
+		return portfolio;
+	}
+
+	/**
+	 * Records the current state of a Trade.
+	 *
+	 * @param trade
+	 */
+	synchronized void recordTrade( Trade trade ) {
+		if ( segment == null ) return;
+		try {
+			append(TRADE, PortfolioSnapshot.encodeTrade(trade));
+		} catch (IOException e) {
+			logger.error(">>> Could not journal " + trade + ". (" + e.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Records the removal of the Trade for a symbol.
+	 *
+	 * @param symbol
+	 */
+	synchronized void recordRemove( String symbol ) {
+		if ( segment == null ) return;
+		try {
+			append(REMOVE, ByteBuffer.wrap(symbol.getBytes(UTF8)));
+		} catch (IOException e) {
+			logger.error(">>> Could not journal removal of " + symbol + ". (" + e.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Asks for a compaction at the next record, so that the snapshot is
+	 * taken on the thread that updates the portfolio.
+	 */
+	void requestCompaction() {
+		compactionRequested = true;
+	}
+
+	/**
+	 * Starts a new segment and writes the portfolio to a new snapshot,
+	 * then deletes the older segments and snapshots.
+	 *
+	 * @throws IOException
+	 */
+	synchronized void compact() throws IOException {
+		compactionRequested = false;
+		long next = generation + 1;
+
+		/* new records go to the next segment from now on */
+		closeSegment();
+		openSegment(next);
+
+		/* the snapshot is written aside and renamed into place */
+		File tmp = new File(directory, "snapshot-" + next + ".tmp");
+		PortfolioSnapshot.save(portfolio, tmp.getPath());
+		if ( !tmp.renameTo(snapshotFile(directory, next)) ) {
+			throw new IOException("Cannot rename " + tmp + ".");
+		}
+		generation = next;
+
+		for ( long g : generations(directory, "journal-", ".log") ) {
+			if ( g < next ) journalFile(directory, g).delete();
+		}
+		for ( long g : generations(directory, "snapshot-", ".bin") ) {
+			if ( g < next ) snapshotFile(directory, g).delete();
+		}
+		logger.debug(">>> Compacted portfolio journal to generation " + next + ".");
+	}
+
+	/**
+	 * Forces the current segment to disk and stops journaling.
+	 */
+	synchronized void close() {
+		try {
+			closeSegment();
+		} catch (IOException e) {
+			logger.error(">>> Could not close portfolio journal. (" + e.getMessage() + ")");
+		}
+	}
+
+
+	// PRIVATE METHODS //
+
+	private void append( byte type, ByteBuffer payload ) throws IOException {
+		int length = payload.remaining();
+		int needed = RECORD_HEADER + 1 + length;
+		if ( compactionRequested || segment.remaining() < needed ) {
+			compact();
+			if ( segment.remaining() < needed ) {
+				throw new IOException("Record of " + length + " bytes does not fit in a segment.");
+			}
+		}
+
+		crc.reset();
+		crc.update(type);
+		for ( int i = payload.position(); i < payload.limit(); i++ ) {
+			crc.update(payload.get(i));
+		}
+
+		/* the length goes last, so that a torn record reads as the end */
+		int start = segment.position();
+		segment.position(start + 4);
+		segment.putInt((int)crc.getValue());
+		segment.put(type);
+		segment.put(payload);
+		segment.putInt(start, length + 1);
+	}
+
+	private void openSegment( long gen ) throws IOException {
+		file = new RandomAccessFile(journalFile(directory, gen), "rw");
+		segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+	}
+
+	private void closeSegment() throws IOException {
+		if ( segment != null ) {
+			segment.force();
+			segment = null;
+		}
+		if ( file != null ) {
+			file.close();
+			file = null;
+		}
+	}
+
+	/**
+	 * Applies the records of a segment to the portfolio.
+	 */
+	private static int replay( File journal, PortfolioImpl portfolio ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(journal, "r");
+		int records = 0;
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			CRC32 check = new CRC32();
+			while ( buffer.remaining() >= RECORD_HEADER ) {
+				int length = buffer.getInt();
+				if ( length <= 0 || length > buffer.remaining() - 4 ) break;
+				int sum = buffer.getInt();
+
+				ByteBuffer record = buffer.slice();
+				record.limit(length);
+				check.reset();
+				for ( int i = 0; i < length; i++ ) {
+					check.update(record.get(i));
+				}
+				if ( (int)check.getValue() != sum ) {
+					logger.warn(">>> Torn record in " + journal + "; ignoring the rest.");
+					break;
+				}
+				buffer.position(buffer.position() + length);
+
+				byte type = record.get();
+				if ( type == TRADE ) {
+					portfolio.replayTrade(PortfolioSnapshot.decodeTrade(record, PortfolioSnapshot.VERSION));
+				} else if ( type == REMOVE ) {
+					byte[] symbol = new byte[record.remaining()];
+					record.get(symbol);
+					portfolio.replayRemove(new String(symbol, UTF8));
+				}
+				records++;
+			}
+		} finally {
+			raf.close();
+		}
+		return records;
+	}
+
+	private static File journalFile( File directory, long gen ) {
+		return new File(directory, "journal-" + gen + ".log");
+	}
+
+	private static File snapshotFile( File directory, long gen ) {
+		return new File(directory, "snapshot-" + gen + ".bin");
+	}
+
+	private static long latestSnapshot( File directory ) {
+		List<Long> gens = generations(directory, "snapshot-", ".bin");
+		return gens.isEmpty() ? -1 : gens.get(gens.size() - 1);
+	}
+
+	private static long latestGeneration( File directory ) {
+		long latest = latestSnapshot(directory);
+		for ( long g : generations(directory, "journal-", ".log") ) {
+			latest = Math.max(latest, g);
+		}
+		return Math.max(latest, 0);
+	}
+
+	/**
+	 * Returns the generations of the files with the given prefix and
+	 * suffix, in increasing order.
+	 */
+	private static List<Long> generations( File directory, String prefix, String suffix ) {
+		List<Long> gens = new ArrayList<Long>();
+		String[] names = directory.list();
+		if ( names == null ) return gens;
+		for ( String name : names ) {
+			if ( name.startsWith(prefix) && name.endsWith(suffix) ) {
+				try {
+					gens.add(Long.parseLong(name.substring(prefix.length(),
+							name.length() - suffix.length())));
+				} catch (NumberFormatException e) {
+					/* not ours */
+				}
+			}
+		}
+		Collections.sort(gens);
+		return gens;
+	}
+}
@@ -0,0 +1,515 @@
+package org.kohera.metctools.portfolio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compact binary snapshot of a Portfolio.
+ *
+ * Layout (version 1):
+ *
+ * <pre>
+ *   int     magic ("MCPF")
+ *   short   version
+ *   varint  number of strings, then each string (varint length, UTF-8)
+ *   record  portfolio
+ *   varint  number of trades
+ *   record  trade, for each trade
+ * </pre>
+ *
+ * Every record is prefixed with its length, and its fields are read in
+ * the order of the version that wrote it; fields appended by a later
+ * version are skipped.  Integers are zig-zag varints, decimals are a scale
+ * and an unscaled long (or bytes, when it does not fit), and every string
+ * (symbols, accounts, class and enum names) is an index into the string
+ * dictionary, so repeated values are written once.
+ *
+ * Policies that are constants of FillPolicies, RejectPolicies or
+ * OrderTimeoutPolicies are written by name; other policies fall back to
+ * Java serialization.  Market data (the last trade, bid and ask events) and
+ * the fields of Trade subclasses are not part of the snapshot.
+ *
+ * @see PortfolioStrategy#saveSnapshot(String)
+ * @author Jake Brukhman
+ *
+ */
+final class PortfolioSnapshot {
+
+	/* format */
+	static final int MAGIC = 0x4D435046;
+	static final short VERSION = 1;
+
+	/* policy tags */
+	private static final int POLICY_NULL = 0;
+	private static final int POLICY_CONSTANT = 1;
+	private static final int POLICY_SERIALIZED = 2;
+
+	/* decimal tags */
+	private static final int DECIMAL_NULL = 0;
+	private static final int DECIMAL_LONG = 1;
+	private static final int DECIMAL_BIG = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/* policy constants, by instance and by name */
+	private static final Map<Object,String> constantNames = new IdentityHashMap<Object,String>();
+	private static final Map<String,Object> constants = new HashMap<String,Object>();
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(PortfolioSnapshot.class);
+
+	static {
+		registerConstants(FillPolicies.class);
+		registerConstants(RejectPolicies.class);
+		registerConstants(OrderTimeoutPolicies.class);
+	}
+
+	private PortfolioSnapshot() {}
+
+	/**
+	 * Writes a snapshot of the portfolio to the given file.
+	 *
+	 * @param portfolio
+	 * @param file
+	 * @throws IOException
+	 */
+	static void save( PortfolioImpl portfolio, String file ) throws IOException {
+		Output body = new Output();
+		portfolio.writeSnapshot(body);
+
+		Output head = new Output();
+		head.buffer.putInt(MAGIC);
+		head.buffer.putShort(VERSION);
+		head.writeDictionary(body);
+
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			FileChannel channel = fos.getChannel();
+			writeFully(channel, head.flip());
+			writeFully(channel, body.flip());
+			channel.force(false);
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Reads a portfolio from the snapshot in the given file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException if the file is not a readable snapshot
+	 */
+	static PortfolioImpl load( String file ) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		ByteBuffer buffer;
+		try {
+			FileChannel channel = fis.getChannel();
+			long size = channel.size();
+			if ( size > Integer.MAX_VALUE ) {
+				throw new IOException("Snapshot too large: " + size + " bytes.");
+			}
+			buffer = ByteBuffer.allocate((int)size);
+			while ( buffer.hasRemaining() ) {
+				if ( channel.read(buffer) < 0 ) break;
+			}
+			buffer.flip();
+		} finally {
+			fis.close();
+		}
+
+		try {
+			if ( buffer.remaining() < 6 || buffer.getInt() != MAGIC ) {
+				throw new IOException("Not a portfolio snapshot: " + file);
+			}
+			int version = buffer.getShort();
+			if ( version < 1 || version > VERSION ) {
+				throw new IOException("Unsupported snapshot version " + version + ".");
+			}
+			Input in = new Input(buffer, version);
+			in.readDictionary();
+			return PortfolioImpl.readSnapshot(in);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated snapshot: " + file);
+		}
+	}
+
+	/**
+	 * Encodes a single trade, with its own string dictionary.
+	 *
+	 * @param trade
+	 * @return
+	 * @throws IOException
+	 */
+	static ByteBuffer encodeTrade( Trade trade ) throws IOException {
+		Output body = new Output();
+		trade.writeSnapshot(body);
+		Output out = new Output();
+		out.writeDictionary(body);
+		body.flip();
+		out.ensure(body.buffer.remaining());
+		out.buffer.put(body.buffer);
+		return out.flip();
+	}
+
+	/**
+	 * Decodes a trade written by encodeTrade().
+	 *
+	 * @param buffer
+	 * @param version
+	 * @return
+	 * @throws IOException
+	 */
+	static Trade decodeTrade( ByteBuffer buffer, int version ) throws IOException {
+		try {
+			Input in = new Input(buffer, version);
+			in.readDictionary();
+			return Trade.readSnapshot(in);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated trade record.");
+		}
+	}
+
+	/**
+	 * Returns true if and only if the file starts like a snapshot.
+	 *
+	 * @param file
+	 * @return
+	 */
+	static boolean isSnapshot( String file ) {
+		try {
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				ByteBuffer magic = ByteBuffer.allocate(4);
+				while ( magic.hasRemaining() ) {
+					if ( fis.getChannel().read(magic) < 0 ) return false;
+				}
+				magic.flip();
+				return magic.getInt() == MAGIC;
+			} finally {
+				fis.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+
+	// PRIVATE METHODS //
+
+	private static void writeFully( FileChannel channel, ByteBuffer buffer ) throws IOException {
+		while ( buffer.hasRemaining() ) {
+			int limit = buffer.limit();
+			buffer.limit(Math.min(limit, buffer.position() + BUFFER_SIZE));
+			channel.write(buffer);
+			buffer.limit(limit);
+		}
+	}
+
+	private static void registerConstants( Class<?> holder ) {
+		for ( Field field : holder.getDeclaredFields() ) {
+			int mod = field.getModifiers();
+			if ( Modifier.isStatic(mod) && Modifier.isFinal(mod) && Modifier.isPublic(mod) ) {
+				try {
+					Object value = field.get(null);
+					String name = holder.getSimpleName() + "." + field.getName();
+					constantNames.put(value, name);
+					constants.put(name, value);
+				} catch (IllegalAccessException e) {
+					logger.warn(">>> Cannot register policy " + field + ".");
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Growable buffer that the snapshot records are written to.
+	 */
+	static final class Output {
+
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private final Map<String,Integer> index = new HashMap<String,Integer>();
+		private final List<String> strings = new ArrayList<String>();
+		private int recordStart = -1;
+
+		/**
+		 * Starts a length-prefixed record.  Records do not nest.
+		 */
+		void beginRecord() {
+			ensure(4);
+			recordStart = buffer.position();
+			buffer.putInt(0);
+		}
+
+		void endRecord() {
+			buffer.putInt(recordStart, buffer.position() - recordStart - 4);
+			recordStart = -1;
+		}
+
+		void writeVarint( long value ) {
+			/* zig-zag, then 7 bits per byte */
+			long v = (value << 1) ^ (value >> 63);
+			ensure(10);
+			while ( (v & ~0x7FL) != 0 ) {
+				buffer.put((byte)((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			buffer.put((byte)v);
+		}
+
+		/**
+		 * Writes the strings referenced by another Output.
+		 */
+		void writeDictionary( Output body ) {
+			writeVarint(body.strings.size());
+			for ( String s : body.strings ) {
+				byte[] bytes = s.getBytes(UTF8);
+				writeVarint(bytes.length);
+				writeBytes(bytes);
+			}
+		}
+
+		void writeBoolean( boolean value ) {
+			ensure(1);
+			buffer.put((byte)(value ? 1 : 0));
+		}
+
+		void writeBytes( byte[] bytes ) {
+			ensure(bytes.length);
+			buffer.put(bytes);
+		}
+
+		void writeString( String s ) {
+			if ( s == null ) {
+				writeVarint(-1);
+				return;
+			}
+			Integer i = index.get(s);
+			if ( i == null ) {
+				i = strings.size();
+				index.put(s, i);
+				strings.add(s);
+			}
+			writeVarint(i);
+		}
+
+		void writeEnum( Enum<?> e ) {
+			writeString(e == null ? null : e.name());
+		}
+
+		void writeDecimal( BigDecimal d ) {
+			if ( d == null ) {
+				writeVarint(DECIMAL_NULL);
+				return;
+			}
+			BigInteger unscaled = d.unscaledValue();
+			if ( unscaled.bitLength() < 64 ) {
+				writeVarint(DECIMAL_LONG);
+				writeVarint(d.scale());
+				writeVarint(unscaled.longValue());
+			} else {
+				byte[] bytes = unscaled.toByteArray();
+				writeVarint(DECIMAL_BIG);
+				writeVarint(d.scale());
+				writeVarint(bytes.length);
+				writeBytes(bytes);
+			}
+		}
+
+		void writePolicy( Object policy ) throws IOException {
+			if ( policy == null ) {
+				writeVarint(POLICY_NULL);
+				return;
+			}
+			String name = constantNames.get(policy);
+			if ( name != null ) {
+				writeVarint(POLICY_CONSTANT);
+				writeString(name);
+				return;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(policy);
+			out.close();
+			writeVarint(POLICY_SERIALIZED);
+			writeVarint(bytes.size());
+			writeBytes(bytes.toByteArray());
+		}
+
+		private void ensure( int n ) {
+			if ( buffer.remaining() >= n ) return;
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n));
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+
+		ByteBuffer flip() {
+			buffer.flip();
+			return buffer;
+		}
+	}
+
+
+	/**
+	 * Reads the records of a snapshot.
+	 */
+	static final class Input {
+
+		private final ByteBuffer buffer;
+		private final int version;
+		private final List<String> strings = new ArrayList<String>();
+		private int recordEnd = -1;
+
+		Input( ByteBuffer buffer, int version ) {
+			this.buffer = buffer;
+			this.version = version;
+		}
+
+		/**
+		 * Returns the version of the snapshot being read.
+		 */
+		int version() {
+			return version;
+		}
+
+		void readDictionary() {
+			int count = readInt();
+			for ( int i = 0; i < count; i++ ) {
+				byte[] bytes = new byte[readInt()];
+				buffer.get(bytes);
+				strings.add(new String(bytes, UTF8));
+			}
+		}
+
+		void beginRecord() {
+			int length = buffer.getInt();
+			recordEnd = buffer.position() + length;
+			if ( length < 0 || recordEnd > buffer.limit() ) {
+				throw new BufferUnderflowException();
+			}
+		}
+
+		/**
+		 * Skips the fields of the record that this version does not know.
+		 */
+		void endRecord() {
+			buffer.position(recordEnd);
+			recordEnd = -1;
+		}
+
+		long readVarint() {
+			long v = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer.get();
+				v |= (long)(b & 0x7F) << shift;
+				shift += 7;
+			} while ( (b & 0x80) != 0 );
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		int readInt() {
+			return (int)readVarint();
+		}
+
+		boolean readBoolean() {
+			return buffer.get() != 0;
+		}
+
+		String readString() throws IOException {
+			int i = readInt();
+			if ( i < 0 ) return null;
+			if ( i >= strings.size() ) {
+				throw new IOException("Bad string reference " + i + ".");
+			}
+			return strings.get(i);
+		}
+
+		<E extends Enum<E>> E readEnum( Class<E> type ) throws IOException {
+			String name = readString();
+			if ( name == null ) return null;
+			try {
+				return Enum.valueOf(type, name);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Unknown " + type.getSimpleName() + " " + name + ".");
+			}
+		}
+
+		BigDecimal readDecimal() throws IOException {
+			int tag = readInt();
+			switch ( tag ) {
+			case DECIMAL_NULL:
+				return null;
+			case DECIMAL_LONG:
+				int scale = readInt();
+				return BigDecimal.valueOf(readVarint(), scale);
+			case DECIMAL_BIG:
+				int bigScale = readInt();
+				byte[] bytes = new byte[readInt()];
+				buffer.get(bytes);
+				return new BigDecimal(new BigInteger(bytes), bigScale);
+			default:
+				throw new IOException("Bad decimal tag " + tag + ".");
+			}
+		}
+
+		<T> T readPolicy( Class<T> type ) throws IOException {
+			int tag = readInt();
+			Object policy;
+			switch ( tag ) {
+			case POLICY_NULL:
+				return null;
+			case POLICY_CONSTANT:
+				String name = readString();
+				policy = constants.get(name);
+				if ( policy == null ) {
+					throw new IOException("Unknown policy " + name + ".");
+				}
+				break;
+			case POLICY_SERIALIZED:
+				byte[] bytes = new byte[readInt()];
+				buffer.get(bytes);
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+				try {
+					policy = in.readObject();
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Cannot load policy: " + e.getMessage());
+				} finally {
+					in.close();
+				}
+				break;
+			default:
+				throw new IOException("Bad policy tag " + tag + ".");
+			}
+			if ( !type.isInstance(policy) ) {
+				throw new IOException("Policy " + policy + " is not a " + type.getSimpleName() + ".");
+			}
+			return type.cast(policy);
+		}
+	}
+}
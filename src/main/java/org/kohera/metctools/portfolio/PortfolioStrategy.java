@@ -1,5 +1,6 @@
 package org.kohera.metctools.portfolio;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -7,10 +8,10 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.math.BigDecimal;
 import java.util.Collection;
-import java.util.Date;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.log4j.Logger;
 import org.kohera.metctools.DelegatorStrategy;
@@ -20,8 +21,8 @@ import org.kohera.metctools.delegate.BidDelegate;
 import org.kohera.metctools.delegate.ExecutionReportDelegate;
 import org.kohera.metctools.delegate.OrderCancelRejectDelegate;
 import org.kohera.metctools.delegate.TradeDelegate;
+import org.kohera.metctools.util.Timer;
 import org.marketcetera.client.ClientInitException;
-import org.marketcetera.core.position.PositionKey;
 import org.marketcetera.event.AskEvent;
 import org.marketcetera.event.BidEvent;
 import org.marketcetera.event.TradeEvent;
@@ -66,15 +67,18 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 	 *
 	 */
 	class TradeRouter implements ExecutionReportDelegate, TradeDelegate, 
-		BidDelegate, AskDelegate, OrderCancelRejectDelegate {
+		BidDelegate, AskDelegate, OrderCancelRejectDelegate, TickConflater.Sink {
 		
 		@Override
 		public void onExecutionReport(DelegatorStrategy sender,
 				ExecutionReport report) {
-			String symbol = report.getSymbol().toString();
-			if ( portfolio.hasTrade(symbol) && report.getAccount().equals(portfolio.getAccount()) ) {
-				portfolio.getTrade(symbol)
-					.acceptExecutionReport(PortfolioStrategy.this, report);
+			/* orders sent through the framework are found by id, others by symbol */
+			Trade trade = orderIndex.get(report.getOrderID());
+			if ( trade == null ) {
+				trade = portfolio.findTrade(report.getSymbol().getFullSymbol());
+			}
+			if ( trade != null && report.getAccount().equals(portfolio.getAccount()) ) {
+				trade.acceptExecutionReport(PortfolioStrategy.this, report);
 			} else {
 				// TODO: clean up
 				logger.debug(">>> Received external execution report. (Ignoring.)");
@@ -84,10 +88,40 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 
 		@Override
 		public void onTrade(DelegatorStrategy sender, TradeEvent tradeEvent) {
-			String symbol = tradeEvent.getSymbol().toString();
-			if ( portfolio.hasTrade(symbol) ) {
-				portfolio.getTrade(symbol)
-					.acceptTradeEvent(tradeEvent);
+			TickConflater conflater = tickConflater;
+			if ( conflater != null ) {
+				conflater.offerTrade(tradeEvent.getSymbol().getFullSymbol(), tradeEvent);
+			} else {
+				deliverTrade(tradeEvent);
+			}
+		}
+
+		@Override
+		public void onBid(DelegatorStrategy sender, BidEvent bidEvent) {
+			TickConflater conflater = tickConflater;
+			if ( conflater != null ) {
+				conflater.offerBid(bidEvent.getSymbol().getFullSymbol(), bidEvent);
+			} else {
+				deliverBid(bidEvent);
+			}
+		}
+
+		@Override
+		public void onAsk(DelegatorStrategy sender, AskEvent askEvent) {
+			TickConflater conflater = tickConflater;
+			if ( conflater != null ) {
+				conflater.offerAsk(askEvent.getSymbol().getFullSymbol(), askEvent);
+			} else {
+				deliverAsk(askEvent);
+			}
+		}
+
+		@Override
+		public void deliverTrade(TradeEvent tradeEvent) {
+			String symbol = tradeEvent.getSymbol().getFullSymbol();
+			Trade trade = portfolio.findTrade(symbol);
+			if ( trade != null ) {
+				trade.acceptTradeEvent(tradeEvent);
 			} else {
 				// TODO: clean up
 				logger.warn(">>> Received external trade event. (Ignoring.)");
@@ -96,28 +130,34 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 		}
 
 		@Override
-		public void onBid(DelegatorStrategy sender, BidEvent bidEvent) {
-			// TODO Auto-generated method stub
-			
+		public void deliverBid(BidEvent bidEvent) {
+			Trade trade = portfolio.findTrade(bidEvent.getSymbol().getFullSymbol());
+			if ( trade != null ) {
+				trade.acceptBidEvent(bidEvent);
+			}
 		}
 
 		@Override
-		public void onAsk(DelegatorStrategy sender, AskEvent askEvent) {
-			// TODO Auto-generated method stub
-			
+		public void deliverAsk(AskEvent askEvent) {
+			Trade trade = portfolio.findTrade(askEvent.getSymbol().getFullSymbol());
+			if ( trade != null ) {
+				trade.acceptAskEvent(askEvent);
+			}
 		}
 
 		@Override
 		public void onCancelReject(DelegatorStrategy sender,
 				OrderCancelReject reject) {
-			OrderID orderId = reject.getOriginalOrderID();
-			if ( portfolio!=null) {
-				for ( Trade trade : portfolio.getTrades() ) {
-					/* if there is a trade with such a pending order */
-					if ( orderId.equals(trade.getPendingOrderId())) {
-						trade.acceptCancelReject(reject);
-					}
-				}
+			/* the original order id is the pending order of the trade */
+			Trade trade = orderIndex.get(reject.getOriginalOrderID());
+			if ( trade == null ) {
+				trade = orderIndex.get(reject.getOrderID());
+			}
+			if ( trade != null ) {
+				trade.acceptCancelReject(reject);
+			} else {
+				logger.debug(">>> Received external cancel reject. (Ignoring.)");
+				logger.trace(">>> Reject: " + reject );
 			}
 		}
 		
@@ -127,6 +167,12 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 	private Portfolio portfolio;
 	private Integer dataRequestId;
 	private String dataProvider;
+	private final TradeRouter tradeRouter;
+	private final ConcurrentMap<OrderID,Trade> orderIndex;
+	private volatile TickConflater tickConflater;
+	private Timer.Timeout compactionTask;
+	private int journalEpoch;				// incremented each time the journal is closed
+	private PositionReconciler reconciler;
 		
 	/**
 	 * Create a new instance of a PortfolioStrategy.
@@ -139,11 +185,58 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 		
 		portfolio = new PortfolioImpl(this);
 		dataRequestId = null;
+		orderIndex = new ConcurrentHashMap<OrderID,Trade>();
 		
 		/* route execution reports and trades (ticks) to the portfolio */
-		addDelegate( new TradeRouter() );
+		tradeRouter = new TradeRouter();
+		addDelegate( tradeRouter );
 	}
 
+	/**
+	 * Turn conflation of market data on or off.
+	 * 
+	 * When on, market data events are handed to the portfolio's Trades on
+	 * a separate thread, and while that thread is busy only the latest
+	 * event per symbol and type is kept.  This way, a burst of ticks does
+	 * not build up a backlog of stale quotes.
+	 * 
+	 * Turning conflation off, or stopping the strategy, stops the thread
+	 * and hands the latest pending events to the Trades.
+	 * 
+	 * @param enabled
+	 */
+	public synchronized void setTickConflation( boolean enabled ) {
+		if ( enabled && tickConflater == null ) {
+			TickConflater conflater = new TickConflater(tradeRouter);
+			conflater.start();
+			tickConflater = conflater;
+		} else if ( !enabled && tickConflater != null ) {
+			TickConflater conflater = tickConflater;
+			tickConflater = null;
+			conflater.stop();
+		}
+	}
+	
+	/**
+	 * Returns the tick conflater, which keeps the conflation counters,
+	 * or null if conflation is off.
+	 * 
+	 * @return
+	 */
+	public TickConflater getTickConflater() {
+		return tickConflater;
+	}
+	
+	/**
+	 * Returns the index of working orders (pending and cancel orders sent
+	 * by the OrderProcessors) to the Trades that sent them.
+	 * 
+	 * @return
+	 */
+	ConcurrentMap<OrderID,Trade> getOrderIndex() {
+		return orderIndex;
+	}
+	
 	/**
 	 * Get the data provider.
 	 * 
@@ -259,10 +352,7 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 	public boolean deserializePortfolio( String file ) {
 		
 		/* make sure the portfolio is empty or has no open positions */
-		if ( portfolio.size() != 0 || 
-				portfolio.getTotalPosition() != BigDecimal.ZERO ) {
-			logger.error(">>> Cannot load portfolio from file because " +
-					"the active portfolio is non-empty.");
+		if ( !canReplacePortfolio() ) {
 			return false;
 		}
 		
@@ -289,10 +379,192 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 			} catch (IOException e) { e.printStackTrace(); }
 		}
 		
-		/* 
-		 * rewire the portfolio 
-		 */
+		rewirePortfolio();
+		
+		logger.debug(">>> Deserialized portfolio from " + file + ".");
+		logger.trace(portfolio.toString());
+		
+		return true;
+	}
+	
+	/**
+	 * Writes the current portfolio to the specified file in the compact
+	 * snapshot format.
+	 * 
+	 * Unlike serializePortfolio(), the snapshot holds only the accounting
+	 * state of the trades: market data events, and the fields of Trade
+	 * subclasses, are not saved.  Policies that are not one of the
+	 * pre-programmed constants are saved with Java serialization.
+	 * 
+	 * @param file
+	 * @return true if the snapshot was written
+	 */
+	public boolean saveSnapshot( String file ) {
+		if ( !(portfolio instanceof PortfolioImpl) ) {
+			logger.error(">>> Cannot save portfolio because it is undefined.");
+			return false;
+		}
+		try {
+			PortfolioSnapshot.save((PortfolioImpl)portfolio, file);
+		} catch (IOException e) {
+			logger.error(">>> Could not save portfolio snapshot. (" + e.getMessage() + ")");
+			return false;
+		}
+		logger.debug(">>> Saved portfolio snapshot to " + file + ".");
+		return true;
+	}
+	
+	/**
+	 * Loads the portfolio from a snapshot written by saveSnapshot(),
+	 * and installs it as this Strategy's portfolio.  As with
+	 * deserializePortfolio(), the active portfolio must be empty.
+	 * 
+	 * @param file
+	 * @return true if the portfolio was loaded
+	 */
+	public boolean loadSnapshot( String file ) {
+		if ( !canReplacePortfolio() ) {
+			return false;
+		}
+		try {
+			portfolio = PortfolioSnapshot.load(file);
+		} catch (IOException e) {
+			logger.error(">>> Could not load portfolio snapshot. (" + e.getMessage() + ")");
+			return false;
+		}
+		rewirePortfolio();
+		
+		logger.debug(">>> Loaded portfolio snapshot from " + file + ".");
+		logger.trace(portfolio.toString());
+		return true;
+	}
+	
+	/**
+	 * Starts journaling the portfolio in the given directory, so that it
+	 * can be rebuilt after a crash without querying the ORS.
+	 * 
+	 * If the directory holds a previous journal, the portfolio is first
+	 * recovered from it (the active portfolio must then be empty).  Every
+	 * execution report accepted by a Trade, every override and every
+	 * removal is then recorded, and the journal is compacted into a new
+	 * snapshot whenever a segment fills up.
+	 * 
+	 * @param directory
+	 * @return true if the journal was opened
+	 */
+	public boolean openJournal( String directory ) {
+		return openJournal(directory, 0);
+	}
+	
+	/**
+	 * Like openJournal(String), but also compacts the journal every
+	 * compactionInterval milliseconds (at the next recorded change).
+	 * 
+	 * @param directory
+	 * @param compactionInterval	milliseconds, or 0 to compact only when a segment fills up
+	 * @return true if the journal was opened
+	 */
+	public synchronized boolean openJournal( String directory, final long compactionInterval ) {
+		if ( !(portfolio instanceof PortfolioImpl) ) {
+			logger.error(">>> Cannot journal portfolio because it is undefined.");
+			return false;
+		}
+		closeJournal();
+		
+		File dir = new File(directory);
+		try {
+			PortfolioImpl recovered = PortfolioJournal.recover(dir);
+			if ( recovered != null ) {
+				if ( !canReplacePortfolio() ) {
+					return false;
+				}
+				portfolio = recovered;
+				rewirePortfolio();
+			}
+			PortfolioImpl impl = (PortfolioImpl)portfolio;
+			impl.setJournal(new PortfolioJournal(dir, PortfolioJournal.DEFAULT_SEGMENT_SIZE, impl));
+		} catch (IOException e) {
+			logger.error(">>> Could not open portfolio journal. (" + e.getMessage() + ")");
+			return false;
+		}
 		
+		if ( compactionInterval > 0 ) {
+			scheduleCompaction(compactionInterval, journalEpoch);
+		}
+		logger.debug(">>> Journaling portfolio in " + directory + ".");
+		return true;
+	}
+	
+	/**
+	 * Compacts the journal into a new snapshot now.
+	 * 
+	 * @return true if the journal was compacted
+	 */
+	public boolean compactJournal() {
+		PortfolioJournal journal = getJournal();
+		if ( journal == null ) {
+			logger.error(">>> Cannot compact: the portfolio is not journaled.");
+			return false;
+		}
+		try {
+			journal.compact();
+		} catch (IOException e) {
+			logger.error(">>> Could not compact portfolio journal. (" + e.getMessage() + ")");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Stops journaling the portfolio, forcing the last records to disk.
+	 * Called when the strategy stops.
+	 */
+	public synchronized void closeJournal() {
+		journalEpoch++;
+		if ( compactionTask != null ) {
+			compactionTask.cancel();
+			compactionTask = null;
+		}
+		PortfolioJournal journal = getJournal();
+		if ( journal != null ) {
+			((PortfolioImpl)portfolio).setJournal(null);
+			journal.close();
+		}
+	}
+	
+	private PortfolioJournal getJournal() {
+		return (portfolio instanceof PortfolioImpl) ?
+				((PortfolioImpl)portfolio).getJournal() : null;
+	}
+	
+	private synchronized void scheduleCompaction( final long interval, final int epoch ) {
+		if ( epoch != journalEpoch ) return;
+		compactionTask = OrderScheduler.schedule(interval, new Runnable() {
+			@Override
+			public void run() {
+				PortfolioJournal journal = getJournal();
+				if ( journal != null ) {
+					journal.requestCompaction();
+					scheduleCompaction(interval, epoch);
+				}
+			}
+		});
+	}
+	
+	private boolean canReplacePortfolio() {
+		if ( portfolio.size() != 0 || 
+				portfolio.getTotalPosition().compareTo(BigDecimal.ZERO) != 0 ) {
+			logger.error(">>> Cannot load portfolio from file because " +
+					"the active portfolio is non-empty.");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Wires a freshly loaded portfolio to this strategy.
+	 */
+	private void rewirePortfolio() {
 		/* set the parent strategy */
 		portfolio.setParentStrategy(this);
 		/* reset the OrderProcessors for each trade
@@ -305,11 +577,6 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 				trade.setParentPortfolio(portfolio);
 			}
 		});
-		
-		logger.debug(">>> Deserialized portfolio from " + file + ".");
-		logger.trace(portfolio.toString());
-		
-		return true;
 	}
 
 	/**
@@ -320,55 +587,66 @@ public abstract class PortfolioStrategy extends DelegatorStrategy {
 	 * information, it is impossible to reconstruct a Trade exclusively
 	 * from ORS data.  Therefore, this method does not attempt to do so.
 	 * 
-	 * Instead, this method performs two operations:
+	 * Instead, this method diffs the ORS positions against the portfolio
+	 * (see PositionReconciler) and:
 	 * 
-	 * 1. If a position exists in both the portfolio and the ORS,
-	 * it simply updates the position size (and nothing else) in the
-	 * portfolio.
+	 * 1. If a position exists in both the portfolio and the ORS, but
+	 * differs, it simply updates the position size (and nothing else) in
+	 * the portfolio.
 	 * 
 	 * 2. On the other hand, if the portfolio contains a position that
-	 * does not exist in the ORS, this position is removed from the
-	 * portfolio.
+	 * does not exist in the ORS, this position is set flat.
+	 * 
+	 * Trades with a pending order are left alone.  Positions that exist
+	 * only in the ORS are reported, but not adopted unless the reconciler
+	 * is told to.
 	 * 
 	 * NOTE: It is better to sync positions prior to using the method
-	 * startMarketData().  Trades that are removed from the portfolio
-	 * as a result of the call to syncORSPositions() will still receive
-	 * market data until the data feed is restarted.
+	 * startMarketData().
+	 * 
+	 * @return the breaks that were found, or null if the ORS positions
+	 * could not be obtained
 	 */
-	public void syncORSPositions() {
-		Map<PositionKey,BigDecimal> positions =
-			getPositions(new Date());
-		
-		/* maybe not connected...? */
-		if ( positions == null ) {
-			logger.error(">>> Could not sync ORS positions.");
-			return;
-		}
+	public List<PositionReconciler.PositionBreak> syncORSPositions() {
+		return getReconciler().reconcile();
+	}
 	
-		/* now, let's sync */
-		//Set<String> symbols = new HashSet<String>();
-		for ( PositionKey k : positions.keySet() ) {
-			final String symbol = k.getSymbol();
-			final String account = k.getAccount();
-
-			if ( account.equals(portfolio.getAccount()) ) {
-				//symbols.add(symbol);
-				if ( portfolio.hasTrade(symbol) ) {
-					Trade trade = portfolio.getTrade(symbol);
-					int pos = positions.get(k).intValue();
-					BigDecimal qty = BigDecimal.valueOf(Math.abs(pos),0);
-					Side side = Side.fromInt((int)Math.signum(pos));
-				
-					trade.overrideQuantity(qty);
-					trade.overrideSide(side);
-					
-					logger.info(">>> Syncing " + symbol + " to position " + pos + "." );	
-				}
-			}
+	/**
+	 * Returns the reconciler used by syncORSPositions(), to configure it
+	 * or to run it in the background.
+	 * 
+	 * @return
+	 */
+	public synchronized PositionReconciler getReconciler() {
+		if ( reconciler == null ) {
+			reconciler = new PositionReconciler(this);
 		}
-		
-		//portfolio.getSymbols().retainAll(symbols);
-		
+		return reconciler;
+	}
+	
+	/**
+	 * Reconciles the portfolio with the ORS every interval milliseconds,
+	 * on a thread of its own, until stopReconciliation() is called or the
+	 * strategy stops.
+	 * 
+	 * @param interval
+	 */
+	public void startReconciliation( long interval ) {
+		getReconciler().start(interval);
+	}
+	
+	/**
+	 * Stops the background reconciliation.
+	 */
+	public void stopReconciliation() {
+		getReconciler().stop();
+	}
+	
+	@Override
+	protected void onStopped() {
+		stopReconciliation();
+		setTickConflation(false);
+		closeJournal();
 	}
 	
 }
@@ -0,0 +1,167 @@
+package org.kohera.metctools.portfolio;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+/**
+ * Immutable snapshot of the aggregate positions and profit-loss of a
+ * Portfolio.
+ *
+ * The Portfolio maintains the positions and the realized profit-loss
+ * incrementally: each Trade publishes its own contribution (a
+ * PortfolioTotals for a single position) when a fill or an override
+ * changes it, and the Portfolio adds the difference to its running totals.
+ * The notional and unrealized profit-loss depend on the last prices, so
+ * they are marked when the totals are asked for, in one pass over the
+ * trades, rather than on every trade event.
+ *
+ * @see Portfolio#getTotals()
+ * @author Jake Brukhman
+ *
+ */
+public final class PortfolioTotals implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 4150931622063184471L;
+
+	public static final PortfolioTotals ZERO = new PortfolioTotals(
+			BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO,
+			BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO);
+
+	/* fields */
+	private final BigDecimal position;				// sum of signed transacted quantities
+	private final BigDecimal netPosition;			// sum of signed instantaneous quantities
+	private final BigDecimal grossPosition;			// sum of unsigned instantaneous quantities
+	private final BigDecimal netNotional;			// sum of signed quantity * last price
+	private final BigDecimal grossNotional;			// sum of unsigned quantity * last price
+	private final BigDecimal realizedProfitLoss;
+	private final BigDecimal unrealizedProfitLoss;
+
+	PortfolioTotals( BigDecimal position, BigDecimal netPosition,
+			BigDecimal grossPosition, BigDecimal netNotional,
+			BigDecimal grossNotional, BigDecimal realizedProfitLoss,
+			BigDecimal unrealizedProfitLoss ) {
+		this.position = position;
+		this.netPosition = netPosition;
+		this.grossPosition = grossPosition;
+		this.netNotional = netNotional;
+		this.grossNotional = grossNotional;
+		this.realizedProfitLoss = realizedProfitLoss;
+		this.unrealizedProfitLoss = unrealizedProfitLoss;
+	}
+
+	/**
+	 * Returns the sum of the signed transacted quantities (see Trade.getSignedQty()).
+	 *
+	 * @return
+	 */
+	public BigDecimal getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns the sum of the signed instantaneous quantities, including
+	 * partial fills (see Trade.getSignedNetQty()).
+	 *
+	 * @return
+	 */
+	public BigDecimal getNetPosition() {
+		return netPosition;
+	}
+
+	/**
+	 * Returns the sum of the absolute instantaneous quantities.
+	 *
+	 * @return
+	 */
+	public BigDecimal getGrossPosition() {
+		return grossPosition;
+	}
+
+	/**
+	 * Returns the sum of the signed instantaneous quantities times the
+	 * last price of their symbol.
+	 *
+	 * @return
+	 */
+	public BigDecimal getNetNotional() {
+		return netNotional;
+	}
+
+	/**
+	 * Returns the sum of the absolute instantaneous quantities times the
+	 * last price of their symbol (i.e. the gross exposure).
+	 *
+	 * @return
+	 */
+	public BigDecimal getGrossNotional() {
+		return grossNotional;
+	}
+
+	/**
+	 * Returns the profit-loss, in currency, realized by the fills that
+	 * reduced positions.
+	 *
+	 * @return
+	 */
+	public BigDecimal getRealizedProfitLoss() {
+		return realizedProfitLoss;
+	}
+
+	/**
+	 * Returns the profit-loss, in currency, of the open positions marked
+	 * to the last price.
+	 *
+	 * @return
+	 */
+	public BigDecimal getUnrealizedProfitLoss() {
+		return unrealizedProfitLoss;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{pos=%s net=%s gross=%s netNotional=%s grossNotional=%s realized=%s unrealized=%s}",
+				position, netPosition, grossPosition, netNotional,
+				grossNotional, realizedProfitLoss, unrealizedProfitLoss);
+	}
+
+
+	// PACKAGE METHODS //
+
+	/**
+	 * Returns these totals with the contribution of a position replaced
+	 * by its new value.  A null contribution counts as zero.
+	 */
+	PortfolioTotals replace( PortfolioTotals old, PortfolioTotals now ) {
+		if ( old == null ) old = ZERO;
+		if ( now == null ) now = ZERO;
+		return new PortfolioTotals(
+				position.add(now.position).subtract(old.position),
+				netPosition.add(now.netPosition).subtract(old.netPosition),
+				grossPosition.add(now.grossPosition).subtract(old.grossPosition),
+				netNotional.add(now.netNotional).subtract(old.netNotional),
+				grossNotional.add(now.grossNotional).subtract(old.grossNotional),
+				realizedProfitLoss.add(now.realizedProfitLoss).subtract(old.realizedProfitLoss),
+				unrealizedProfitLoss.add(now.unrealizedProfitLoss).subtract(old.unrealizedProfitLoss));
+	}
+
+	/**
+	 * Returns these totals with the given marked values.
+	 */
+	PortfolioTotals marked( BigDecimal netNotional, BigDecimal grossNotional,
+			BigDecimal unrealizedProfitLoss ) {
+		return new PortfolioTotals(position, netPosition, grossPosition,
+				netNotional, grossNotional, realizedProfitLoss, unrealizedProfitLoss);
+	}
+
+	/**
+	 * Returns only the realized part of these totals.
+	 */
+	PortfolioTotals realizedOnly() {
+		return new PortfolioTotals(BigDecimal.ZERO, BigDecimal.ZERO,
+				BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO,
+				realizedProfitLoss, BigDecimal.ZERO);
+	}
+}
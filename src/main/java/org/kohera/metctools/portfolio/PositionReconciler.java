@@ -0,0 +1,305 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.Timer;
+import org.marketcetera.core.position.PositionKey;
+
+/**
+ * Reconciles the positions of a PortfolioStrategy's portfolio with the
+ * positions reported by the ORS.
+ *
+ * Each run fetches the ORS positions of the portfolio's account, diffs
+ * them against the transacted position of each Trade, and only touches the
+ * Trades whose position differs.  Every difference is reported as a
+ * PositionBreak:
+ *
+ * - QUANTITY: the Trade's position differs from the ORS position; the
+ *   Trade is set to the ORS position.
+ * - MISSING_IN_ORS: the Trade has a position that the ORS does not know
+ *   of; the Trade is set flat.
+ * - MISSING_IN_PORTFOLIO: the ORS has a position in a symbol the
+ *   portfolio does not trade; a Trade is created for it only if
+ *   setAdoptUnknown(true) was called.
+ * - PENDING: the Trade has an order in flight, or received execution
+ *   reports while the ORS was being queried, so the difference may be
+ *   fills that one side has not accounted for yet; the Trade is left alone.
+ *
+ * The ORS positions are a snapshot taken before the Trades are examined.
+ * To keep a fill that arrives during the query from being overwritten by
+ * the stale ORS position, the report count of each Trade is noted before
+ * the query, and a Trade is only changed if, under its report lock, the
+ * count has not moved since.
+ *
+ * With setApplyChanges(false), breaks are only reported.
+ *
+ * Runs can be scheduled in the background with start(); they then run on
+ * a thread of the reconciler's own, so the slow ORS query blocks neither
+ * the event thread nor the OrderScheduler workers that run the order
+ * timeouts.
+ *
+ * @see PortfolioStrategy#syncORSPositions()
+ * @author Jake Brukhman
+ *
+ */
+public final class PositionReconciler {
+
+	/**
+	 * Kind of difference between the portfolio and the ORS.
+	 */
+	public enum BreakType {
+		QUANTITY,
+		MISSING_IN_ORS,
+		MISSING_IN_PORTFOLIO,
+		PENDING
+	}
+
+	/**
+	 * A difference between the portfolio and the ORS for one symbol.
+	 */
+	public static final class PositionBreak {
+		private final String symbol;
+		private final BreakType type;
+		private final BigDecimal portfolioQty;
+		private final BigDecimal orsQty;
+		private final boolean applied;
+
+		PositionBreak( String symbol, BreakType type, BigDecimal portfolioQty,
+				BigDecimal orsQty, boolean applied ) {
+			this.symbol = symbol;
+			this.type = type;
+			this.portfolioQty = portfolioQty;
+			this.orsQty = orsQty;
+			this.applied = applied;
+		}
+
+		public String getSymbol() { return symbol; }
+		public BreakType getType() { return type; }
+
+		/**
+		 * Returns the signed position of the Trade before reconciliation.
+		 */
+		public BigDecimal getPortfolioQty() { return portfolioQty; }
+
+		/**
+		 * Returns the signed position reported by the ORS.
+		 */
+		public BigDecimal getOrsQty() { return orsQty; }
+
+		/**
+		 * Returns true if and only if the portfolio was changed to match the ORS.
+		 */
+		public boolean isApplied() { return applied; }
+
+		@Override
+		public String toString() {
+			return symbol + ":" + type + "(portfolio " + portfolioQty + ", ORS " + orsQty +
+				(applied ? ", applied)" : ")");
+		}
+	}
+
+	/**
+	 * Receives the breaks found by each background run.
+	 */
+	public interface Listener {
+		public void onReconciliation( PortfolioStrategy sender, List<PositionBreak> breaks );
+	}
+
+	/* fields */
+	private final PortfolioStrategy strategy;
+	private volatile boolean applyChanges = true;
+	private volatile boolean adoptUnknown = false;
+	private volatile Listener listener;
+	private volatile List<PositionBreak> lastBreaks = Collections.emptyList();
+	private final ExecutorService runner = OrderScheduler.newPool(1, "PositionReconciler");
+	private Timer.Timeout task;
+	private int epoch;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(PositionReconciler.class);
+
+	PositionReconciler( PortfolioStrategy strategy ) {
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Sets whether breaks are applied to the portfolio (the default), or
+	 * only reported.
+	 *
+	 * @param applyChanges
+	 */
+	public void setApplyChanges( boolean applyChanges ) {
+		this.applyChanges = applyChanges;
+	}
+
+	/**
+	 * Sets whether Trades are created for ORS positions in symbols that
+	 * the portfolio does not trade.  Off by default.
+	 *
+	 * @param adoptUnknown
+	 */
+	public void setAdoptUnknown( boolean adoptUnknown ) {
+		this.adoptUnknown = adoptUnknown;
+	}
+
+	/**
+	 * Sets the listener of the background runs.
+	 *
+	 * @param listener
+	 */
+	public void setListener( Listener listener ) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the breaks found by the last run.
+	 *
+	 * @return
+	 */
+	public List<PositionBreak> getLastBreaks() {
+		return lastBreaks;
+	}
+
+	/**
+	 * Reconciles the portfolio with the ORS now, on the calling thread.
+	 *
+	 * @return the breaks, or null if the ORS positions could not be obtained
+	 */
+	public List<PositionBreak> reconcile() {
+		Portfolio portfolio = strategy.getPortfolio();
+		
+		/* report counts before the query, to detect the Trades that change during it */
+		Map<String,Long> reportCounts = new HashMap<String,Long>();
+		for ( Trade trade : portfolio.getTrades() ) {
+			reportCounts.put(trade.getSymbol(), trade.getReportCount());
+		}
+		
+		Map<PositionKey,BigDecimal> positions = strategy.getPositions(new Date());
+		if ( positions == null ) {
+			logger.error(">>> Could not sync ORS positions.");
+			return null;
+		}
+
+		String account = portfolio.getAccount();
+
+		/* ORS positions of this account, by symbol */
+		Map<String,BigDecimal> ors = new HashMap<String,BigDecimal>();
+		for ( Map.Entry<PositionKey,BigDecimal> e : positions.entrySet() ) {
+			PositionKey key = e.getKey();
+			if ( account == null || account.equals(key.getAccount()) ) {
+				BigDecimal qty = e.getValue();
+				BigDecimal sum = ors.get(key.getSymbol());
+				ors.put(key.getSymbol(), (sum == null) ? qty : sum.add(qty));
+			}
+		}
+
+		List<PositionBreak> breaks = new ArrayList<PositionBreak>();
+		boolean apply = applyChanges;
+
+		for ( Trade trade : portfolio.getTrades() ) {
+			String symbol = trade.getSymbol();
+			BigDecimal orsQty = ors.remove(symbol);
+			BigDecimal target = (orsQty == null) ? BigDecimal.ZERO : orsQty;
+			Long seen = reportCounts.get(symbol);
+			
+			/* no report may be applied between the check and the override */
+			synchronized(trade.getReportLock()) {
+				BigDecimal qty = trade.getSignedQty();
+				if ( qty.compareTo(target) == 0 ) continue;
+				
+				if ( seen == null || seen.longValue() != trade.getReportCount() ||
+						trade.hasWorkingOrders() ) {
+					breaks.add(new PositionBreak(symbol, BreakType.PENDING, qty, orsQty, false));
+					continue;
+				}
+				if ( apply ) {
+					trade.overridePosition(target);
+				}
+				breaks.add(new PositionBreak(symbol,
+						(orsQty == null) ? BreakType.MISSING_IN_ORS : BreakType.QUANTITY,
+						qty, orsQty, apply));
+			}
+		}
+
+		/* what is left is not in the portfolio */
+		boolean adopt = apply && adoptUnknown;
+		for ( Map.Entry<String,BigDecimal> e : ors.entrySet() ) {
+			if ( e.getValue().signum() == 0 ) continue;
+			if ( adopt ) {
+				portfolio.createTrade(e.getKey()).overridePosition(e.getValue());
+			}
+			breaks.add(new PositionBreak(e.getKey(), BreakType.MISSING_IN_PORTFOLIO,
+					null, e.getValue(), adopt));
+		}
+
+		lastBreaks = Collections.unmodifiableList(breaks);
+		if ( breaks.isEmpty() ) {
+			logger.debug(">>> Portfolio is in sync with the ORS.");
+		} else {
+			logger.info(">>> Reconciled portfolio with the ORS: " + breaks.size() + " break(s).");
+			logger.debug(">>> Breaks: " + breaks);
+		}
+		return lastBreaks;
+	}
+
+	/**
+	 * Reconciles the portfolio every interval milliseconds, on a worker
+	 * thread, until stop() is called.
+	 *
+	 * @param interval
+	 */
+	public synchronized void start( long interval ) {
+		stop();
+		schedule(interval, epoch);
+	}
+
+	/**
+	 * Stops the background runs.
+	 */
+	public synchronized void stop() {
+		epoch++;
+		if ( task != null ) {
+			task.cancel();
+			task = null;
+		}
+	}
+
+
+	// PRIVATE METHODS //
+
+	private synchronized void schedule( final long interval, final int runEpoch ) {
+		if ( runEpoch != epoch ) return;
+		final Runnable run = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					List<PositionBreak> breaks = reconcile();
+					Listener l = listener;
+					if ( breaks != null && l != null ) {
+						l.onReconciliation(strategy, breaks);
+					}
+				} catch (Exception e) {
+					logger.error(">>> Position reconciliation failed.", e);
+				} finally {
+					schedule(interval, runEpoch);
+				}
+			}
+		};
+		/* the timer only hands the run over, since the query blocks */
+		task = OrderScheduler.schedule(interval, new Runnable() {
+			@Override
+			public void run() {
+				runner.execute(run);
+			}
+		});
+	}
+}
@@ -11,7 +11,7 @@ public class RejectPolicies {
 	 * Sends a WARN LogEvent to the parent strategy to let it know that
 	 * an order has been filled.
 	 */
-	public final static RejectPolicy ON_REJECT_WARN = new RejectPolicy() {
+	public final static RejectPolicy ON_REJECT_WARN = new RiskRejectPolicy() {
 		/**
 		 * 
 		 */
@@ -21,8 +21,16 @@ public class RejectPolicies {
 		public void onReject(DelegatorStrategy sender, OrderID orderId,
 				Trade trade, ExecutionReport report) {
 			Logger.getLogger(PortfolioStrategy.class)
-			  .info(">>> " + trade + ": REJECTED (" + report.getText() + ") Order " + orderId + ".");
-		}		
+			  .info(">>> " + trade + ": REJECTED (" + (report != null ? report.getText() : "not sent") + 
+					  ") Order " + orderId + ".");
+		}
+		
+		@Override
+		public void onRefused(DelegatorStrategy sender, OrderID orderId,
+				Trade trade, String reason) {
+			Logger.getLogger(PortfolioStrategy.class)
+			  .info(">>> " + trade + ": REFUSED (" + reason + ") Order " + orderId + ".");
+		}
 	};
 
 }
@@ -10,6 +10,11 @@ import org.marketcetera.trade.OrderID;
  * 
  * Interface for custom policies for FIX message rejections.
  * 
+ * If the portfolio's RiskGate notifies reject policies, an order refused
+ * by the gate is reported too, with a null report; implement
+ * RiskRejectPolicy to be told the reason instead.
+ * 
+ * @see RiskGate#setRejectPolicyNotified(boolean)
  * @author Jake Brukhman
  *
  */
@@ -0,0 +1,32 @@
+package org.kohera.metctools.portfolio;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+/**
+ * Interface for custom pre-trade checks, run by a RiskGate before an
+ * order is sent.
+ * 
+ * Checks are run on the sending thread, so they must be quick and must
+ * not block.
+ * 
+ * @see RiskGate#addCheck(RiskCheck)
+ * @author Jake Brukhman
+ *
+ */
+public interface RiskCheck 
+	extends Serializable {
+	
+	/**
+	 * Implement this method to vet an order.
+	 * 
+	 * @param trade	the Trade sending the order
+	 * @param side	side of the order
+	 * @param qty	unsigned quantity of the order (as amended, for a replace)
+	 * @param price	limit price of the order, or for a market order the
+	 * 				quote it would take (zero if the symbol has no price)
+	 * @return the reason the order is refused, or null to let it through
+	 */
+	public String check( Trade trade, Side side, BigDecimal qty, BigDecimal price );
+	
+}
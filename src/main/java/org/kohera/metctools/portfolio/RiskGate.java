@@ -0,0 +1,385 @@
+package org.kohera.metctools.portfolio;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.marketcetera.trade.OrderID;
+
+/**
+ * Pre-trade risk limits of a Portfolio, checked before each order is sent.
+ *
+ * The built-in checks are, in order:
+ *
+ *   the quantity and notional of the order;
+ *   the position of the symbol once the order and its working orders
+ *   are filled;
+ *   the gross notional of the portfolio once the order is filled.
+ *
+ * followed by the custom RiskChecks, in the order they were added, and
+ * last by the order rate per account and per symbol (orders per window),
+ * so that a refused order does not use up the rate of the orders after
+ * it.
+ *
+ * Market orders are valued at the ask (buys) or the bid (sells), or at
+ * the last price if there is no quote.  While a notional or gross limit
+ * is set, a market order of a symbol with no known price is refused.
+ *
+ * Every check reads counters that are already maintained (the Trade's
+ * position, the Portfolio's running totals, the rate windows), so the
+ * cost of a check does not depend on the size of the portfolio.  Orders
+ * that reduce a position always pass the position and gross checks.  A
+ * limit of zero is not checked.
+ *
+ * A cancel/replace is checked like a new order, except that only the
+ * quantity it adds to the order counts towards the position and gross
+ * limits.
+ *
+ * A refused order is not sent; its handle completes as REJECTED and the
+ * Listener, if any, is told why.  The Trade's RejectPolicy is only called
+ * if setRejectPolicyNotified(true) was called, since no order reached the
+ * broker: a RiskRejectPolicy is told the reason, and any other
+ * RejectPolicy gets a null report.
+ *
+ * @see Portfolio#setRiskGate(RiskGate)
+ * @author Jake Brukhman
+ *
+ */
+public final class RiskGate implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -3190456276430719823L;
+	private static final long DEFAULT_RATE_WINDOW = 1000;
+
+	/* limits */
+	private volatile BigDecimal maxOrderQty;
+	private volatile BigDecimal maxOrderNotional;
+	private volatile BigDecimal maxPosition;
+	private volatile BigDecimal maxGrossNotional;
+	private volatile int maxSymbolOrders;
+	private volatile int maxAccountOrders;
+	private volatile long rateWindow = DEFAULT_RATE_WINDOW;
+	private volatile boolean rejectPolicyNotified;
+	private final List<RiskCheck> checks = new CopyOnWriteArrayList<RiskCheck>();
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(RiskGate.class);
+
+	/* counters */
+	transient private ConcurrentMap<String,RateCounter> accountRates;
+	transient private AtomicLong rejected;
+	transient private volatile Listener listener;
+
+	/**
+	 * Receives the orders refused by the gate.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the sending thread, so it must not block.
+		 *
+		 * @param trade		the Trade that tried to send the order
+		 * @param orderId	id of the order, which was not sent
+		 * @param reason	why the order was refused
+		 */
+		public void onRefused( Trade trade, OrderID orderId, String reason );
+	}
+
+	/**
+	 * Fixed-window order counter.
+	 */
+	static final class RateCounter {
+		private long windowStart;
+		private int count;
+
+		/**
+		 * Counts an order, unless the window is full.
+		 *
+		 * @return true if the order was counted
+		 */
+		synchronized boolean tryAcquire( long now, long window, int max ) {
+			if ( count == 0 || now - windowStart >= window ) {
+				windowStart = now;
+				count = 0;
+			}
+			if ( count >= max ) return false;
+			count++;
+			return true;
+		}
+
+		/**
+		 * Gives back an order counted by tryAcquire.
+		 */
+		synchronized void release() {
+			if ( count > 0 ) count--;
+		}
+	}
+
+	public RiskGate() {
+		init();
+	}
+
+	/**
+	 * Sets the largest quantity of a single order.
+	 *
+	 * @param qty
+	 */
+	public void setMaxOrderQty( BigDecimal qty ) {
+		maxOrderQty = limit(qty);
+	}
+
+	/**
+	 * Sets the largest notional (quantity times price) of a single order.
+	 * Market orders are valued at the quote they would take.
+	 *
+	 * @param notional
+	 */
+	public void setMaxOrderNotional( BigDecimal notional ) {
+		maxOrderNotional = limit(notional);
+	}
+
+	/**
+	 * Sets the largest absolute position in any one symbol.
+	 *
+	 * @param qty
+	 */
+	public void setMaxPosition( BigDecimal qty ) {
+		maxPosition = limit(qty);
+	}
+
+	/**
+	 * Sets the largest gross notional of the portfolio.
+	 *
+	 * @see PortfolioTotals#getGrossNotional()
+	 * @param notional
+	 */
+	public void setMaxGrossNotional( BigDecimal notional ) {
+		maxGrossNotional = limit(notional);
+	}
+
+	/**
+	 * Sets the most orders a symbol may send per rate window.
+	 *
+	 * @param orders
+	 */
+	public void setMaxSymbolOrders( int orders ) {
+		maxSymbolOrders = orders;
+	}
+
+	/**
+	 * Sets the most orders an account may send per rate window.
+	 *
+	 * @param orders
+	 */
+	public void setMaxAccountOrders( int orders ) {
+		maxAccountOrders = orders;
+	}
+
+	/**
+	 * Sets the length of the rate window, in milliseconds (one second
+	 * by default).
+	 *
+	 * @param window
+	 */
+	public void setRateWindow( long window ) {
+		rateWindow = window;
+	}
+
+	public BigDecimal getMaxOrderQty() { return maxOrderQty; }
+	public BigDecimal getMaxOrderNotional() { return maxOrderNotional; }
+	public BigDecimal getMaxPosition() { return maxPosition; }
+	public BigDecimal getMaxGrossNotional() { return maxGrossNotional; }
+	public int getMaxSymbolOrders() { return maxSymbolOrders; }
+	public int getMaxAccountOrders() { return maxAccountOrders; }
+	public long getRateWindow() { return rateWindow; }
+
+	/**
+	 * Sets whether refused orders are also reported to the RejectPolicy
+	 * of their Trade (off by default).
+	 *
+	 * @see RiskRejectPolicy
+	 * @param notified
+	 */
+	public void setRejectPolicyNotified( boolean notified ) {
+		rejectPolicyNotified = notified;
+	}
+
+	public boolean isRejectPolicyNotified() { return rejectPolicyNotified; }
+
+	/**
+	 * Adds a custom check, run after the built-in ones.
+	 *
+	 * @param check
+	 */
+	public void addCheck( RiskCheck check ) {
+		checks.add(check);
+	}
+
+	public void removeCheck( RiskCheck check ) {
+		checks.remove(check);
+	}
+
+	/**
+	 * Sets the listener of the refused orders.  The listener is not
+	 * serialized.
+	 *
+	 * @param listener
+	 */
+	public void setListener( Listener listener ) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the number of orders refused so far.
+	 *
+	 * @return
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+
+	// PACKAGE METHODS //
+
+	/**
+	 * Vets an order of the given Trade, and tells the listener if it is
+	 * refused.
+	 *
+	 * @param trade
+	 * @param orderId
+	 * @param side
+	 * @param qty			unsigned quantity
+	 * @param added			quantity added to the exposure: qty for a new
+	 * 						order, the increase for a replace
+	 * @param limitPrice	limit price, or null for a market order
+	 * @param symbolRate	order counter of the Trade
+	 * @return the reason the order is refused, or null
+	 */
+	String check( Trade trade, OrderID orderId, Side side, BigDecimal qty, BigDecimal added,
+			BigDecimal limitPrice, RateCounter symbolRate ) {
+		String reason = runChecks(trade, side, qty, added, limitPrice, symbolRate);
+		if ( reason != null ) {
+			rejected.incrementAndGet();
+			Listener l = listener;
+			if ( l != null ) {
+				try {
+					l.onRefused(trade, orderId, reason);
+				} catch ( RuntimeException e ) {
+					logger.error(">>> " + trade + ": Risk gate listener failed.", e);
+				}
+			}
+		}
+		return reason;
+	}
+
+
+	// PRIVATE METHODS //
+
+	private String runChecks( Trade trade, Side side, BigDecimal qty, BigDecimal added,
+			BigDecimal limitPrice, RateCounter symbolRate ) {
+
+		/* order size */
+		BigDecimal limit = maxOrderQty;
+		if ( limit != null && qty.compareTo(limit) > 0 ) {
+			return "quantity " + qty + " is over " + limit;
+		}
+		BigDecimal price = (limitPrice != null) ? limitPrice : marketPrice(trade, side);
+		if ( price.signum() <= 0 && (maxOrderNotional != null || maxGrossNotional != null) ) {
+			return "no price is known to value the order";
+		}
+		limit = maxOrderNotional;
+		if ( limit != null && qty.multiply(price).compareTo(limit) > 0 ) {
+			return "notional " + qty.multiply(price) + " is over " + limit;
+		}
+
+		/* exposure once filled, with the other working orders */
+		BigDecimal position = trade.getSignedNetQty()
+			.add(trade.getOrderProcessor().getWorkingOrders().getSignedLeavesQty());
+		if ( trade.isPending() && trade.getLeavesQty() != null && trade.getPendingSide() != null ) {
+			position = position.add(trade.getPendingSide().polarize(trade.getLeavesQty()));
+		}
+		BigDecimal projected = position.add(side.polarize(added));
+		BigDecimal increase = projected.abs().subtract(position.abs());
+		if ( increase.signum() > 0 ) {
+			limit = maxPosition;
+			if ( limit != null && projected.abs().compareTo(limit) > 0 ) {
+				return "position " + projected + " is over " + limit;
+			}
+			limit = maxGrossNotional;
+			Portfolio portfolio = trade.getParentPortfolio();
+			if ( limit != null && portfolio != null ) {
+				BigDecimal gross = portfolio.getTotals().getGrossNotional()
+					.add(increase.multiply(price));
+				if ( gross.compareTo(limit) > 0 ) {
+					return "gross notional " + gross + " is over " + limit;
+				}
+			}
+		}
+
+		/* custom checks */
+		for ( RiskCheck check : checks ) {
+			String reason = check.check(trade, side, qty, price);
+			if ( reason != null ) return reason;
+		}
+
+		/* order rate, counted only for orders that pass everything else */
+		long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+		int maxOrders = maxSymbolOrders;
+		if ( maxOrders > 0 && !symbolRate.tryAcquire(now, rateWindow, maxOrders) ) {
+			return "symbol is over " + maxOrders + " orders per " + rateWindow + " ms";
+		}
+		maxOrders = maxAccountOrders;
+		String account = trade.getAccount();
+		if ( maxOrders > 0 && account != null ) {
+			RateCounter rate = accountRates.get(account);
+			if ( rate == null ) {
+				RateCounter created = new RateCounter();
+				rate = accountRates.putIfAbsent(account, created);
+				if ( rate == null ) rate = created;
+			}
+			if ( !rate.tryAcquire(now, rateWindow, maxOrders) ) {
+				symbolRate.release();
+				return "account " + account + " is over " + maxOrders + " orders per " +
+					rateWindow + " ms";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Price a market order would take: the ask for a buy, the bid for a
+	 * sell, or else the last price; zero if none is known.
+	 */
+	private static BigDecimal marketPrice( Trade trade, Side side ) {
+		BigDecimal price = (side == Side.SELL) ? trade.getLastBidPrice() : trade.getLastAskPrice();
+		if ( price == null || price.signum() <= 0 ) {
+			price = trade.getLastPrice();
+		}
+		return (price == null) ? BigDecimal.ZERO : price;
+	}
+
+	private static BigDecimal limit( BigDecimal value ) {
+		return (value == null || value.signum() <= 0) ? null : value;
+	}
+
+	private void init() {
+		accountRates = new ConcurrentHashMap<String,RateCounter>();
+		rejected = new AtomicLong();
+	}
+
+	private void readObject(ObjectInputStream in)
+		throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+	}
+}
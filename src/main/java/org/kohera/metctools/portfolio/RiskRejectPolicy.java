@@ -0,0 +1,29 @@
+package org.kohera.metctools.portfolio;
+
+import org.kohera.metctools.DelegatorStrategy;
+import org.marketcetera.trade.OrderID;
+
+/**
+ * 
+ * A RejectPolicy that is also told about the orders refused by the
+ * portfolio's RiskGate, with the reason they were refused.
+ * 
+ * @see RiskGate#setRejectPolicyNotified(boolean)
+ * @author Jake Brukhman
+ *
+ */
+public interface RiskRejectPolicy extends RejectPolicy {
+	
+	/**
+	 * 
+	 * Implement this method to handle orders refused before they were 
+	 * sent.
+	 * 
+	 * @param sender
+	 * @param orderId	id of the order, which was not sent
+	 * @param trade
+	 * @param reason	why the order was refused
+	 */
+	public void onRefused( DelegatorStrategy sender, OrderID orderId, Trade trade, String reason );
+	
+}
@@ -0,0 +1,332 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.kohera.metctools.util.Timer;
+import org.marketcetera.trade.OrderSingle;
+
+/**
+ * A parent order that is worked as a series of child orders.
+ *
+ * TWAP spreads the quantity evenly over a number of slices; VWAP sends,
+ * at each interval, a fraction (the participation rate) of the volume
+ * traded in the symbol since the last interval, as seen in the Trade's
+ * TradeEvents.  A TWAP order may also be capped to a participation rate;
+ * a capped TWAP order, like a VWAP order, waits one interval before its
+ * first slice so that the cap is taken against observed volume.
+ *
+ * Slices are driven by the shared timing wheel, so a sliced order does
+ * not hold a thread.  Each child order is canceled if it is still working
+ * shortly before the next slice is due; its remainder rolls into the next
+ * slice.
+ * The handle completes as FILLED once the whole quantity is filled, or as
+ * CANCELED when the schedule runs out or cancel() is called and the last
+ * child order has ended.
+ *
+ * @see OrderInterface#twap(BigDecimal, Side, long, int, BigDecimal, double)
+ * @see OrderInterface#vwap(BigDecimal, Side, long, long, double, BigDecimal)
+ * @author Jake Brukhman
+ *
+ */
+public final class SlicedOrder {
+
+	/**
+	 * How the quantity of each slice is chosen.
+	 */
+	public enum Style {
+		/** Equal slices at equal intervals. */
+		TWAP,
+		/** Slices in proportion to the traded volume. */
+		VWAP
+	}
+
+	/* fields */
+	private final OrderProcessor processor;
+	private final Style style;
+	private final BigDecimal orderQty;
+	private final Side side;
+	private final BigDecimal limitPrice;
+	private final long interval;
+	private final int slices;
+	private final BigDecimal participation;
+	private final OrderFuture future = new OrderFuture();
+
+	private final List<WorkingOrder> children = new ArrayList<WorkingOrder>();
+	private BigDecimal filledQty = BigDecimal.ZERO;		// filled by ended children
+	private BigDecimal volume = BigDecimal.ZERO;		// traded since the last slice
+	private int slicesSent;
+	private int ticks;
+	private boolean stopped;
+	private Timer.Timeout nextTick;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(SlicedOrder.class);
+
+	SlicedOrder( OrderProcessor processor, Style style, BigDecimal orderQty, Side side,
+			BigDecimal limitPrice, long interval, int slices, double participation ) {
+		this.processor = processor;
+		this.style = style;
+		this.orderQty = orderQty.setScale(0, RoundingMode.DOWN);
+		this.side = side;
+		this.limitPrice = limitPrice;
+		this.interval = interval;
+		this.slices = slices;
+		this.participation = (participation > 0) ? BigDecimal.valueOf(participation) : null;
+	}
+
+	public Style getStyle() { return style; }
+	public Side getSide() { return side; }
+	public BigDecimal getOrderQty() { return orderQty; }
+
+	/**
+	 * Returns the limit price of the slices, or null for market slices.
+	 */
+	public BigDecimal getLimitPrice() { return limitPrice; }
+
+	/**
+	 * Returns the completion handle of the parent order.
+	 */
+	public OrderFuture getFuture() { return future; }
+
+	/**
+	 * Returns true if and only if the parent order is still being worked.
+	 */
+	public boolean isLive() { return !future.isDone(); }
+
+	/**
+	 * Returns the shares filled so far, including the partial fills of
+	 * the working slice.
+	 *
+	 * @return
+	 */
+	public synchronized BigDecimal getFilledQty() {
+		BigDecimal sum = filledQty;
+		for ( WorkingOrder child : children ) {
+			sum = sum.add(child.getCumulativeQty());
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the shares left to fill.
+	 *
+	 * @return
+	 */
+	public BigDecimal getRemainingQty() {
+		return orderQty.subtract(getFilledQty());
+	}
+
+	/**
+	 * Returns the filled fraction of the order, between 0 and 1.
+	 *
+	 * @return
+	 */
+	public double getProgress() {
+		if ( orderQty.signum() == 0 ) return 1.0;
+		return getFilledQty().doubleValue() / orderQty.doubleValue();
+	}
+
+	/**
+	 * Returns the number of child orders sent so far.
+	 */
+	public synchronized int getSlicesSent() { return slicesSent; }
+
+	/**
+	 * Stops slicing and cancels the working child orders.  The handle
+	 * completes once they have ended.
+	 */
+	public void cancel() {
+		List<WorkingOrder> live;
+		synchronized(this) {
+			if ( stopped ) return;
+			logger.info(">>> " + this + ": Canceling.");
+			stop();
+			live = new ArrayList<WorkingOrder>(children);
+		}
+		for ( WorkingOrder child : live ) {
+			processor.cancelChildOrder(child);
+		}
+		checkDone();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return style + "{" + side + " " + getFilledQty() + "/" + orderQty +
+			(limitPrice != null ? "@" + limitPrice : "") + ", " + slicesSent + " slices}";
+	}
+
+
+	// PACKAGE METHODS //
+
+	/**
+	 * Starts the schedule: TWAP sends its first slice right away, VWAP
+	 * and capped TWAP wait one interval to observe the volume.
+	 */
+	void start() {
+		if ( style == Style.TWAP && participation == null ) {
+			OrderScheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					tick();
+				}
+			});
+		} else {
+			scheduleTick();
+		}
+	}
+
+	/**
+	 * Completes the handle as NOT_SENT, without starting the schedule.
+	 */
+	void refuse() {
+		synchronized(this) {
+			stopped = true;
+		}
+		future.complete(OrderOutcome.NOT_SENT, null);
+	}
+
+	/**
+	 * Adds traded volume in the symbol.
+	 *
+	 * @param size
+	 */
+	synchronized void addVolume( BigDecimal size ) {
+		if ( size != null && !stopped ) {
+			volume = volume.add(size);
+		}
+	}
+
+
+	// PRIVATE METHODS //
+
+	private void tick() {
+		WorkingOrder child;
+		synchronized(this) {
+			if ( stopped ) return;
+			nextTick = null;
+			ticks++;
+
+			BigDecimal qty = nextSliceQty();
+			volume = BigDecimal.ZERO;
+			if ( ticks >= slices ) {
+				stop();
+			} else {
+				scheduleTick();
+			}
+			if ( qty.signum() <= 0 ) {
+				child = null;
+			} else {
+				try {
+					OrderSingle order = (limitPrice == null) ? processor.buildMarket(qty, side)
+							: processor.buildLimit(qty, side, limitPrice);
+					/* leave time for the cancel to be acknowledged before the next slice */
+					child = processor.sendChildOrder(order, interval - interval/4);
+				} catch ( RuntimeException e ) {
+					logger.error(">>> " + this + ": Could not send a slice; stopping.", e);
+					stop();
+					child = null;
+				}
+			}
+			if ( child != null ) {
+				children.add(child);
+				slicesSent++;
+				logger.debug(">>> " + this + ": Sent slice " + child);
+			}
+		}
+		if ( child != null ) {
+			child.getFuture().addListener(new OrderListener() {
+				@Override
+				public void onComplete(OrderFuture f) {
+					childEnded(f);
+				}
+			});
+		} else {
+			checkDone();
+		}
+	}
+
+	/**
+	 * Returns the quantity of the slice due now; must hold the lock.
+	 */
+	private BigDecimal nextSliceQty() {
+		/* shares filled or still working */
+		BigDecimal committed = filledQty;
+		for ( WorkingOrder child : children ) {
+			committed = committed.add(child.getCumulativeQty()).add(child.getLeavesQty());
+		}
+		BigDecimal qty;
+		if ( style == Style.TWAP ) {
+			BigDecimal target = (ticks >= slices) ? orderQty : orderQty
+					.multiply(new BigDecimal(ticks))
+					.divide(new BigDecimal(slices), 0, RoundingMode.DOWN);
+			qty = target.subtract(committed);
+			if ( participation != null ) {
+				qty = qty.min(volume.multiply(participation));
+			}
+		} else {
+			qty = volume.multiply(participation);
+		}
+		qty = qty.min(orderQty.subtract(committed));
+		return qty.setScale(0, RoundingMode.DOWN);
+	}
+
+	private void scheduleTick() {
+		nextTick = OrderScheduler.schedule(interval, new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		});
+	}
+
+	/**
+	 * Stops the schedule; must hold the lock.
+	 */
+	private void stop() {
+		stopped = true;
+		if ( nextTick != null ) {
+			nextTick.cancel();
+			nextTick = null;
+		}
+	}
+
+	private void childEnded( OrderFuture f ) {
+		boolean filled;
+		synchronized(this) {
+			for ( int i = 0; i < children.size(); i++ ) {
+				WorkingOrder child = children.get(i);
+				if ( child.getFuture() == f ) {
+					children.remove(i);
+					filledQty = filledQty.add(child.getCumulativeQty());
+					break;
+				}
+			}
+			filled = !stopped && filledQty.compareTo(orderQty) >= 0;
+			if ( filled ) {
+				stop();
+			}
+		}
+		checkDone();
+	}
+
+	/**
+	 * Completes the handle once the schedule has stopped and the last
+	 * child order has ended.
+	 */
+	private void checkDone() {
+		OrderOutcome outcome;
+		synchronized(this) {
+			if ( !stopped || !children.isEmpty() || future.isDone() ) return;
+			outcome = (filledQty.compareTo(orderQty) >= 0) ?
+					OrderOutcome.FILLED : OrderOutcome.CANCELED;
+			logger.info(">>> " + this + ": Done (" + outcome + ").");
+		}
+		processor.parentTrade.endSlicedOrder(this);
+		future.complete(outcome, null);
+	}
+}
@@ -0,0 +1,256 @@
+package org.kohera.metctools.portfolio;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+import org.marketcetera.event.AskEvent;
+import org.marketcetera.event.BidEvent;
+import org.marketcetera.event.TradeEvent;
+
+/**
+ * Conflating stage for market data.
+ *
+ * Events are handed over by the event thread and delivered by a single
+ * consumer thread.  For each symbol, only the latest Trade, Bid and Ask
+ * event is kept: if a newer event arrives while the previous one is still
+ * waiting for the consumer, the older one is discarded and counted as
+ * conflated.  A burst of ticks therefore never builds a backlog, and the
+ * consumer always processes the freshest quote.
+ *
+ * @see PortfolioStrategy#setTickConflation(boolean)
+ * @author Jake Brukhman
+ *
+ */
+public final class TickConflater {
+
+	/**
+	 * Receives the conflated events, on the consumer thread.
+	 */
+	interface Sink {
+		void deliverTrade( TradeEvent event );
+		void deliverBid( BidEvent event );
+		void deliverAsk( AskEvent event );
+	}
+
+	/**
+	 * Latest pending events for one symbol.
+	 */
+	private static final class Slot {
+		final AtomicReference<TradeEvent> trade = new AtomicReference<TradeEvent>();
+		final AtomicReference<BidEvent> bid = new AtomicReference<BidEvent>();
+		final AtomicReference<AskEvent> ask = new AtomicReference<AskEvent>();
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		final AtomicLong conflated = new AtomicLong();
+	}
+
+	/* milliseconds to wait for the consumer to finish its delivery on stop */
+	private static final long STOP_TIMEOUT = 1000;
+
+	/* fields */
+	private final ConcurrentMap<String,Slot> slots;
+	private final BlockingQueue<Slot> ready;
+	private final Sink sink;
+	private Thread consumer;
+	private volatile boolean running;
+
+	/* logging */
+	private final static Logger logger =
+		Logger.getLogger(TickConflater.class);
+
+	/**
+	 * Create a new TickConflater delivering to the given Sink.
+	 *
+	 * @param sink
+	 */
+	TickConflater( Sink sink ) {
+		this.sink = sink;
+		slots = new ConcurrentHashMap<String,Slot>();
+		ready = new LinkedBlockingQueue<Slot>();
+	}
+
+	/**
+	 * Start the consumer thread.
+	 */
+	synchronized void start() {
+		if ( running ) return;
+		running = true;
+		consumer = new Thread("TickConflater") {
+			@Override
+			public void run() {
+				consume();
+			}
+		};
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * Stop the consumer thread, then deliver the pending events on the
+	 * calling thread, so that the Trades are left with the latest quotes.
+	 */
+	synchronized void stop() {
+		if ( !running ) return;
+		running = false;
+		Thread thr = consumer;
+		consumer = null;
+		thr.interrupt();
+		if ( thr != Thread.currentThread() ) {
+			try {
+				thr.join(STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if ( thr.isAlive() ) {
+				/* delivering now would race with the consumer */
+				logger.warn(">>> Tick conflater did not stop; pending events discarded.");
+				ready.clear();
+				return;
+			}
+		}
+		ready.clear();
+		for ( Slot slot : slots.values() ) {
+			slot.scheduled.set(false);
+			deliver(slot);
+		}
+	}
+
+	// PRODUCER SIDE //
+
+	void offerTrade( String symbol, TradeEvent event ) {
+		Slot slot = slotFor(symbol);
+		if ( slot.trade.getAndSet(event) != null ) {
+			slot.conflated.incrementAndGet();
+		}
+		schedule(slot);
+	}
+
+	void offerBid( String symbol, BidEvent event ) {
+		Slot slot = slotFor(symbol);
+		if ( slot.bid.getAndSet(event) != null ) {
+			slot.conflated.incrementAndGet();
+		}
+		schedule(slot);
+	}
+
+	void offerAsk( String symbol, AskEvent event ) {
+		Slot slot = slotFor(symbol);
+		if ( slot.ask.getAndSet(event) != null ) {
+			slot.conflated.incrementAndGet();
+		}
+		schedule(slot);
+	}
+
+	// STATISTICS //
+
+	/**
+	 * Returns the number of events for the symbol that were replaced by
+	 * a newer event before they could be processed.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	public long getConflatedCount( String symbol ) {
+		Slot slot = slots.get(symbol);
+		return (slot == null) ? 0 : slot.conflated.get();
+	}
+
+	/**
+	 * Returns the number of conflated events, by symbol.
+	 *
+	 * @return
+	 */
+	public Map<String,Long> getConflatedCounts() {
+		Map<String,Long> counts = new HashMap<String,Long>();
+		for ( Map.Entry<String,Slot> e : slots.entrySet() ) {
+			counts.put(e.getKey(), e.getValue().conflated.get());
+		}
+		return Collections.unmodifiableMap(counts);
+	}
+
+	/**
+	 * Returns the total number of conflated events.
+	 *
+	 * @return
+	 */
+	public long getTotalConflatedCount() {
+		long total = 0;
+		for ( Slot slot : slots.values() ) {
+			total += slot.conflated.get();
+		}
+		return total;
+	}
+
+	// PRIVATE METHODS //
+
+	private Slot slotFor( String symbol ) {
+		Slot slot = slots.get(symbol);
+		if ( slot == null ) {
+			Slot created = new Slot();
+			slot = slots.putIfAbsent(symbol, created);
+			if ( slot == null ) slot = created;
+		}
+		return slot;
+	}
+
+	/**
+	 * Queues the slot for the consumer, unless it is already queued.
+	 */
+	private void schedule( Slot slot ) {
+		if ( slot.scheduled.compareAndSet(false, true) ) {
+			ready.offer(slot);
+		}
+	}
+
+	/**
+	 * Consumer loop.
+	 *
+	 * The scheduled flag is cleared before the events are taken, so an
+	 * event offered meanwhile either is taken now or re-schedules the slot.
+	 */
+	private void consume() {
+		while ( running ) {
+			Slot slot;
+			try {
+				slot = ready.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			slot.scheduled.set(false);
+			deliver(slot);
+		}
+	}
+
+	/**
+	 * Hands the pending events of a slot to the sink.
+	 */
+	private void deliver( Slot slot ) {
+		TradeEvent trade = slot.trade.getAndSet(null);
+		BidEvent bid = slot.bid.getAndSet(null);
+		AskEvent ask = slot.ask.getAndSet(null);
+
+		try {
+			if ( trade != null ) sink.deliverTrade(trade);
+		} catch (Exception e) {
+			logger.error(">>> Could not process trade event.", e);
+		}
+		try {
+			if ( bid != null ) sink.deliverBid(bid);
+		} catch (Exception e) {
+			logger.error(">>> Could not process bid event.", e);
+		}
+		try {
+			if ( ask != null ) sink.deliverAsk(ask);
+		} catch (Exception e) {
+			logger.error(">>> Could not process ask event.", e);
+		}
+	}
+}
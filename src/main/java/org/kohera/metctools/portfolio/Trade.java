@@ -5,6 +5,8 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.kohera.metctools.DelegatorStrategy;
@@ -14,6 +16,7 @@ import org.marketcetera.event.BidEvent;
 import org.marketcetera.event.TradeEvent;
 import org.marketcetera.trade.BrokerID;
 import org.marketcetera.trade.ExecutionReport;
+import org.marketcetera.trade.ExecutionType;
 import org.marketcetera.trade.OrderCancelReject;
 import org.marketcetera.trade.OrderID;
 import org.marketcetera.trade.OrderStatus;
@@ -43,11 +46,37 @@ public class Trade implements Serializable {
 	private Side 			pendingSide;		// side of the incoming fills
 	private BigDecimal 		averagePrice;		// average price of last fill
 	private BigDecimal		entryPrice;			// average price of the opening order (reset when trade is zeroed) 
+	private LotBook			lotBook;			// open lots and realized profit-loss, updated on each fill
 	
 	private TradeEvent 		lastTradeEvent;		// last trade of the underlying symbol
 	private BidEvent 		lastBidEvent;		// last bid of the underlying symbol
 	private AskEvent 		lastAskEvent;		// last ask of the underlying symbol
 	
+	/* fixed-point mirror of the accounting fields (see FixedPoint) */
+	private boolean			fixedPoint;			// true if the fixed-point accounting mode is on
+	private long			fixedQty;
+	private long			fixedCumulativeQty;
+	private long			fixedEntryPrice;
+	private long			fixedLastPrice;
+	
+	/* parent order being sliced into child orders */
+	transient volatile private
+		SlicedOrder			slicedOrder;
+	
+	/* contribution to the parent portfolio's totals */
+	transient volatile private
+		PortfolioImpl		exposedTo;			// portfolio to which the contribution is published
+	transient private
+		PortfolioTotals		exposure;			// last published contribution
+	transient private
+		Object				exposureLock = new Object();
+	
+	/* execution reports, serialized against the PositionReconciler */
+	transient private
+		Object				reportLock = new Object();
+	transient volatile private
+		long				reportCount;		// number of reports accepted
+	
 	private BrokerID		brokerId;
 	private String			account;
 	
@@ -107,6 +136,7 @@ public class Trade implements Serializable {
 	public final void setParentPortfolio(Portfolio parentPortfolio) {
 		this.parentPortfolio = parentPortfolio;
 		setAccountInfo();
+		attachExposure(parentPortfolio);
 	}
 
 	/**
@@ -192,6 +222,15 @@ public class Trade implements Serializable {
 		return orderProcessor;
 	}
 
+	/**
+	 * Gets the OrderProcessor for this Trade, for batched order submission.
+	 *
+	 * @return
+	 */
+	final OrderProcessor getOrderProcessor() {
+		return orderProcessor;
+	}
+
 	/**
 	 * Gets the symbol for this Trade.
 	 * 
@@ -250,6 +289,29 @@ public class Trade implements Serializable {
 		return cumulativeQty;
 	}
 
+	/**
+	 * Returns the number of shares left to be filled by the pending order
+	 * and the child orders.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getWorkingLeavesQty() {
+		BigDecimal pending = (isPending() && leavesQty != null) ? leavesQty : BigDecimal.ZERO;
+		return pending.add(orderProcessor.getWorkingOrders().getLeavesQty());
+	}
+
+	/**
+	 * Returns the number of shares filled so far by the pending order and
+	 * the child orders.  Unlike the pending order's, the child orders'
+	 * fills are already accounted for by getQty().
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getWorkingCumulativeQty() {
+		BigDecimal pending = (isPending() && cumulativeQty != null) ? cumulativeQty : BigDecimal.ZERO;
+		return pending.add(orderProcessor.getWorkingOrders().getCumulativeQty());
+	}
+
 	/**
 	 * Returns the orderStatus of the most recent execution report.
 	 * 
@@ -296,6 +358,66 @@ public class Trade implements Serializable {
 		return averagePrice;
 	}
 
+	/**
+	 * Returns the profit-loss, in currency, realized by the fills that
+	 * reduced the position of this Trade, according to the cost basis
+	 * method.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getRealizedProfitLoss() {
+		return lotBook.getRealizedProfitLoss();
+	}
+
+	/**
+	 * Returns the profit-loss, in currency, of the open lots marked to
+	 * the last price.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getUnrealizedProfitLoss() {
+		return lotBook.getUnrealizedProfitLoss(getLastPrice());
+	}
+	
+	/**
+	 * Returns the average cost of the open lots.  Unlike the entry price,
+	 * this follows every fill, including adds and partial reductions.
+	 * 
+	 * @return
+	 */
+	public final BigDecimal getAverageCost() {
+		return lotBook.getAverageCost();
+	}
+	
+	/**
+	 * Returns the number of open lots.
+	 * 
+	 * @return
+	 */
+	public final int getLotCount() {
+		return lotBook.getLotCount();
+	}
+	
+	/**
+	 * Returns the method used to determine the cost of closed shares.
+	 * 
+	 * @return
+	 */
+	public final CostBasisMethod getCostBasisMethod() {
+		return lotBook.getMethod();
+	}
+	
+	/**
+	 * Sets the method used to determine the cost of closed shares.  The
+	 * default is FIFO.  Switching methods with an open position starts
+	 * from a single lot at the average cost.
+	 * 
+	 * @param method
+	 */
+	public final void setCostBasisMethod( CostBasisMethod method ) {
+		lotBook.setMethod(method);
+	}
+
 	/**
 	 * Returns the last received TradeEvent.
 	 * 
@@ -332,6 +454,39 @@ public class Trade implements Serializable {
 		return entryPrice;
 	}
 	
+	/**
+	 * Returns true if and only if the fixed-point accounting mode is on.
+	 * 
+	 * @return
+	 */
+	public final boolean isFixedPointAccounting() {
+		return fixedPoint;
+	}
+	
+	/**
+	 * Turns the fixed-point accounting mode on or off.
+	 * 
+	 * In fixed-point mode, the Trade keeps a scaled long copy of its
+	 * quantities and prices, updated when an execution report or a trade
+	 * event arrives, so that getNetQty(), getSignedQty(), getProfitLoss()
+	 * and the like are computed with primitive arithmetic.  The BigDecimal
+	 * results are the same, except that the profit-loss uses prices rounded
+	 * to FixedPoint.PRICE_SCALE decimals.  The getFixed*() methods return
+	 * the scaled values and allocate nothing.
+	 * 
+	 * If a quantity or price cannot be held exactly in a scaled long, the
+	 * Trade logs a warning and turns the mode off.
+	 * 
+	 * @param fixedPoint
+	 */
+	public final void setFixedPointAccounting( boolean fixedPoint ) {
+		this.fixedPoint = fixedPoint;
+		syncFixedPoint();
+		if ( lastTradeEvent != null ) {
+			syncFixedLastPrice(lastTradeEvent.getPrice());
+		}
+	}
+	
 	public final Logger getLogger() {
 		return logger;
 	}
@@ -356,6 +511,16 @@ public class Trade implements Serializable {
 		} return null;
 	}
 	
+	/**
+	 * Returns the pre-trade risk limits of the parent portfolio, or null.
+	 * 
+	 * @return
+	 */
+	final RiskGate getRiskGate() {
+		Portfolio parent = parentPortfolio;
+		return (parent != null) ? parent.getRiskGate() : null;
+	}
+	
 	
 	
 	
@@ -376,7 +541,39 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final boolean isFilling() {
-		return (isPending() && getCumulativeQty().intValue()!=0);
+		return (isPending() && getCumulativeQty().intValue()!=0) ||
+			orderProcessor.getWorkingOrders().isFilling();
+	}
+	
+	/**
+	 * Returns true if and only if there is a pending order or a live
+	 * child order.
+	 * 
+	 * @return
+	 */
+	public final boolean hasWorkingOrders() {
+		return isPending() || !orderProcessor.getWorkingOrders().isEmpty();
+	}
+	
+	/**
+	 * Returns the live child orders, in the order they were sent.
+	 * 
+	 * @see OrderInterface#childOrderAsync(BigDecimal, Side, BigDecimal, long)
+	 * @return
+	 */
+	public final List<WorkingOrder> getWorkingOrders() {
+		return orderProcessor.getWorkingOrders().snapshot();
+	}
+	
+	/**
+	 * Returns the sliced order being worked, or null.  Its progress is
+	 * reported by getFilledQty(), getRemainingQty() and getProgress().
+	 * 
+	 * @see OrderInterface#twap(BigDecimal, Side, long, int, BigDecimal, double)
+	 * @return
+	 */
+	public final SlicedOrder getSlicedOrder() {
+		return slicedOrder;
 	}
 	
 	/**
@@ -387,6 +584,9 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final boolean isOpen() {
+		if ( fixedPoint ) {
+			return fixedNetQty() / FixedPoint.QTY_ONE != 0;
+		}
 		return (getNetQty().intValue()!=0);
 	}
 	
@@ -399,6 +599,9 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getSignedQty() {
+		if ( fixedPoint ) {
+			return FixedPoint.fromQty(side.value() * fixedQty);
+		}
 		return side.polarize(quantity);
 	}
 	
@@ -452,7 +655,9 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getLastBidPrice() {
-		return lastBidEvent.getPrice();
+		if ( lastBidEvent==null) {
+			return BigDecimal.ZERO;
+		} return lastBidEvent.getPrice();
 	}
 	
 	/**
@@ -476,10 +681,38 @@ public class Trade implements Serializable {
 		/* 1 = position and fills are the same side; 
 		 * -1 = position and fills are different side;
 		 * recall that all quantities are unsigned */
+		if ( fixedPoint ) {
+			return FixedPoint.fromQty(fixedNetQty());
+		}
 		BigDecimal polarity = side.polarize(pendingSide);
 		return quantity.add( polarity.multiply(cumulativeQty));
 	}
 	
+	/**
+	 * Returns getNetQty() scaled by FixedPoint.QTY_SCALE.  Does not
+	 * allocate in fixed-point mode.
+	 * 
+	 * @see setFixedPointAccounting()
+	 * @return
+	 */
+	public final long getFixedNetQty() {
+		if ( fixedPoint ) {
+			return fixedNetQty();
+		}
+		return FixedPoint.toQty(getNetQty());
+	}
+	
+	/**
+	 * Returns getSignedNetQty() scaled by FixedPoint.QTY_SCALE.  Does not
+	 * allocate in fixed-point mode.
+	 * 
+	 * @see setFixedPointAccounting()
+	 * @return
+	 */
+	public final long getFixedSignedNetQty() {
+		return side.value() * getFixedNetQty();
+	}
+	
 	/**
 	 * Returns the instantaneous signed position of this trade.
 	 * 
@@ -488,6 +721,9 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getSignedNetQty() {
+		if ( fixedPoint ) {
+			return FixedPoint.fromQty(side.value() * fixedNetQty());
+		}
 		return side.polarize(getNetQty());
 	}
 	
@@ -511,6 +747,12 @@ public class Trade implements Serializable {
 	 * @return
 	 */
 	public final BigDecimal getProfitLoss() {
+		if ( fixedPoint ) {
+			long pnl = fixedProfitLoss();
+			if ( pnl != FixedPoint.OVERFLOW ) {
+				return FixedPoint.fromProfitLoss(pnl);
+			}
+		}
 		BigDecimal last = getLastPrice();
 		if ( last == null || entryPrice == null || entryPrice.intValue()==0 ) {
 			return BigDecimal.ZERO;
@@ -524,6 +766,23 @@ public class Trade implements Serializable {
 		return side.polarize(change);
 	}
 	
+	/**
+	 * Returns getProfitLoss() scaled by FixedPoint.PNL_SCALE.  Does not
+	 * allocate in fixed-point mode.
+	 * 
+	 * @see setFixedPointAccounting()
+	 * @return
+	 */
+	public final long getFixedProfitLoss() {
+		if ( fixedPoint ) {
+			long pnl = fixedProfitLoss();
+			if ( pnl != FixedPoint.OVERFLOW ) {
+				return pnl;
+			}
+		}
+		return getProfitLoss().movePointRight(FixedPoint.PNL_SCALE).longValue();
+	}
+	
 	@Override
 	public String toString() {
 		return String.format("{%s:[%.2f]:%s%d%s@%.4f}",
@@ -541,10 +800,32 @@ public class Trade implements Serializable {
 	
 	public final void overrideSide( Side side ) {
 		this.side = side;
+		syncLots();
+		updateExposure();
+		journal();
 	}
 	
 	public final void overrideQuantity( BigDecimal quantity ) {
 		this.quantity = quantity;
+		syncFixedPoint();
+		syncLots();
+		updateExposure();
+		journal();
+	}
+	
+	/**
+	 * Overrides the side and quantity at once, from a signed quantity, so
+	 * that the totals and the journal see a single update.
+	 * 
+	 * @param signedQty
+	 */
+	public final void overridePosition( BigDecimal signedQty ) {
+		this.side = Side.fromInt(signedQty.signum());
+		this.quantity = signedQty.abs();
+		syncFixedPoint();
+		syncLots();
+		updateExposure();
+		journal();
 	}
 	
 	public final void unsetParentPortfolio() {
@@ -561,6 +842,16 @@ public class Trade implements Serializable {
 	 */
 	public final void acceptTradeEvent(TradeEvent tradeEvent) {
 		lastTradeEvent = tradeEvent;
+		if ( fixedPoint ) {
+			syncFixedLastPrice(tradeEvent.getPrice());
+		}
+		markStale();
+		
+		/* volume for the VWAP slices */
+		SlicedOrder sliced = slicedOrder;
+		if ( sliced != null ) {
+			sliced.addVolume(tradeEvent.getSize());
+		}
 		
 		/* for subclass processing of efficiently-routed TradeEvents */
 		onTradeEvent(tradeEvent);
@@ -610,6 +901,21 @@ public class Trade implements Serializable {
 	 * @param reject
 	 */
 	public final void acceptCancelReject( OrderCancelReject reject ) {
+		WorkingOrder child = orderProcessor.getWorkingOrders().find(reject.getOrderID());
+		if ( child != null ) {
+			logger.info(">>> " + this + ": The cancel order " + reject.getOrderID() +
+					" to cancel child " + child.getOrderId() + " has been REJECTED.");
+			orderProcessor.childCancelFailure(child, reject.getOrderID());
+			return;
+		}
+		OrderID replaceId = orderProcessor.getReplaceOrderId();
+		if ( replaceId != null && replaceId.equals(reject.getOrderID()) ) {
+			/* a rejected replace leaves the original order working */
+			logger.info(">>> " + this + ": The replace order " + reject.getOrderID() +
+					" to replace " + reject.getOriginalOrderID() + " has been REJECTED.");
+			orderProcessor.replaceFailure();
+			return;
+		}
 		logger.info(">>> " + this + ": The cancel order " + reject.getOrderID() +
 				" to cancel " + reject.getOriginalOrderID() + " has been REJECTED.");
 		orderProcessor.cancelFailure();
@@ -623,9 +929,35 @@ public class Trade implements Serializable {
 	 */
 	public final void acceptExecutionReport(DelegatorStrategy sender,
 			ExecutionReport report) {
+		synchronized(reportLock) {
+			reportCount++;
+			processExecutionReport(sender, report);
+		}
+	}
+	
+	/**
+	 * Returns the number of execution reports accepted so far.
+	 * 
+	 * @return
+	 */
+	final long getReportCount() {
+		return reportCount;
+	}
+	
+	/**
+	 * Returns the lock held while an execution report is processed.
+	 * 
+	 * @return
+	 */
+	final Object getReportLock() {
+		return reportLock;
+	}
+	
+	private void processExecutionReport(DelegatorStrategy sender,
+			ExecutionReport report) {
 		
 		/* check the correct symbol and account */
-		if ( !report.getSymbol().toString().equals(symbol) || 
+		if ( !report.getSymbol().getFullSymbol().equals(symbol) || 
 				!report.getAccount().toString().equals(account) ) {
 			logger.debug( Messages.MSG_EXTERNAL_REPORT(this));
 			logger.debug(">>> " + symbol + "/" + report.getAccount());
@@ -671,8 +1003,30 @@ public class Trade implements Serializable {
 			return;
 		}
 		
+		/* reports for child orders only touch the child and the position */
+		WorkingOrder child = orderProcessor.getWorkingOrders().find(report.getOrderID());
+		if ( OrderLatency.isEnabled() ) {
+			OrderLatency.onReport((child != null) ? child.getFuture() : 
+				orderProcessor.getPendingFuture(), report.getOrderStatus());
+		}
+		if ( child != null ) {
+			processChildReport(child, report);
+			updateExposure();
+			journal();
+			onExecutionReport(report);
+			return;
+		}
+		
 		orderStatus = report.getOrderStatus();
 		
+		/* a replace is acknowledged either with the Replaced status (FIX 4.2)
+		 * or with the Replace exec type and the status of the order (FIX 4.4),
+		 * which the switch below then handles as usual */
+		if ( orderStatus == OrderStatus.Replaced || 
+				report.getExecutionType() == ExecutionType.Replace ) {
+			processReplaced(report);
+		}
+		
 		switch(orderStatus) {
 		case New:
 			/* scrape the report, and log */
@@ -701,6 +1055,9 @@ public class Trade implements Serializable {
 		case PendingCancel:
 			orderStatus = report.getOrderStatus();
 			break;
+		case Replaced:
+		case PendingReplace:
+			break;
 		default:
 			logger.error(
 					">>> Execution report status is " +
@@ -708,6 +1065,10 @@ public class Trade implements Serializable {
 			break;
 		}
 		
+		/* publish the new position to the portfolio totals, and journal it */
+		updateExposure();
+		journal();
+		
 		/* finally let the subclasses do something */
 		onExecutionReport(report);
 	}
@@ -744,6 +1105,7 @@ public class Trade implements Serializable {
 	 * @param report
 	 */
 	private void processPartialFill( ExecutionReport report ) {
+		recordFill(report);
 		scrapeReport(report);
 		
 		/* set the side from the first execution report */
@@ -769,15 +1131,17 @@ public class Trade implements Serializable {
 			side = Side.fromMetcSide(report.getSide());
 		}
 
+		recordFill(report);
 		scrapeReport(report);
 		updateQuantity(report);
 		
 		if ( entryPrice.intValue()==0 ) {
 			entryPrice = averagePrice;
+			syncFixedPoint();
 		}
 	
 		/* unblock the out thread */
-		orderProcessor.orderSuccess();
+		orderProcessor.orderSuccess(report);
 		
 		/* clean up */
 		OrderID orderID = report.getOrderID();
@@ -815,6 +1179,7 @@ public class Trade implements Serializable {
 			quantity = quantity.multiply(inv);
 			logger.info(">>>\t" + this + ": Position has switched sides!");
 		}
+		syncFixedPoint();
 	}
 	
 	/**
@@ -826,6 +1191,7 @@ public class Trade implements Serializable {
 	private final void processCanceled( ExecutionReport report ) {
 		
 		/* get the report info */
+		recordFill(report);
 		scrapeReport(report);
 			
 		/* logging */
@@ -835,12 +1201,75 @@ public class Trade implements Serializable {
 		updateQuantity(report);
 		
 		/* timeout */
-		orderProcessor.cancelSuccess();
+		orderProcessor.cancelSuccess(report);
 	
 		/* clean up */
 		clearPendingFields();
 	}
 	
+	/**
+	 * 
+	 * Internal method for processing replace acknowledgements.  The
+	 * cumulative quantity carries over from the original order, so the
+	 * pending quantities stay consistent.
+	 * 
+	 * @param report
+	 */
+	private final void processReplaced( ExecutionReport report ) {
+		recordFill(report);
+		scrapeReport(report);
+		
+		if ( side==Side.NONE && report.getCumulativeQuantity() != null &&
+				report.getCumulativeQuantity().signum() > 0 ) {
+			side = Side.fromMetcSide(report.getSide());
+		}
+		
+		orderProcessor.replaceSuccess(report);
+		
+		/* logging */
+		logger.info(">>> " + this + ": Order " + report.getOriginalOrderID() + 
+				" has been replaced by " + report.getOrderID() + "." );
+		logger.trace(">>> " + report);
+	}
+	
+	/**
+	 * 
+	 * Internal method for processing the reports of child orders.  Their
+	 * fills are committed to the position as they arrive, so getQty() and
+	 * getNetQty() include them right away.
+	 * 
+	 * @param child
+	 * @param report
+	 */
+	private final void processChildReport( WorkingOrder child, ExecutionReport report ) {
+		BigDecimal filled = recordFill(report, child.getCumulativeQty(), child.getAveragePrice());
+		if ( filled.signum() > 0 ) {
+			commitFill(child.getSide(), filled, report.getAveragePrice());
+		}
+		child.update(report.getOrderStatus(), report.getCumulativeQuantity(), 
+				report.getLeavesQuantity(), report.getAveragePrice());
+		
+		switch(report.getOrderStatus()) {
+		case Filled:
+			logger.info(">>> " + this + ": Child order " + child.getOrderId() + " has been filled.");
+			orderProcessor.endChildOrder(child, OrderOutcome.FILLED, report);
+			break;
+		case Canceled:
+		case DoneForDay:
+		case Expired:
+			logger.info(">>> " + this + ": Child order " + child.getOrderId() + " has been canceled.");
+			orderProcessor.endChildOrder(child, OrderOutcome.CANCELED, report);
+			break;
+		case Rejected:
+			logger.warn(">>> " + this + ": Child order " + child.getOrderId() + " has been rejected.");
+			orderProcessor.endChildOrder(child, OrderOutcome.REJECTED, report);
+			break;
+		default:
+			logger.trace(">>> " + report);
+			break;
+		}
+	}
+	
 	/**
 	 * 
 	 * Internal method for processing rejection messages.
@@ -848,7 +1277,7 @@ public class Trade implements Serializable {
 	 * @param report
 	 */
 	private final void processRejected( ExecutionReport report ) {
-		orderProcessor.orderFailure();
+		orderProcessor.orderFailure(report);
 		rejectPolicy.onReject(parentPortfolio.getParentStrategy(),
 				report.getOrderID(),this,report);
 	}
@@ -856,12 +1285,34 @@ public class Trade implements Serializable {
 	
 	
 	
+	/**
+	 * Makes the given order the Trade's sliced order, unless another one
+	 * is being worked.
+	 * 
+	 * @param order
+	 * @return true if the order was accepted
+	 */
+	final synchronized boolean beginSlicedOrder( SlicedOrder order ) {
+		if ( slicedOrder != null ) return false;
+		slicedOrder = order;
+		return true;
+	}
+	
+	final synchronized void endSlicedOrder( SlicedOrder order ) {
+		if ( slicedOrder == order ) {
+			slicedOrder = null;
+		}
+	}
+	
+	
 	// PRIVATE METHODS //
 	
 	/**
 	 * Initialization.
 	 */
 	private final void init() {
+		lotBook = new LotBook(CostBasisMethod.FIFO);
+		
 		/* clear accounting fields */
 		clearAccountingFields();
 	
@@ -894,6 +1345,65 @@ public class Trade implements Serializable {
 		}
 	}
 	
+	/**
+	 * Passes the shares filled since the previous report of the pending
+	 * order to the lot book.  Must be called before scrapeReport().
+	 * 
+	 * The fill price is the report's last price, unless the last quantity
+	 * does not account for the whole difference (i.e. a report was missed),
+	 * in which case it is derived from the change in average price.
+	 * 
+	 * @param report
+	 */
+	private final void recordFill(ExecutionReport report) {
+		recordFill(report, cumulativeQty, averagePrice);
+	}
+	
+	/**
+	 * Passes the shares filled since the previous report of an order to
+	 * the lot book, given the order's cumulative quantity and average
+	 * price as of that report.
+	 * 
+	 * @return the shares filled, or zero
+	 */
+	private final BigDecimal recordFill(ExecutionReport report, 
+			BigDecimal prevCumQty, BigDecimal prevAvgPrice) {
+		BigDecimal cumQty = report.getCumulativeQuantity();
+		if ( cumQty == null ) return BigDecimal.ZERO;
+		BigDecimal filled = cumQty.subtract(prevCumQty);
+		if ( filled.signum() <= 0 ) return BigDecimal.ZERO;
+		
+		BigDecimal price = report.getLastPrice();
+		BigDecimal lastQty = report.getLastQuantity();
+		if ( price == null || lastQty == null || lastQty.compareTo(filled) != 0 ) {
+			BigDecimal avg = report.getAveragePrice();
+			if ( avg == null ) return filled;
+			BigDecimal before = (prevAvgPrice == null || prevCumQty.signum() == 0) ?
+					BigDecimal.ZERO : prevAvgPrice.multiply(prevCumQty);
+			price = avg.multiply(cumQty).subtract(before)
+				.divide(filled, MathContext.DECIMAL64);
+		}
+		lotBook.fill(Side.fromMetcSide(report.getSide()), filled, price);
+		return filled;
+	}
+	
+	/**
+	 * Adds shares filled by a child order to the transacted position.
+	 * 
+	 * @param fillSide
+	 * @param qty
+	 * @param price		average fill price of the order, for the entry price
+	 */
+	private final void commitFill(Side fillSide, BigDecimal qty, BigDecimal price) {
+		BigDecimal signed = side.polarize(quantity).add(fillSide.polarize(qty));
+		side = Side.fromInt(signed.signum());
+		quantity = signed.abs();
+		if ( side != Side.NONE && entryPrice.signum() == 0 && price != null ) {
+			entryPrice = price;
+		}
+		syncFixedPoint();
+	}
+	
 	/**
 	 * Utility method that scrapes the relevant information
 	 * from an incoming execution report.
@@ -906,6 +1416,20 @@ public class Trade implements Serializable {
 		leavesQty 		= report.getLeavesQuantity();
 		pendingSide 	= Side.fromMetcSide(report.getSide());
 		averagePrice 	= report.getAveragePrice();
+		syncFixedPoint();
+	}
+	
+	/**
+	 * Makes the lot book hold the position of the Trade, as one lot at
+	 * the entry price (or the last price if there is none), if the
+	 * position was set other than by fills.
+	 */
+	private void syncLots() {
+		if ( side == null || quantity == null ) return;
+		if ( lotBook.getPosition().compareTo(side.polarize(quantity)) == 0 ) return;
+		BigDecimal price = (entryPrice != null && entryPrice.signum() != 0) ? 
+				entryPrice : getLastPrice();
+		lotBook.reset(side, quantity, price);
 	}
 	
 	/**
@@ -915,7 +1439,8 @@ public class Trade implements Serializable {
 	 */
 	private final void clearPendingFields() {
 		leavesQty = cumulativeQty = BigDecimal.ZERO;
-		pendingSide = Side.NONE;		
+		pendingSide = Side.NONE;
+		syncFixedPoint();
 	}
 	
 	private final void clearAccountingFields() {
@@ -925,10 +1450,223 @@ public class Trade implements Serializable {
 		lastBidEvent = null;
 		lastAskEvent = null;
 		side = pendingSide = Side.NONE;
+		fixedLastPrice = 0;
+		syncFixedPoint();
+	}
+	
+	/**
+	 * Copies the accounting fields to their fixed-point mirror, if the
+	 * fixed-point mode is on.
+	 */
+	private final void syncFixedPoint() {
+		if ( !fixedPoint ) return;
+		try {
+			fixedQty			= FixedPoint.toQty(quantity);
+			fixedCumulativeQty	= FixedPoint.toQty(cumulativeQty);
+			fixedEntryPrice		= FixedPoint.toPrice(entryPrice);
+		} catch (ArithmeticException e) {
+			fixedPointOverflow(e);
+		}
+	}
+	
+	private final void syncFixedLastPrice( BigDecimal price ) {
+		try {
+			fixedLastPrice = FixedPoint.toPrice(price);
+		} catch (ArithmeticException e) {
+			fixedPointOverflow(e);
+		}
+	}
+	
+	/**
+	 * Recomputes this Trade's contribution to the totals of its portfolio,
+	 * and publishes the difference.
+	 */
+	private final void updateExposure() {
+		if ( exposedTo == null ) return;
+		synchronized(exposureLock) {
+			if ( exposedTo == null ) return;
+			PortfolioTotals now = computeExposure();
+			exposedTo.applyExposure(exposure, now);
+			exposure = now;
+		}
+	}
+	
+	/**
+	 * Tells the portfolio that its marks are out of date; the totals are
+	 * marked again on the next call to getTotals().
+	 */
+	private final void markStale() {
+		PortfolioImpl portfolio = exposedTo;
+		if ( portfolio != null ) {
+			portfolio.marksChanged();
+		}
+	}
+	
+	/**
+	 * Records this Trade's state in the journal of its portfolio, if any.
+	 */
+	private final void journal() {
+		PortfolioImpl portfolio = exposedTo;
+		if ( portfolio != null ) {
+			portfolio.journalTrade(this);
+		}
+	}
+	
+	/**
+	 * Moves this Trade's contribution to the given portfolio.  The
+	 * realized profit-loss stays with the portfolio it was realized in.
+	 */
+	private final void attachExposure( Portfolio portfolio ) {
+		synchronized(exposureLock) {
+			if ( exposedTo != null && exposedTo == portfolio ) {
+				return;
+			}
+			if ( exposedTo != null ) {
+				exposedTo.applyExposure(exposure, exposure.realizedOnly());
+			}
+			exposedTo = null;
+			exposure = null;
+			if ( portfolio instanceof PortfolioImpl ) {
+				exposedTo = (PortfolioImpl)portfolio;
+				exposure = computeExposure();
+				exposedTo.applyExposure(null, exposure);
+			}
+		}
+	}
+	
+	/**
+	 * Returns true if and only if this Trade publishes its contribution
+	 * to the given portfolio.
+	 */
+	final boolean isExposedTo( PortfolioImpl portfolio ) {
+		return exposedTo == portfolio;
+	}
+	
+	/**
+	 * Stops publishing to the given portfolio, without touching its
+	 * totals (i.e. the portfolio is being wiped).
+	 */
+	final void detachExposure( PortfolioImpl portfolio ) {
+		synchronized(exposureLock) {
+			if ( exposedTo == portfolio ) {
+				exposedTo = null;
+				exposure = null;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the price-independent part of this Trade's contribution; the
+	 * portfolio marks the rest (see PortfolioImpl.getTotals()).
+	 */
+	private final PortfolioTotals computeExposure() {
+		BigDecimal netQty = getSignedNetQty();
+		return new PortfolioTotals(getSignedQty(), netQty, netQty.abs(),
+				BigDecimal.ZERO, BigDecimal.ZERO, getRealizedProfitLoss(),
+				BigDecimal.ZERO);
+	}
+	
+	private final void fixedPointOverflow( ArithmeticException e ) {
+		logger.warn(">>> " + symbol + ": Value does not fit in fixed-point (" +
+				e.getMessage() + "); reverting to BigDecimal accounting.");
+		fixedPoint = false;
+	}
+	
+	private final long fixedNetQty() {
+		/* same as getNetQty(): fills on the side of the position add to it */
+		return fixedQty + side.value() * pendingSide.value() * fixedCumulativeQty;
+	}
+	
+	/**
+	 * Fixed-point getProfitLoss(), or FixedPoint.OVERFLOW.
+	 */
+	private final long fixedProfitLoss() {
+		if ( fixedEntryPrice / FixedPoint.PRICE_ONE == 0 ) {
+			return 0;
+		}
+		long change = FixedPoint.profitLoss(fixedLastPrice, fixedEntryPrice);
+		if ( change == FixedPoint.OVERFLOW ) {
+			return change;
+		}
+		return side.value() * change;
 	}
 	
 	// SERIALIZATION //
 	
+	/**
+	 * Writes the Trade's state as a snapshot record (see PortfolioSnapshot).
+	 * Market data and the fields of subclasses are not written.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	final void writeSnapshot( PortfolioSnapshot.Output out ) throws IOException {
+		out.beginRecord();
+		out.writeString(getClass().getName());
+		out.writeString(symbol);
+		out.writeEnum(side);
+		out.writeDecimal(quantity);
+		out.writeEnum(pendingSide);
+		out.writeDecimal(leavesQty);
+		out.writeDecimal(cumulativeQty);
+		out.writeEnum(orderStatus);
+		out.writeDecimal(averagePrice);
+		out.writeDecimal(entryPrice);
+		out.writeVarint(orderTimeout);
+		out.writePolicy(fillPolicy);
+		out.writePolicy(orderTimeoutPolicy);
+		out.writePolicy(rejectPolicy);
+		out.writeBoolean(fixedPoint);
+		lotBook.writeSnapshot(out);
+		out.endRecord();
+	}
+	
+	/**
+	 * Reads a Trade written by writeSnapshot().  The Trade is created with
+	 * the (String) constructor of its class, or as a plain Trade if there
+	 * is none; it has no parent portfolio.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static Trade readSnapshot( PortfolioSnapshot.Input in ) throws IOException {
+		in.beginRecord();
+		String className = in.readString();
+		Trade trade = newTrade(className, in.readString());
+		trade.side = in.readEnum(Side.class);
+		trade.quantity = in.readDecimal();
+		trade.pendingSide = in.readEnum(Side.class);
+		trade.leavesQty = in.readDecimal();
+		trade.cumulativeQty = in.readDecimal();
+		trade.orderStatus = in.readEnum(OrderStatus.class);
+		trade.averagePrice = in.readDecimal();
+		trade.entryPrice = in.readDecimal();
+		trade.orderTimeout = in.readVarint();
+		trade.fillPolicy = in.readPolicy(FillPolicy.class);
+		trade.orderTimeoutPolicy = in.readPolicy(OrderTimeoutPolicy.class);
+		trade.rejectPolicy = in.readPolicy(RejectPolicy.class);
+		trade.fixedPoint = in.readBoolean();
+		trade.lotBook = LotBook.readSnapshot(in);
+		in.endRecord();
+		
+		trade.syncFixedPoint();
+		return trade;
+	}
+	
+	private static Trade newTrade( String className, String symbol ) {
+		if ( className != null && !className.equals(Trade.class.getName()) ) {
+			try {
+				Class<?> type = Class.forName(className);
+				return (Trade)type.getConstructor(String.class).newInstance(symbol);
+			} catch (Exception e) {
+				logger.warn(">>> Cannot create a " + className + " for " + symbol +
+						" (" + e + "); loading it as a Trade.");
+			}
+		}
+		return new Trade(symbol);
+	}
+	
 	private void writeObject(ObjectOutputStream out) throws IOException {
 		out.defaultWriteObject();
 	}
@@ -936,6 +1674,13 @@ public class Trade implements Serializable {
 	private void readObject(ObjectInputStream in) 
 	 	throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
+		exposureLock = new Object();
+		reportLock = new Object();
+		if ( lotBook == null ) {
+			/* written before lots were tracked */
+			lotBook = new LotBook(CostBasisMethod.FIFO);
+			syncLots();
+		}
 		initOrderProcessor(); 
 	 }
 }
@@ -0,0 +1,282 @@
+package org.kohera.metctools.portfolio;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe store of the Trades of a portfolio, by symbol.
+ *
+ * Symbols are spread over SHARDS shards, each an immutable HashMap that
+ * is copied and republished under the shard's lock when a symbol is added,
+ * replaced or removed.  Lookups therefore never lock and never see a
+ * half-done update, and a new symbol only copies a fraction of the map.
+ *
+ * Insertion order is kept in an append-only array, published together
+ * with its length; iterating over values(), keySet() or entrySet() walks
+ * the array as of the start of the iteration, so it never throws
+ * ConcurrentModificationException and never blocks writers.  Replacing
+ * the Trade of a symbol keeps its place in the order.
+ *
+ * Adding a symbol is amortized O(1); replacing or removing one copies the
+ * order array.  The map serializes as a LinkedHashMap.
+ *
+ * @author Jake Brukhman
+ *
+ */
+final class TradeMap extends AbstractMap<String,Trade> implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 4920347166511934729L;
+
+	/* number of shards, a power of two */
+	static final int SHARDS = 16;
+
+	/**
+	 * Trades in insertion order.  Slots past size belong to later
+	 * versions.
+	 */
+	private static final class Order {
+		final Trade[] slots;
+		final int size;
+
+		Order( Trade[] slots, int size ) {
+			this.slots = slots;
+			this.size = size;
+		}
+	}
+
+	/* fields */
+	private final Object[] locks;
+	private final AtomicReferenceArray<HashMap<String,Trade>> shards;
+	private final Object orderLock = new Object();
+	private volatile Order order;
+
+	TradeMap() {
+		locks = new Object[SHARDS];
+		shards = new AtomicReferenceArray<HashMap<String,Trade>>(SHARDS);
+		for ( int i = 0; i < SHARDS; i++ ) {
+			locks[i] = new Object();
+			shards.set(i, new HashMap<String,Trade>());
+		}
+		order = new Order(new Trade[16], 0);
+	}
+
+	TradeMap( Map<String,Trade> map ) {
+		this();
+		for ( Map.Entry<String,Trade> e : map.entrySet() ) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	@Override
+	public Trade get( Object symbol ) {
+		if ( symbol == null ) return null;
+		return shards.get(index(symbol)).get(symbol);
+	}
+
+	@Override
+	public boolean containsKey( Object symbol ) {
+		if ( symbol == null ) return false;
+		return shards.get(index(symbol)).containsKey(symbol);
+	}
+
+	@Override
+	public int size() {
+		return order.size;
+	}
+
+	@Override
+	public Trade put( String symbol, Trade trade ) {
+		if ( symbol == null || trade == null ) {
+			throw new NullPointerException("TradeMap does not hold nulls.");
+		}
+		int s = index(symbol);
+		synchronized(locks[s]) {
+			HashMap<String,Trade> copy = new HashMap<String,Trade>(shards.get(s));
+			Trade old = copy.put(symbol, trade);
+			if ( old == null ) {
+				append(trade);
+			} else if ( old != trade ) {
+				replace(old, trade);
+			}
+			shards.set(s, copy);
+			return old;
+		}
+	}
+
+	@Override
+	public Trade remove( Object symbol ) {
+		if ( symbol == null ) return null;
+		int s = index(symbol);
+		synchronized(locks[s]) {
+			if ( !shards.get(s).containsKey(symbol) ) return null;
+			HashMap<String,Trade> copy = new HashMap<String,Trade>(shards.get(s));
+			Trade old = copy.remove(symbol);
+			replace(old, null);
+			shards.set(s, copy);
+			return old;
+		}
+	}
+
+	@Override
+	public void clear() {
+		for ( int s = 0; s < SHARDS; s++ ) {
+			synchronized(locks[s]) {
+				shards.set(s, new HashMap<String,Trade>());
+			}
+		}
+		synchronized(orderLock) {
+			order = new Order(new Trade[16], 0);
+		}
+	}
+
+	/**
+	 * Returns the Trades in insertion order, as of now.
+	 *
+	 * @return
+	 */
+	List<Trade> snapshot() {
+		Order o = order;
+		return Arrays.asList(Arrays.copyOf(o.slots, o.size));
+	}
+
+	/**
+	 * Returns a read-only view of the Trades in insertion order.
+	 */
+	@Override
+	public Collection<Trade> values() {
+		return new AbstractCollection<Trade>() {
+			@Override
+			public Iterator<Trade> iterator() {
+				return new OrderIterator<Trade>() {
+					@Override
+					Trade item( Trade trade ) {
+						return trade;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return TradeMap.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<String,Trade>> entrySet() {
+		return new AbstractSet<Map.Entry<String,Trade>>() {
+			@Override
+			public Iterator<Map.Entry<String,Trade>> iterator() {
+				return new OrderIterator<Map.Entry<String,Trade>>() {
+					@Override
+					Map.Entry<String,Trade> item( Trade trade ) {
+						return new SimpleImmutableEntry<String,Trade>(trade.getSymbol(), trade);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return TradeMap.this.size();
+			}
+		};
+	}
+
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Read-only iterator over the order array as of its creation.
+	 */
+	private abstract class OrderIterator<T> implements Iterator<T> {
+		private final Order o = order;
+		private int next;
+
+		abstract T item( Trade trade );
+
+		@Override
+		public boolean hasNext() {
+			return next < o.size;
+		}
+
+		@Override
+		public T next() {
+			if ( next >= o.size ) {
+				throw new NoSuchElementException();
+			}
+			return item(o.slots[next++]);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static int index( Object symbol ) {
+		int h = symbol.hashCode();
+		h ^= (h >>> 16);
+		return h & (SHARDS - 1);
+	}
+
+	private void append( Trade trade ) {
+		synchronized(orderLock) {
+			Order o = order;
+			Trade[] slots = o.slots;
+			if ( o.size == slots.length ) {
+				slots = Arrays.copyOf(slots, slots.length * 2);
+			}
+			/* the slot is past the size of the published order, so no reader sees it yet */
+			slots[o.size] = trade;
+			order = new Order(slots, o.size + 1);
+		}
+	}
+
+	/**
+	 * Replaces a Trade in the order array by another, or removes it if
+	 * the other is null.
+	 */
+	private void replace( Trade old, Trade trade ) {
+		synchronized(orderLock) {
+			Order o = order;
+			for ( int i = 0; i < o.size; i++ ) {
+				if ( o.slots[i] != old ) continue;
+				Trade[] slots = new Trade[o.slots.length];
+				System.arraycopy(o.slots, 0, slots, 0, o.size);
+				if ( trade != null ) {
+					slots[i] = trade;
+					order = new Order(slots, o.size);
+				} else {
+					System.arraycopy(o.slots, i + 1, slots, i, o.size - i - 1);
+					slots[o.size - 1] = null;
+					order = new Order(slots, o.size - 1);
+				}
+				return;
+			}
+		}
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		LinkedHashMap<String,Trade> map = new LinkedHashMap<String,Trade>();
+		for ( Trade trade : snapshot() ) {
+			map.put(trade.getSymbol(), trade);
+		}
+		return map;
+	}
+}
@@ -0,0 +1,88 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+
+import org.marketcetera.trade.OrderID;
+import org.marketcetera.trade.OrderStatus;
+
+/**
+ * A child order of a Trade, working alongside its pending order.
+ *
+ * The fields reflect the last execution report received for the order;
+ * the quantities are unsigned.
+ *
+ * @see OrderInterface#childOrderAsync(BigDecimal, Side, BigDecimal, long)
+ * @author Jake Brukhman
+ *
+ */
+public final class WorkingOrder {
+
+	/* fields */
+	private volatile OrderID orderId;
+	private volatile OrderID cancelOrderId;
+	private final Side side;
+	private final BigDecimal orderQty;
+	private final BigDecimal limitPrice;
+	private volatile BigDecimal cumulativeQty = BigDecimal.ZERO;
+	private volatile BigDecimal leavesQty;
+	private volatile BigDecimal averagePrice = BigDecimal.ZERO;
+	private volatile OrderStatus status = OrderStatus.PendingNew;
+	private final OrderFuture future;
+
+	WorkingOrder( OrderID orderId, Side side, BigDecimal orderQty, BigDecimal limitPrice ) {
+		this.orderId = orderId;
+		this.side = side;
+		this.orderQty = orderQty;
+		this.limitPrice = limitPrice;
+		this.leavesQty = orderQty;
+		this.future = new OrderFuture(orderId);
+	}
+
+	public OrderID getOrderId() { return orderId; }
+	public Side getSide() { return side; }
+	public BigDecimal getOrderQty() { return orderQty; }
+
+	/**
+	 * Returns the limit price, or null for a market order.
+	 */
+	public BigDecimal getLimitPrice() { return limitPrice; }
+	public BigDecimal getCumulativeQty() { return cumulativeQty; }
+	public BigDecimal getLeavesQty() { return leavesQty; }
+	public BigDecimal getAveragePrice() { return averagePrice; }
+	public OrderStatus getStatus() { return status; }
+
+	/**
+	 * Returns the completion handle of the order.
+	 */
+	public OrderFuture getFuture() { return future; }
+
+	/**
+	 * Returns true if and only if the order is working or pending.
+	 */
+	public boolean isLive() { return !future.isDone(); }
+
+	OrderID getCancelOrderId() { return cancelOrderId; }
+
+	void setCancelOrderId( OrderID cancelOrderId ) {
+		this.cancelOrderId = cancelOrderId;
+	}
+
+	void setOrderId( OrderID orderId ) {
+		this.orderId = orderId;
+		future.setOrderId(orderId);
+	}
+
+	void update( OrderStatus status, BigDecimal cumulativeQty, BigDecimal leavesQty,
+			BigDecimal averagePrice ) {
+		this.status = status;
+		if ( cumulativeQty != null ) this.cumulativeQty = cumulativeQty;
+		if ( leavesQty != null ) this.leavesQty = leavesQty;
+		if ( averagePrice != null ) this.averagePrice = averagePrice;
+	}
+
+	@Override
+	public String toString() {
+		return "WorkingOrder{" + orderId + ":" + side + " " + cumulativeQty + "/" + orderQty +
+			(limitPrice != null ? "@" + limitPrice : "") + " " + status + "}";
+	}
+}
@@ -0,0 +1,131 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.marketcetera.trade.OrderID;
+
+/**
+ * The child orders of a Trade, by OrderID.
+ *
+ * An order is found by its own id or by the id of the cancel sent for it,
+ * and stays in the book until it is filled, canceled or rejected.  The
+ * totals are summed over the live orders.
+ *
+ * @author Jake Brukhman
+ *
+ */
+final class WorkingOrders {
+
+	/* fields */
+	private final Map<OrderID,WorkingOrder> orders = new LinkedHashMap<OrderID,WorkingOrder>();
+	private final Map<OrderID,WorkingOrder> cancels = new LinkedHashMap<OrderID,WorkingOrder>();
+
+	synchronized void add( WorkingOrder order ) {
+		orders.put(order.getOrderId(), order);
+	}
+
+	/**
+	 * Returns the order with the given id or cancel id, or null.
+	 *
+	 * @param orderId
+	 * @return
+	 */
+	synchronized WorkingOrder find( OrderID orderId ) {
+		if ( orderId == null ) return null;
+		WorkingOrder order = orders.get(orderId);
+		return (order != null) ? order : cancels.get(orderId);
+	}
+
+	synchronized void addCancel( WorkingOrder order, OrderID cancelId ) {
+		order.setCancelOrderId(cancelId);
+		cancels.put(cancelId, order);
+	}
+
+	synchronized void removeCancel( OrderID cancelId ) {
+		WorkingOrder order = cancels.remove(cancelId);
+		if ( order != null ) {
+			order.setCancelOrderId(null);
+		}
+	}
+
+	synchronized void remove( WorkingOrder order ) {
+		orders.remove(order.getOrderId());
+		if ( order.getCancelOrderId() != null ) {
+			cancels.remove(order.getCancelOrderId());
+		}
+	}
+
+	synchronized boolean isEmpty() {
+		return orders.isEmpty();
+	}
+
+	synchronized int size() {
+		return orders.size();
+	}
+
+	/**
+	 * Returns true if and only if a live order has fills.
+	 *
+	 * @return
+	 */
+	synchronized boolean isFilling() {
+		for ( WorkingOrder order : orders.values() ) {
+			if ( order.getCumulativeQty().signum() != 0 ) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the shares left to fill, over the live orders.
+	 *
+	 * @return
+	 */
+	synchronized BigDecimal getLeavesQty() {
+		BigDecimal sum = BigDecimal.ZERO;
+		for ( WorkingOrder order : orders.values() ) {
+			sum = sum.add(order.getLeavesQty());
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the signed shares left to fill, over the live orders.
+	 *
+	 * @return
+	 */
+	synchronized BigDecimal getSignedLeavesQty() {
+		BigDecimal sum = BigDecimal.ZERO;
+		for ( WorkingOrder order : orders.values() ) {
+			sum = sum.add(order.getSide().polarize(order.getLeavesQty()));
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the shares filled so far, over the live orders.
+	 *
+	 * @return
+	 */
+	synchronized BigDecimal getCumulativeQty() {
+		BigDecimal sum = BigDecimal.ZERO;
+		for ( WorkingOrder order : orders.values() ) {
+			sum = sum.add(order.getCumulativeQty());
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the live orders, in the order they were sent.
+	 *
+	 * @return
+	 */
+	synchronized List<WorkingOrder> snapshot() {
+		if ( orders.isEmpty() ) return Collections.emptyList();
+		return new ArrayList<WorkingOrder>(orders.values());
+	}
+}
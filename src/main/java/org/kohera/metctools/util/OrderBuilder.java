@@ -1,6 +1,8 @@
 package org.kohera.metctools.util;
 
 import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.marketcetera.trade.BrokerID;
 import org.marketcetera.trade.Factory;
@@ -20,6 +22,17 @@ import org.marketcetera.trade.TimeInForce;
  */
 public class OrderBuilder {
 	
+	/* FIX tags and values for the order types that Metc has no OrderType for */
+	public static final int 	TAG_EXEC_INST = 18;
+	public static final int 	TAG_ORD_TYPE = 40;
+	public static final int 	TAG_STOP_PX = 99;
+	public static final int 	TAG_PEG_OFFSET_VALUE = 211;
+	
+	public static final String	ORD_TYPE_STOP = "3";
+	public static final String	ORD_TYPE_STOP_LIMIT = "4";
+	public static final String	ORD_TYPE_PEGGED = "P";
+	public static final String	EXEC_INST_MID_PEG = "M";
+	
 	/* fields */
 	private OrderSingle 	order;
 	private BrokerID 		defaultBrokerId;
@@ -225,6 +238,34 @@ public class OrderBuilder {
 		return this;
 	}
 	
+	/**
+	 * Sets the limit price for the order.
+	 * 
+	 * @param price
+	 * @return
+	 */
+	public OrderBuilder withPrice( BigDecimal price ) {
+		order.setPrice(price);
+		return this;
+	}
+	
+	/**
+	 * Sets a custom FIX field on the order.  Custom fields are written
+	 * last, so they override the fields set by Metc.
+	 * 
+	 * @param tag
+	 * @param value
+	 * @return
+	 */
+	public OrderBuilder withCustomField( int tag, String value ) {
+		Map<String,String> fields = order.getCustomFields();
+		fields = (fields == null) ? new HashMap<String,String>() 
+				: new HashMap<String,String>(fields);
+		fields.put(String.valueOf(tag), value);
+		order.setCustomFields(fields);
+		return this;
+	}
+	
 	/**
 	 * Sets timeInForce value for the order.
 	 * 
@@ -268,5 +309,127 @@ public class OrderBuilder {
 			.withSide(side)
 			.withOrderType(OrderType.Market);
 	}
+	
+	/**
+	 * Creates a limit order.
+	 * 
+	 * @param symbol
+	 * @param qty
+	 * @param side
+	 * @param limitPrice
+	 * @return
+	 */
+	public OrderBuilder makeLimit(String symbol, BigDecimal qty, Side side, BigDecimal limitPrice) {
+		newOrder();
+		return this
+			.withSymbol(symbol)
+			.withQuantity(qty)
+			.withSide(side)
+			.withOrderType(OrderType.Limit)
+			.withPrice(limitPrice);
+	}
+	
+	/**
+	 * Creates a stop order, which becomes a market order once the stop
+	 * price trades.
+	 * 
+	 * Metc has no stop OrderType, so the FIX OrdType is set directly.
+	 * 
+	 * @param symbol
+	 * @param qty
+	 * @param side
+	 * @param stopPrice
+	 * @return
+	 */
+	public OrderBuilder makeStop(String symbol, BigDecimal qty, Side side, BigDecimal stopPrice) {
+		return makeMarket(symbol, qty, side)
+			.withCustomField(TAG_ORD_TYPE, ORD_TYPE_STOP)
+			.withCustomField(TAG_STOP_PX, stopPrice.toPlainString());
+	}
+	
+	/**
+	 * Creates a stop-limit order, which becomes a limit order once the
+	 * stop price trades.
+	 * 
+	 * @param symbol
+	 * @param qty
+	 * @param side
+	 * @param stopPrice
+	 * @param limitPrice
+	 * @return
+	 */
+	public OrderBuilder makeStopLimit(String symbol, BigDecimal qty, Side side, 
+			BigDecimal stopPrice, BigDecimal limitPrice) {
+		return makeLimit(symbol, qty, side, limitPrice)
+			.withCustomField(TAG_ORD_TYPE, ORD_TYPE_STOP_LIMIT)
+			.withCustomField(TAG_STOP_PX, stopPrice.toPlainString());
+	}
+	
+	/**
+	 * Creates an order pegged to the midpoint of the bid and offer.
+	 * 
+	 * @param symbol
+	 * @param qty
+	 * @param side
+	 * @param offset	signed offset from the midpoint, or null for none
+	 * @return
+	 */
+	public OrderBuilder makeMidPeg(String symbol, BigDecimal qty, Side side, BigDecimal offset) {
+		makeMarket(symbol, qty, side)
+			.withCustomField(TAG_ORD_TYPE, ORD_TYPE_PEGGED)
+			.withCustomField(TAG_EXEC_INST, EXEC_INST_MID_PEG);
+		if ( offset != null && offset.signum() != 0 ) {
+			withCustomField(TAG_PEG_OFFSET_VALUE, offset.toPlainString());
+		}
+		return this;
+	}
+	
+	/**
+	 * Creates the amended version of an order, for a cancel/replace.
+	 * Everything but the quantity and the price is copied from the
+	 * original.
+	 * 
+	 * The price is the limit price of limit and stop-limit orders, and the
+	 * stop price of stop orders.  Market and pegged orders have no price
+	 * to amend.
+	 * 
+	 * @param original
+	 * @param qty		new total quantity, or null to keep it
+	 * @param price		new limit or stop price, or null to keep it
+	 * @return
+	 * @throws IllegalArgumentException if the price of an order without 
+	 * 		one is amended
+	 */
+	public OrderBuilder makeReplacement(OrderSingle original, BigDecimal qty, BigDecimal price) {
+		Map<String,String> fields = original.getCustomFields();
+		String ordType = (fields == null) ? null : fields.get(String.valueOf(TAG_ORD_TYPE));
+		boolean stop = ORD_TYPE_STOP.equals(ordType);
+		if ( price != null && !stop && (original.getOrderType() != OrderType.Limit || 
+				ORD_TYPE_PEGGED.equals(ordType)) ) {
+			throw new IllegalArgumentException("Order " + original.getOrderID() + 
+					" has no price to amend.");
+		}
+		
+		newOrder();
+		order.setSymbol(original.getSymbol());
+		order.setSide(original.getSide());
+		order.setOrderType(original.getOrderType());
+		order.setTimeInForce(original.getTimeInForce());
+		order.setAccount(original.getAccount());
+		order.setBrokerID(original.getBrokerID());
+		if ( original.getCustomFields() != null ) {
+			order.setCustomFields(new HashMap<String,String>(original.getCustomFields()));
+		}
+		order.setQuantity(qty != null ? qty : original.getQuantity());
+		if ( stop ) {
+			order.setPrice(original.getPrice());
+			if ( price != null ) {
+				withCustomField(TAG_STOP_PX, price.toPlainString());
+			}
+		} else {
+			order.setPrice(price != null ? price : original.getPrice());
+		}
+		return this;
+	}
 
 }
@@ -1,28 +1,63 @@
 package org.kohera.metctools.util;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
 
 /**
  * Generic Timer class for scheduling future tasks.
- * 
- * Please note: this does not guarantee real time.
- * 
+ *
+ * The Timer is a hashed timing wheel driven by a single thread: the wheel
+ * is an array of buckets, each covering one tick, and a task is placed in
+ * the bucket of its deadline along with the number of full turns of the
+ * wheel to wait.  Scheduling and killing a task are O(1) and never create
+ * a thread, whatever the number of pending tasks.
+ *
+ * Tasks run on the timer thread unless an Executor is given, so tasks
+ * that may block should be given an Executor.
+ *
+ * Please note: this does not guarantee real time; a task fires within
+ * one tick after its deadline.
+ *
  * @author Jake Brukhman
  *
  */
 public class Timer implements Serializable {
-	
+
 	/**
-	 * 
+	 *
 	 */
 	private static final long serialVersionUID = -4343698432446376276L;
-	
+
+	private final static Logger logger =
+		Logger.getLogger(Timer.class);
+
+	/* defaults */
+	public static final long DEFAULT_TICK_MILLIS = 10;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+	public static final int UNBOUNDED = -1;
+
 	/* fields */
-	public List<TaskThread> threads;
-	
+	private final long tickNanos;
+	private final int wheelSize;
+	private final int maxPending;
+	private transient Bucket[] wheel;
+	private transient int mask;
+	private transient Executor executor;
+	private transient Queue<Timeout> additions;
+	private transient Queue<Timeout> cancellations;
+	private transient AtomicInteger pending;
+	private transient volatile Thread worker;
+	private transient long startTime;
+	private transient volatile boolean shutdown;
+
 	/**
 	 * Interface for specifying generic Tasks.
 	 *
@@ -30,104 +65,417 @@ public class Timer implements Serializable {
 	public interface Task extends Serializable {
 		public void performTask();
 	}
-	
+
 	/**
-	 * Runs a Task on a separate thread after a delay.
-	 * 
+	 * Handle of a scheduled Task.
+	 *
 	 * @author Jake Brukhman
 	 *
 	 */
-	public class TaskThread extends Thread 
-			implements Serializable {
-		
-		/**
-		 * 
-		 */
-		private static final long serialVersionUID = -530116687089771733L;
-		
+	public final class Timeout {
+
+		/* states */
+		private static final int WAITING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
 		/* fields */
-		private long delay;
-		private Task task;
-		
-		public TaskThread(long delay, Task task) {
-			super();
-			this.delay = delay;
+		private final Task task;
+		private final long deadline;		// nanos since the timer started
+		private long rounds;				// remaining turns of the wheel
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+
+		/* bucket links, only touched by the timer thread */
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout( Task task, long deadline ) {
 			this.task = task;
+			this.deadline = deadline;
 		}
-		
-		public void run() {
-			try {
-				Thread.sleep(delay);
-				task.performTask();
-	
-				/* remove yourself from the list */
-				threads.remove(this);
-			} catch ( InterruptedException e) {
-			
+
+		/**
+		 * Returns the Task.
+		 *
+		 * @return
+		 */
+		public Task getTask() {
+			return task;
+		}
+
+		/**
+		 * Returns true if and only if the task has been killed before it
+		 * fired.
+		 *
+		 * @return
+		 */
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * Returns true if and only if the task has fired.
+		 *
+		 * @return
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		/**
+		 * Kill the task, if it has not fired yet.
+		 *
+		 * @return true if the task was killed by this call
+		 */
+		public boolean cancel() {
+			if ( !state.compareAndSet(WAITING, CANCELLED) ) {
+				return false;
+			}
+			pending.decrementAndGet();
+			cancellations.add(this);
+			return true;
+		}
+
+		private boolean expire() {
+			if ( !state.compareAndSet(WAITING, EXPIRED) ) {
+				return false;
 			}
+			pending.decrementAndGet();
+			return true;
 		}
 	}
-	
+
 	/**
-	 * Get a new Timer object.
+	 * Doubly-linked list of the Timeouts in one slot of the wheel.
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add( Timeout timeout ) {
+			timeout.bucket = this;
+			if ( head == null ) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove( Timeout timeout ) {
+			if ( timeout.prev != null ) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if ( timeout.next != null ) {
+				timeout.next.prev = timeout.prev;
+			} else {
+				tail = timeout.prev;
+			}
+			timeout.prev = timeout.next = null;
+			timeout.bucket = null;
+		}
+	}
+
+	/**
+	 * Get a new Timer object, with the default tick and wheel size, that
+	 * runs its tasks on the timer thread.
 	 */
 	public Timer() {
-		threads = new ArrayList<TaskThread>();
+		this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, UNBOUNDED, null);
+	}
+
+	/**
+	 * Get a new Timer object that runs its tasks with the given Executor.
+	 *
+	 * @param executor
+	 */
+	public Timer( Executor executor ) {
+		this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, UNBOUNDED, executor);
+	}
+
+	/**
+	 * Get a new Timer object.
+	 *
+	 * @param tickMillis	resolution of the timer, in milliseconds
+	 * @param wheelSize		number of buckets (rounded up to a power of two)
+	 * @param maxPending	maximum number of pending tasks, or UNBOUNDED
+	 * @param executor		runs the tasks, or null to run them on the timer thread
+	 */
+	public Timer( long tickMillis, int wheelSize, int maxPending, Executor executor ) {
+		if ( tickMillis <= 0 ) {
+			throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+		}
+		if ( wheelSize <= 0 || wheelSize > (1 << 30) ) {
+			throw new IllegalArgumentException("Bad wheel size: " + wheelSize);
+		}
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.wheelSize = wheelSize;
+		this.maxPending = maxPending;
+		init(wheelSize, executor);
 	}
 
 	/**
 	 * Fire task after a delay.
-	 * 
-	 * If the delay is 0, then the Task is executed immediately.
+	 *
+	 * If the delay is 0, then the Task is executed on the next tick.
 	 * If the delay is negative, then the Task is never executed.
-	 * 
+	 *
 	 * @param delay
 	 * @param task
 	 * @return
 	 */
-	public TaskThread fireIn( final long delay, final Task task ) {
-		
-		TaskThread thr = new TaskThread(delay,task);
-		threads.add(thr);
-		thr.start();
-		return thr;
+	public Timeout fireIn( final long delay, final Task task ) {
+		if ( shutdown ) {
+			throw new IllegalStateException("Timer has been shut down.");
+		}
+		ensureStarted();
+
+		long deadline = System.nanoTime() - startTime +
+			TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+		Timeout timeout = new Timeout(task, deadline);
+
+		/* negative delay: a handle that never fires */
+		if ( delay < 0 ) {
+			timeout.state.set(Timeout.CANCELLED);
+			return timeout;
+		}
+
+		if ( pending.incrementAndGet() > maxPending && maxPending != UNBOUNDED ) {
+			pending.decrementAndGet();
+			throw new RejectedExecutionException("Too many pending tasks (" + maxPending + ").");
+		}
+		additions.add(timeout);
+		return timeout;
 	}
-	
+
 	/**
 	 * Fire task at specific date and time.
-	 * 
+	 *
 	 * @param date
 	 * @param task
 	 * @return
 	 */
-	public TaskThread fireAt( final Date date, final Task task ) {
+	public Timeout fireAt( final Date date, final Task task ) {
 		long now = new Date().getTime();
 		long then = date.getTime();
 		long delay = Math.max(then-now, 0);
 		return fireIn(delay,task);
 	}
-	
+
 	/**
-	 * 
+	 *
 	 * Kill a task in this Timer object.
-	 * 
-	 * @param taskThr
+	 *
+	 * @param timeout
 	 */
-	public void kill( TaskThread taskThr) {
-		int index = threads.indexOf(taskThr);
-		if ( index >= 0) {
-			taskThr.interrupt();
-			threads.remove(index);
+	public void kill( Timeout timeout ) {
+		if ( timeout != null ) {
+			timeout.cancel();
 		}
 	}
-	
+
 	/**
 	 * Kill all tasks in this Timer object.
+	 *
+	 * The timer thread is stopped; it is started again by the next call
+	 * to fireIn() or fireAt().  When called by a task running on the timer
+	 * thread, the tasks are killed but the thread keeps running, since it
+	 * cannot wait for itself to stop.
 	 */
 	public void killAll() {
-		for ( TaskThread thr : threads ) {
-			kill(thr);
+		if ( Thread.currentThread() == worker ) {
+			killPending();
+			return;
 		}
+		stop();
 	}
-	
+
+	/**
+	 * Returns the number of tasks waiting to fire.
+	 *
+	 * @return
+	 */
+	public int pendingTasks() {
+		return pending.get();
+	}
+
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Stops the timer thread and drops every task.
+	 */
+	private synchronized void stop() {
+		if ( worker == null ) return;
+		shutdown = true;
+		worker.interrupt();
+		boolean interrupted = false;
+		while ( worker.isAlive() ) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if ( interrupted ) Thread.currentThread().interrupt();
+
+		/* drop everything that was scheduled */
+		Timeout t;
+		while ( (t = additions.poll()) != null ) {
+			t.cancel();
+		}
+		for ( Bucket bucket : wheel ) {
+			for ( t = bucket.head; t != null; t = t.next ) {
+				t.cancel();
+			}
+			bucket.head = bucket.tail = null;
+		}
+		cancellations.clear();
+		pending.set(0);
+
+		worker = null;
+		shutdown = false;
+	}
+
+	/**
+	 * Kills every pending task without unlinking it; the timer thread
+	 * drops them as it goes.  Only called on the timer thread.
+	 */
+	private void killPending() {
+		Timeout t;
+		while ( (t = additions.poll()) != null ) {
+			t.cancel();
+		}
+		for ( Bucket bucket : wheel ) {
+			for ( t = bucket.head; t != null; t = t.next ) {
+				t.cancel();
+			}
+		}
+	}
+
+	private void init( int wheelSize, Executor executor ) {
+		int size = 1;
+		while ( size < wheelSize ) size <<= 1;
+		wheel = new Bucket[size];
+		for ( int i = 0; i < size; i++ ) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		this.executor = executor;
+		additions = new ConcurrentLinkedQueue<Timeout>();
+		cancellations = new ConcurrentLinkedQueue<Timeout>();
+		pending = new AtomicInteger();
+	}
+
+	private synchronized void ensureStarted() {
+		if ( worker != null ) return;
+		startTime = System.nanoTime();
+		worker = new Thread("Timer") {
+			@Override
+			public void run() {
+				work();
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Timer thread: on each tick, places the new tasks, unlinks the
+	 * killed ones, and fires the expired ones of the current bucket.
+	 */
+	private void work() {
+		long tick = 0;
+		while ( !shutdown ) {
+			long deadline = tickNanos * (tick + 1);
+			if ( !sleepUntil(deadline) ) return;
+
+			transferAdditions(tick);
+			removeCancellations();
+			expire(wheel[(int)(tick & mask)], tick);
+			tick++;
+		}
+	}
+
+	private boolean sleepUntil( long deadline ) {
+		while ( true ) {
+			long sleep = deadline - (System.nanoTime() - startTime);
+			if ( sleep <= 0 ) return true;
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleep);
+			} catch (InterruptedException e) {
+				if ( shutdown ) return false;
+			}
+		}
+	}
+
+	private void transferAdditions( long tick ) {
+		/* bounded per tick, so a flood of additions cannot starve expiry */
+		for ( int i = 0; i < 100000; i++ ) {
+			Timeout timeout = additions.poll();
+			if ( timeout == null ) return;
+			if ( timeout.isCancelled() ) continue;
+
+			long due = Math.max(timeout.deadline / tickNanos, tick);
+			timeout.rounds = (due - tick) / wheel.length;
+			wheel[(int)(due & mask)].add(timeout);
+		}
+	}
+
+	private void removeCancellations() {
+		Timeout timeout;
+		while ( (timeout = cancellations.poll()) != null ) {
+			if ( timeout.bucket != null ) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	private void expire( Bucket bucket, long tick ) {
+		Timeout timeout = bucket.head;
+		while ( timeout != null ) {
+			Timeout next = timeout.next;
+			if ( timeout.rounds <= 0 ) {
+				bucket.remove(timeout);
+				if ( timeout.expire() ) {
+					run(timeout.task);
+				}
+			} else {
+				timeout.rounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	private void run( final Task task ) {
+		try {
+			if ( executor != null ) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						task.performTask();
+					}
+				});
+			} else {
+				task.performTask();
+			}
+		} catch (Exception e) {
+			logger.error(">>> Timer task failed.", e);
+		}
+	}
+
+	// SERIALIZATION //
+
+	/**
+	 * Pending tasks are not serialized; a deserialized Timer is empty.
+	 */
+	private Object readResolve() {
+		return new Timer(TimeUnit.NANOSECONDS.toMillis(tickNanos),
+				wheelSize, maxPending, null);
+	}
+
 }
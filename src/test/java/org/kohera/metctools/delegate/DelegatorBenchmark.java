@@ -0,0 +1,91 @@
+package org.kohera.metctools.delegate;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kohera.metctools.DelegatorStrategy;
+import org.marketcetera.event.TradeEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Events per second delivered to TradeDelegates: the typed dispatch
+ * arrays of the Delegator, against the reflective dispatch it replaced
+ * (key.getMethods()[0], then Method.invoke() for each delegate).
+ *
+ * @author Jake Brukhman
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DelegatorBenchmark {
+
+	@Param({"1", "4", "16"})
+	public int delegates;
+
+	/* fields */
+	private Delegator delegator;
+	private List<EventDelegate> registered;
+	private TradeEvent event;
+
+	/**
+	 * Counts the events it receives, so the calls are not optimized away.
+	 */
+	public static final class CountingDelegate implements TradeDelegate {
+		public long count;
+
+		@Override
+		public void onTrade(DelegatorStrategy sender, TradeEvent tradeEvent) {
+			count++;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		delegator = new Delegator(null);
+		registered = new ArrayList<EventDelegate>();
+		for ( int i = 0; i < delegates; i++ ) {
+			CountingDelegate delegate = new CountingDelegate();
+			delegator.addDelegate(delegate);
+			registered.add(delegate);
+		}
+		/* the delegates do not look at the event */
+		event = null;
+	}
+
+	@Benchmark
+	public void typed() {
+		delegator.delegateTrade(event);
+	}
+
+	@Benchmark
+	public void byKey() {
+		delegator.delegate(TradeDelegate.class, event);
+	}
+
+	@Benchmark
+	public void reflective() throws Exception {
+		Class<?> key = TradeDelegate.class;
+		for ( EventDelegate delegate : registered ) {
+			Method m = key.getMethods()[0];
+			if ( m.getParameterTypes().length == 2 ) {
+				m.invoke(delegate, null, event);
+			}
+		}
+	}
+}
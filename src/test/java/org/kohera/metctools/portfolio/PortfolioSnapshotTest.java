@@ -0,0 +1,233 @@
+package org.kohera.metctools.portfolio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round-trip tests for the PortfolioSnapshot format.
+ *
+ * @author Jake Brukhman
+ *
+ */
+public class PortfolioSnapshotTest {
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("snapshot", ".mcpf");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void varintRoundTrips() {
+		long[] values = { 0, 1, -1, 63, -64, 64, -65, 127, 128, 300, -300,
+				Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+		PortfolioSnapshot.Output out = new PortfolioSnapshot.Output();
+		for ( long v : values ) {
+			out.writeVarint(v);
+		}
+		PortfolioSnapshot.Input in = input(out);
+		for ( long v : values ) {
+			assertEquals(v, in.readVarint());
+		}
+	}
+
+	@Test
+	public void varintZigZagKeepsSmallNegativesShort() {
+		/* -1 zig-zags to 1, and -64 to 127: one byte each */
+		assertEquals(1, encodedVarint(-1).remaining());
+		assertEquals(1, encodedVarint(-64).remaining());
+		assertEquals(2, encodedVarint(-65).remaining());
+		assertEquals(10, encodedVarint(Long.MIN_VALUE).remaining());
+	}
+
+	@Test
+	public void decimalsRoundTripAcrossTheLongLimit() throws IOException {
+		BigDecimal longMax = new BigDecimal(BigInteger.valueOf(Long.MAX_VALUE), 4);
+		BigDecimal longMin = new BigDecimal(BigInteger.valueOf(Long.MIN_VALUE), 4);
+		BigDecimal big = new BigDecimal(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE), 4);
+		BigDecimal negativeBig = new BigDecimal(BigInteger.valueOf(Long.MIN_VALUE).subtract(BigInteger.ONE), 2);
+		BigDecimal[] values = { null, BigDecimal.ZERO, new BigDecimal("100"),
+				new BigDecimal("-12.3456"), new BigDecimal("1E+5"),
+				longMax, longMin, big, negativeBig };
+
+		PortfolioSnapshot.Output out = new PortfolioSnapshot.Output();
+		for ( BigDecimal d : values ) {
+			out.writeDecimal(d);
+		}
+		PortfolioSnapshot.Input in = input(out);
+		for ( BigDecimal d : values ) {
+			BigDecimal read = in.readDecimal();
+			if ( d == null ) {
+				assertNull(read);
+			} else {
+				/* equals() also compares the scale */
+				assertEquals(d, read);
+			}
+		}
+	}
+
+	@Test
+	public void policyConstantsAreReadBackByName() throws IOException {
+		Trade trade = new Trade("IBM");
+		trade.setFillPolicy(FillPolicies.ON_FILL_WARN);
+		trade.setRejectPolicy(RejectPolicies.ON_REJECT_WARN);
+		trade.setOrderTimeoutPolicy(OrderTimeoutPolicies.ON_TIMEOUT_CANCEL_AND_CLOSE);
+
+		ByteBuffer encoded = PortfolioSnapshot.encodeTrade(trade);
+		assertTrue(contains(encoded, "OrderTimeoutPolicies.ON_TIMEOUT_CANCEL_AND_CLOSE"));
+
+		Trade read = PortfolioSnapshot.decodeTrade(encoded, PortfolioSnapshot.VERSION);
+		assertSame(FillPolicies.ON_FILL_WARN, read.getFillPolicy());
+		assertSame(RejectPolicies.ON_REJECT_WARN, read.getRejectPolicy());
+		assertSame(OrderTimeoutPolicies.ON_TIMEOUT_CANCEL_AND_CLOSE, read.getOrderTimeoutPolicy());
+	}
+
+	@Test
+	public void tradeRoundTrips() throws IOException {
+		Trade trade = new Trade("IBM");
+		trade.overrideSide(Side.SELL);
+		trade.overrideQuantity(new BigDecimal("250"));
+		trade.setOrderTimeout(-5000);
+
+		Trade read = PortfolioSnapshot.decodeTrade(
+				PortfolioSnapshot.encodeTrade(trade), PortfolioSnapshot.VERSION);
+		assertEquals("IBM", read.getSymbol());
+		assertEquals(Side.SELL, read.getSide());
+		assertEquals(new BigDecimal("250"), read.getQty());
+		assertEquals(-5000, read.getOrderTimeout());
+		assertEquals(trade.getRealizedProfitLoss(), read.getRealizedProfitLoss());
+	}
+
+	@Test
+	public void portfolioRoundTripsThroughAFile() throws IOException {
+		PortfolioImpl portfolio = new PortfolioImpl(null);
+		portfolio.setAccountInfo(null, "ACCT");
+		portfolio.createTrade("IBM").overrideQuantity(new BigDecimal("100"));
+		Trade msft = portfolio.createTrade("MSFT");
+		msft.overrideSide(Side.SELL);
+		msft.overrideQuantity(new BigDecimal("7"));
+		PortfolioSnapshot.save(portfolio, file.getPath());
+
+		assertTrue(PortfolioSnapshot.isSnapshot(file.getPath()));
+		PortfolioImpl read = PortfolioSnapshot.load(file.getPath());
+		assertEquals(2, read.size());
+		assertEquals(new BigDecimal("100"), read.getTrade("IBM").getQty());
+		assertEquals(Side.SELL, read.getTrade("MSFT").getSide());
+		assertEquals(new BigDecimal("7"), read.getTrade("MSFT").getQty());
+	}
+
+	@Test
+	public void fieldsAppendedByALaterVersionAreSkipped() throws IOException {
+		PortfolioSnapshot.Output out = new PortfolioSnapshot.Output();
+		out.beginRecord();
+		out.writeVarint(42);
+		out.writeString("known");
+		/* fields a later version would append */
+		out.writeDecimal(new BigDecimal("3.14"));
+		out.writeString("unknown");
+		out.writeBytes(new byte[100]);
+		out.endRecord();
+		out.writeVarint(7);
+
+		PortfolioSnapshot.Input in = input(out);
+		in.beginRecord();
+		assertEquals(42, in.readVarint());
+		assertEquals("known", in.readString());
+		in.endRecord();
+		assertEquals(7, in.readVarint());
+	}
+
+	@Test
+	public void truncatedSnapshotsAreRejected() throws IOException {
+		PortfolioImpl portfolio = new PortfolioImpl(null);
+		portfolio.createTrade("IBM").overrideQuantity(new BigDecimal("100"));
+		PortfolioSnapshot.save(portfolio, file.getPath());
+		long length = file.length();
+
+		for ( long size = length - 1; size >= 0; size-- ) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(size);
+			} finally {
+				raf.close();
+			}
+			try {
+				PortfolioSnapshot.load(file.getPath());
+				fail("Loaded a snapshot truncated to " + size + " of " + length + " bytes.");
+			} catch (IOException e) {
+				/* expected */
+			}
+		}
+	}
+
+	@Test
+	public void truncatedTradeRecordsAreRejected() throws IOException {
+		Trade trade = new Trade("IBM");
+		trade.overrideQuantity(new BigDecimal("100"));
+		ByteBuffer encoded = PortfolioSnapshot.encodeTrade(trade);
+
+		for ( int size = encoded.remaining() - 1; size >= 0; size-- ) {
+			ByteBuffer truncated = encoded.duplicate();
+			truncated.limit(size);
+			try {
+				PortfolioSnapshot.decodeTrade(truncated, PortfolioSnapshot.VERSION);
+				fail("Decoded a trade truncated to " + size + " bytes.");
+			} catch (IOException e) {
+				/* expected */
+			}
+		}
+	}
+
+
+	// PRIVATE METHODS //
+
+	/**
+	 * Returns an Input over what was written to the given Output, with
+	 * the dictionary written and read first, as in a snapshot.
+	 */
+	private static PortfolioSnapshot.Input input( PortfolioSnapshot.Output body ) {
+		PortfolioSnapshot.Output out = new PortfolioSnapshot.Output();
+		out.writeDictionary(body);
+		ByteBuffer bytes = body.flip();
+		out.writeBytes(toArray(bytes));
+		PortfolioSnapshot.Input in = new PortfolioSnapshot.Input(out.flip(), PortfolioSnapshot.VERSION);
+		in.readDictionary();
+		return in;
+	}
+
+	private static ByteBuffer encodedVarint( long value ) {
+		PortfolioSnapshot.Output out = new PortfolioSnapshot.Output();
+		out.writeVarint(value);
+		return out.flip();
+	}
+
+	private static byte[] toArray( ByteBuffer buffer ) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private static boolean contains( ByteBuffer buffer, String s ) throws IOException {
+		return new String(toArray(buffer), "UTF-8").contains(s);
+	}
+}
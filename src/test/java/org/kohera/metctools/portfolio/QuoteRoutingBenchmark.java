@@ -0,0 +1,107 @@
+package org.kohera.metctools.portfolio;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.marketcetera.event.AskEvent;
+import org.marketcetera.event.BidEvent;
+import org.marketcetera.trade.MSymbol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Quotes per second routed to the Trades of a portfolio of 2,000 symbols,
+ * the way TradeRouter.deliverBid() and deliverAsk() do it: one findTrade()
+ * on MSymbol.getFullSymbol().  The target is 500,000 quotes per second.
+ *
+ * doubleLookup is the hasTrade() then getTrade() lookup it replaced.
+ *
+ * @author Jake Brukhman
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuoteRoutingBenchmark {
+
+	/* one bid and one ask per symbol */
+	private static final int QUOTES = 2;
+
+	@Param({"2000"})
+	public int symbols;
+
+	/* fields */
+	private Portfolio portfolio;
+	private BidEvent[] bids;
+	private AskEvent[] asks;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		portfolio = new PortfolioImpl(null);
+		bids = new BidEvent[symbols];
+		asks = new AskEvent[symbols];
+		BigDecimal size = new BigDecimal("100");
+		for ( int i = 0; i < symbols; i++ ) {
+			String symbol = "SYM" + i;
+			portfolio.createTrade(symbol);
+			BigDecimal bid = new BigDecimal(10 + i % 90);
+			bids[i] = new BidEvent(2*i, 0, new MSymbol(symbol), "X", bid, size);
+			asks[i] = new AskEvent(2*i+1, 0, new MSymbol(symbol), "X", bid.add(BigDecimal.ONE), size);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUOTES)
+	public void findTrade() {
+		int i = nextSymbol();
+		BidEvent bid = bids[i];
+		Trade trade = portfolio.findTrade(bid.getSymbol().getFullSymbol());
+		if ( trade != null ) {
+			trade.acceptBidEvent(bid);
+		}
+		AskEvent ask = asks[i];
+		trade = portfolio.findTrade(ask.getSymbol().getFullSymbol());
+		if ( trade != null ) {
+			trade.acceptAskEvent(ask);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUOTES)
+	public void doubleLookup() {
+		int i = nextSymbol();
+		BidEvent bid = bids[i];
+		String symbol = bid.getSymbol().getFullSymbol();
+		if ( portfolio.hasTrade(symbol) ) {
+			portfolio.getTrade(symbol).acceptBidEvent(bid);
+		}
+		AskEvent ask = asks[i];
+		symbol = ask.getSymbol().getFullSymbol();
+		if ( portfolio.hasTrade(symbol) ) {
+			portfolio.getTrade(symbol).acceptAskEvent(ask);
+		}
+	}
+
+
+	// PRIVATE METHODS //
+
+	private int nextSymbol() {
+		int i = next;
+		next = (i + 1 == symbols) ? 0 : i + 1;
+		return i;
+	}
+}
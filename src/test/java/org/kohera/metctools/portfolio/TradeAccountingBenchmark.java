@@ -0,0 +1,80 @@
+package org.kohera.metctools.portfolio;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.marketcetera.event.TradeEvent;
+import org.marketcetera.trade.MSymbol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-tick position getters of Trade, with and without fixed-point
+ * accounting.  Run with -prof gc: in fixed-point mode, getFixedNetQty()
+ * and getFixedProfitLoss() allocate nothing (gc.alloc.rate.norm is 0),
+ * and getNetQty() and getProfitLoss() allocate only the BigDecimal they
+ * return.
+ *
+ * @author Jake Brukhman
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TradeAccountingBenchmark {
+
+	@Param({"true", "false"})
+	public boolean fixedPoint;
+
+	/* fields */
+	private Trade trade;
+
+	@Setup
+	public void setUp() throws Exception {
+		trade = new Trade("IBM");
+		trade.overrideSide(Side.BUY);
+		trade.overrideQuantity(new BigDecimal("1500"));
+
+		/* an entry price is only set by fills; set it directly */
+		Field entryPrice = Trade.class.getDeclaredField("entryPrice");
+		entryPrice.setAccessible(true);
+		entryPrice.set(trade, new BigDecimal("101.25"));
+
+		trade.acceptTradeEvent(new TradeEvent(1, 0, new MSymbol("IBM"), "X",
+				new BigDecimal("102.37"), new BigDecimal("100")));
+		trade.setFixedPointAccounting(fixedPoint);
+	}
+
+	@Benchmark
+	public BigDecimal netQty() {
+		return trade.getNetQty();
+	}
+
+	@Benchmark
+	public BigDecimal profitLoss() {
+		return trade.getProfitLoss();
+	}
+
+	@Benchmark
+	public long fixedNetQty() {
+		return trade.getFixedNetQty();
+	}
+
+	@Benchmark
+	public long fixedProfitLoss() {
+		return trade.getFixedProfitLoss();
+	}
+}
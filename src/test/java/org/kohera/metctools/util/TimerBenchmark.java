@@ -0,0 +1,157 @@
+package org.kohera.metctools.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of scheduling and killing a task while 100,000 other tasks are
+ * pending: the timing wheel of Timer, against the thread-per-task timer
+ * it replaced (ThreadTimer below, with its list made thread-safe).
+ *
+ * ThreadTimer holds one sleeping thread per pending task, so the
+ * threadPerTask benchmark needs a process limit (ulimit -u) above the
+ * number of pending tasks; use -p pending=... to run it with fewer.
+ *
+ * @author Jake Brukhman
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerBenchmark {
+
+	/* far enough that no pending task fires during a run */
+	private static final long DELAY = TimeUnit.HOURS.toMillis(1);
+
+	private static final Timer.Task NOOP = new Timer.Task() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void performTask() { }
+	};
+
+	@Param({"100000"})
+	public int pending;
+
+	/**
+	 * The timing wheel, with the pending tasks.
+	 */
+	@State(Scope.Thread)
+	public static class Wheel {
+		Timer timer;
+
+		@Setup(Level.Trial)
+		public void setUp( TimerBenchmark benchmark ) {
+			timer = new Timer();
+			for ( int i = 0; i < benchmark.pending; i++ ) {
+				timer.fireIn(DELAY + i, NOOP);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			timer.killAll();
+		}
+	}
+
+	/**
+	 * The thread-per-task timer, with the pending tasks.
+	 */
+	@State(Scope.Thread)
+	public static class Threads {
+		ThreadTimer timer;
+
+		@Setup(Level.Trial)
+		public void setUp( TimerBenchmark benchmark ) {
+			timer = new ThreadTimer();
+			for ( int i = 0; i < benchmark.pending; i++ ) {
+				timer.fireIn(DELAY + i, NOOP);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			timer.killAll();
+		}
+	}
+
+	@Benchmark
+	public boolean timingWheel( Wheel wheel ) {
+		return wheel.timer.fireIn(DELAY, NOOP).cancel();
+	}
+
+	@Benchmark
+	public void threadPerTask( Threads threads ) {
+		ThreadTimer timer = threads.timer;
+		timer.kill(timer.fireIn(DELAY, NOOP));
+	}
+
+
+	/**
+	 * The Timer before the timing wheel: each task sleeps on its own
+	 * thread, and the threads are kept in a list.
+	 */
+	static final class ThreadTimer {
+
+		/* fields */
+		private final List<Thread> threads = new ArrayList<Thread>();
+
+		Thread fireIn( final long delay, final Timer.Task task ) {
+			Thread thr = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(delay);
+						task.performTask();
+						synchronized(threads) {
+							threads.remove(this);
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			synchronized(threads) {
+				threads.add(thr);
+			}
+			thr.start();
+			return thr;
+		}
+
+		void kill( Thread thr ) {
+			synchronized(threads) {
+				int index = threads.indexOf(thr);
+				if ( index >= 0 ) {
+					thr.interrupt();
+					threads.remove(index);
+				}
+			}
+		}
+
+		void killAll() {
+			synchronized(threads) {
+				for ( Thread thr : threads ) {
+					thr.interrupt();
+				}
+				threads.clear();
+			}
+		}
+	}
+}